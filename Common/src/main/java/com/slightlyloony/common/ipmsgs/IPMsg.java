@@ -17,6 +17,7 @@ import static java.text.MessageFormat.format;
 public class IPMsg {
 
     private static final Logger LOG = LogManager.getLogger();
+    private static final Gson GSON = new Gson();  // threadsafe, and expensive to build, so we share one...
 
     private final IPMsgType type;
     private final IPData data;
@@ -59,7 +60,7 @@ public class IPMsg {
             // otherwise, encode the type code, data class name, and data JSON...
             byte[] fqdcnBytes = type.getFqDataClassName().getBytes( "UTF-8" );
 
-            String json = new Gson().toJson( data );
+            String json = GSON.toJson( data );
             byte[] jsonBytes = json.getBytes( Charset.forName( "UTF-8" ) );
 
             result = ByteBuffer.allocate( 1 + fqdcnBytes.length + 1 + jsonBytes.length );
@@ -120,7 +121,7 @@ public class IPMsg {
             byte[]  jsonBytes = new byte[_buffer.remaining()];
             _buffer.get( jsonBytes );
             String json = new String( jsonBytes, "UTF-8" );
-            IPData data = new Gson().fromJson( json, klass );
+            IPData data = GSON.fromJson( json, klass );
 
             // if we got the wrong kind of data, we've got a problem...
             if( !data.getClass().getName().equals( inboundType.getFqDataClassName() ))
@@ -1,9 +1,15 @@
 package com.slightlyloony.blog;
 
 import com.google.common.collect.Maps;
+import com.slightlyloony.blog.accesslog.AccessLog;
 import com.slightlyloony.blog.config.ServerConfig;
 import com.slightlyloony.blog.handlers.BlogHandler;
+import com.slightlyloony.blog.responders.ImageCostModel;
+import com.slightlyloony.blog.responders.ImageScaler;
 import com.slightlyloony.blog.storage.CachedStorage;
+import com.slightlyloony.blog.storage.PackedStorage;
+import com.slightlyloony.blog.users.PasswordVerifier;
+import com.slightlyloony.blog.users.UserWriteBehind;
 import com.slightlyloony.common.ExecutionService;
 import com.slightlyloony.common.ipmsgs.*;
 import com.slightlyloony.common.logging.Jetty2Log4j2Bridge;
@@ -20,6 +26,7 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -72,6 +79,16 @@ public class BlogServer {
         }
 
         Thread.sleep( 1000 );
+        ImageScaler.INSTANCE.shutdown();
+        ImageCostModel.INSTANCE.shutdown();
+        PasswordVerifier.INSTANCE.shutdown();
+        UserWriteBehind.INSTANCE.shutdown();
+
+        // the packed store must be closed (after the last user write) so that its segments are forced to disk...
+        if( STORAGE.getStorage() instanceof PackedStorage )
+            ((PackedStorage) STORAGE.getStorage()).close();
+
+        AccessLog.INSTANCE.shutdown();
         IPMsgSocket.INSTANCE.shutdown();
         ExecutionService.INSTANCE.shutdown();
     }
@@ -204,4 +221,9 @@ public class BlogServer {
     public static Blog getBlog( final String _host ) {
         return blogs.get( _host );
     }
+
+
+    public static Collection<Blog> getBlogs() {
+        return blogs.values();
+    }
 }
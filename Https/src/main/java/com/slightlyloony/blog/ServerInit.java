@@ -2,12 +2,20 @@ package com.slightlyloony.blog;
 
 import com.google.common.collect.Maps;
 import com.google.gson.Gson;
+import com.slightlyloony.blog.accesslog.AccessLog;
 import com.slightlyloony.blog.config.ServerConfig;
 import com.slightlyloony.blog.handlers.HandlerIllegalStateException;
 import com.slightlyloony.blog.objects.BlogIDs;
+import com.slightlyloony.blog.responders.ImageCostModel;
+import com.slightlyloony.blog.responders.ImageMetadataProjection;
+import com.slightlyloony.blog.responders.ImageScaler;
 import com.slightlyloony.blog.security.BlogSessionManager;
 import com.slightlyloony.blog.storage.CachedStorage;
+import com.slightlyloony.blog.storage.DirectorySync;
+import com.slightlyloony.blog.storage.PackedStorage;
 import com.slightlyloony.blog.storage.Storage;
+import com.slightlyloony.blog.users.PasswordVerifier;
+import com.slightlyloony.blog.users.UserWriteBehind;
 import com.slightlyloony.blog.util.Stats;
 import com.slightlyloony.common.StandardUncaughtExceptionHandler;
 import com.slightlyloony.common.ipmsgs.IPMsgAction;
@@ -55,19 +63,50 @@ public class ServerInit {
             throw new HandlerIllegalStateException( "Could not read blog server configuration", e );
         }
 
-        // initialize our blog object IDs after an integrity check...
-        if( !BlogIDs.INSTANCE.integrityCheck() ) {
-            LOG.fatal( "Blog object IDs failed integrity check, shutting down system" );
-            System.exit( 1 );
+        // configure how object file writes are made durable...
+        DirectorySync.INSTANCE.setWindow( CONFIG.getGroupCommitWindow() );
+
+        // initialize the packed storage system, if that's what we're configured for, and our blog object IDs from its index...
+        if( CONFIG.isPackedStorage() ) {
+            PackedStorage packed = new PackedStorage( CONFIG.getContentRoot(), CONFIG.getPackedSegmentSize() );
+            BlogIDs.INSTANCE.init( packed.getHighestID() );
+            packed.startCompaction();
+            BlogServer.STORAGE = new CachedStorage( packed );
         }
-        BlogIDs.INSTANCE.init();
 
-        // initialize the storage system...
-        BlogServer.STORAGE = new CachedStorage( new Storage( ServerInit.getConfig().getContentRoot() ) );
+        // otherwise, initialize our blog object IDs after an integrity check, then the file storage system...
+        else {
+            if( !BlogIDs.INSTANCE.integrityCheck() ) {
+                LOG.fatal( "Blog object IDs failed integrity check, shutting down system" );
+                System.exit( 1 );
+            }
+            BlogIDs.INSTANCE.init();
+
+            BlogServer.STORAGE = new CachedStorage( new Storage( ServerInit.getConfig().getContentRoot() ) );
+        }
+
+        // build the secondary indexes over whichever storage we're using...
+        BlogServer.STORAGE.getIndex().rebuild();
+
+        // start the access log writer...
+        AccessLog.INSTANCE.start( CONFIG.getAccessLogDir() );
 
         // initialize the statistics system...
         Stats.init();
 
+        // start writing changed users lazily...
+        UserWriteBehind.INSTANCE.init();
+
+        // start the threads that verify login passwords...
+        PasswordVerifier.INSTANCE.init();
+
+        // load what we've learned about the costs of scaling and sending images, then start scaling images in the background...
+        ImageCostModel.INSTANCE.init();
+        ImageScaler.INSTANCE.init();
+
+        // keep our projection of image metadata up to date...
+        ImageMetadataProjection.INSTANCE.init();
+
         // create our blog instances...
         for( String blog : CONFIG.getBlogs() ) {
             Blog blogInstance = Blog.create( blog );
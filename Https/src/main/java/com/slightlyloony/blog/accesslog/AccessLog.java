@@ -0,0 +1,353 @@
+package com.slightlyloony.blog.accesslog;
+
+import com.slightlyloony.blog.handlers.RequestMethod;
+import com.slightlyloony.blog.objects.BlogID;
+import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * Implements the blog server's access log.  Request threads write one fixed-size binary record per request into a ring buffer, and a single
+ * background thread drains that buffer into a rolling file.  Nothing on the request thread formats a string, takes a lock, or touches the disk;
+ * recording a request is a handful of absolute puts into a preallocated buffer.  If the writer falls so far behind that the ring buffer is full, the
+ * record is dropped (and counted) rather than stalling the request.
+ * <p>
+ * Each record is {@link #RECORD_SIZE} bytes, big-endian, laid out as follows:
+ * <pre>
+ *   offset size  contents
+ *      0     8   timestamp (milliseconds since the epoch)
+ *      8     8   blog ID (as its long value, or -1 if the request had no valid blog ID)
+ *     16    32   blog name (US-ASCII, zero padded, truncated if necessary)
+ *     48     1   request method (ordinal of {@link RequestMethod}, or -1 if unknown)
+ *     49     1   access requirements code (or 0 if unknown)
+ *     50     2   HTTP status code
+ *     52     4   bytes of content sent
+ *     56     4   request initialization time (microseconds)
+ *     60     4   metadata read time (microseconds)
+ *     64     4   responder time (microseconds)
+ *     68     4   total time (microseconds)
+ *     72     2   cache hits during this request
+ *     74     2   cache misses during this request
+ *     76    16   client IP address (IPv6, with IPv4 addresses IPv4-mapped as ::ffff:a.b.c.d; all zeros if unknown)
+ *     92     4   reserved (zero)
+ * </pre>
+ * Log files are named "access-yyyy-mm-dd-n.bin", and roll over at midnight or when they reach {@link #MAX_FILE_SIZE}.  Use
+ * {@link AccessLogDecoder} to turn them into text or CSV.
+ * <p>
+ * This class is a singleton.  It is threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class AccessLog {
+
+    public static final AccessLog INSTANCE = new AccessLog();
+
+    public static final int RECORD_SIZE = 96;
+    public static final int BLOG_NAME_SIZE = 32;
+    public static final int ADDRESS_SIZE = 16;
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int CAPACITY = 1 << 14;  // number of records in the ring buffer; must be a power of two...
+    private static final int MASK = CAPACITY - 1;
+    private static final int WRITE_BATCH = 256;   // maximum number of records written to the file in a single write...
+    private static final long MAX_FILE_SIZE = 64L * 1024 * 1024;
+    private static final long IDLE_PARK_NS = 50_000_000L;
+
+    private static final ThreadLocal<int[]> CACHE_COUNTS = ThreadLocal.withInitial( () -> new int[2] );
+
+    private final ByteBuffer ring;
+    private final AtomicLongArray published;  // the sequence number most recently published in each slot...
+    private final AtomicLong claimed;         // the next sequence number to be claimed by a request thread...
+    private final AtomicLong dropped;
+
+    private volatile long consumed;           // the next sequence number to be written by the writer thread...
+    private volatile boolean running;
+    private volatile Thread writer;
+
+    private File dir;
+    private FileChannel channel;
+    private LocalDate fileDate;
+    private int fileSequence;
+    private long fileSize;
+
+
+    private AccessLog() {
+        ring = ByteBuffer.allocate( CAPACITY * RECORD_SIZE );
+        published = new AtomicLongArray( CAPACITY );
+        for( int i = 0; i < CAPACITY; i++ )
+            published.set( i, -1 );
+        claimed = new AtomicLong( 0 );
+        dropped = new AtomicLong( 0 );
+        consumed = 0;
+    }
+
+
+    /**
+     * Starts the background writer, which will write access log files into the given directory (creating it if necessary).
+     *
+     * @param _dir the directory to write access log files into
+     */
+    public synchronized void start( final String _dir ) {
+
+        if( running )
+            return;
+
+        dir = new File( _dir );
+        if( !dir.exists() && !dir.mkdirs() ) {
+            LOG.error( msg( "Could not create access log directory {0}; access logging is disabled", dir.getAbsolutePath() ) );
+            return;
+        }
+
+        running = true;
+        writer = new Thread( this::drain, "AccessLogWriter" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+
+    /**
+     * Stops the background writer after it has written every record published before this method was invoked.
+     */
+    public void shutdown() {
+
+        Thread thread = writer;
+        if( thread == null )
+            return;
+
+        running = false;
+        LockSupport.unpark( thread );
+        try {
+            thread.join( 5000 );
+        }
+        catch( InterruptedException e ) {
+            LOG.warn( "Interrupted while waiting for access log writer to finish" );
+        }
+    }
+
+
+    /**
+     * Resets the cache hit and miss counters for the current thread.  Invoked at the beginning of each request.
+     */
+    public static void beginRequest() {
+        int[] counts = CACHE_COUNTS.get();
+        counts[0] = 0;
+        counts[1] = 0;
+    }
+
+
+    /**
+     * Records a cache hit for the request being handled by the current thread.
+     */
+    public static void cacheHit() {
+        CACHE_COUNTS.get()[0]++;
+    }
+
+
+    /**
+     * Records a cache miss for the request being handled by the current thread.
+     */
+    public static void cacheMiss() {
+        CACHE_COUNTS.get()[1]++;
+    }
+
+
+    /**
+     * Records a completed request.  The timing arguments are {@link System#nanoTime()} values captured at the start of the request, after request
+     * initialization, after the metadata was read, and at the end of the request; any phase that was never reached should be given as zero.  This
+     * method never blocks.
+     *
+     * @param _blog the name of the blog, or null if unknown
+     * @param _client the client's IP address, or null if unknown
+     * @param _id the blog ID requested, or null if unknown
+     * @param _method the request method, or null if unknown
+     * @param _accessRequirements the access requirements in the request, or null if unknown
+     * @param _status the HTTP status code of the response
+     * @param _bytes the number of bytes of content sent
+     * @param _start the time the request started
+     * @param _initialized the time the request was initialized
+     * @param _metadataRead the time the metadata was read
+     * @param _end the time the request completed
+     */
+    public void record( final String _blog, final InetAddress _client, final BlogID _id, final RequestMethod _method,
+                        final BlogObjectAccessRequirements _accessRequirements, final int _status, final long _bytes, final long _start,
+                        final long _initialized, final long _metadataRead, final long _end ) {
+
+        // claim a slot, unless the ring buffer is full...
+        long seq;
+        do {
+            seq = claimed.get();
+            if( seq - consumed >= CAPACITY ) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while( !claimed.compareAndSet( seq, seq + 1 ) );
+
+        // fill in the record with absolute puts, so that concurrent writers never share any buffer state...
+        int base = ((int) seq & MASK) * RECORD_SIZE;
+        int[] counts = CACHE_COUNTS.get();
+        ring.putLong(  base,      System.currentTimeMillis() );
+        ring.putLong(  base +  8, (_id == null) ? -1 : _id.asLong() );
+        putName( base + 16, _blog );
+        ring.put(      base + 48, (byte) ((_method == null) ? -1 : _method.ordinal()) );
+        ring.put(      base + 49, (byte) ((_accessRequirements == null) ? 0 : _accessRequirements.getCode()) );
+        ring.putShort( base + 50, (short) _status );
+        ring.putInt(   base + 52, (int) Math.min( _bytes, Integer.MAX_VALUE ) );
+        ring.putInt(   base + 56, micros( _start, _initialized ) );
+        ring.putInt(   base + 60, micros( _initialized, _metadataRead ) );
+        ring.putInt(   base + 64, micros( _metadataRead, _end ) );
+        ring.putInt(   base + 68, micros( _start, _end ) );
+        ring.putShort( base + 72, (short) Math.min( counts[0], Short.MAX_VALUE ) );
+        ring.putShort( base + 74, (short) Math.min( counts[1], Short.MAX_VALUE ) );
+        putAddress( base + 76, _client );
+        ring.putInt(   base + 92, 0 );
+
+        // publish it to the writer...
+        published.lazySet( (int) seq & MASK, seq );
+    }
+
+
+    /**
+     * Returns the number of records dropped because the ring buffer was full.
+     *
+     * @return the number of records dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+
+    private void putName( final int _offset, final String _blog ) {
+        int len = (_blog == null) ? 0 : Math.min( _blog.length(), BLOG_NAME_SIZE );
+        for( int i = 0; i < BLOG_NAME_SIZE; i++ ) {
+            char c = (i < len) ? _blog.charAt( i ) : 0;
+            ring.put( _offset + i, (byte) ((c < 128) ? c : '?') );
+        }
+    }
+
+
+    private void putAddress( final int _offset, final InetAddress _client ) {
+        byte[] address = (_client == null) ? new byte[0] : _client.getAddress();
+        for( int i = 0; i < ADDRESS_SIZE; i++ ) {
+            byte b = 0;
+            if( address.length == ADDRESS_SIZE )
+                b = address[i];
+            else if( address.length == 4 )
+                b = (i < 10) ? 0 : (i < 12) ? (byte) 0xff : address[i - 12];
+            ring.put( _offset + i, b );
+        }
+    }
+
+
+    private int micros( final long _from, final long _to ) {
+        return ((_from == 0) || (_to == 0) || (_to < _from)) ? 0 : (int) Math.min( (_to - _from) / 1000, Integer.MAX_VALUE );
+    }
+
+
+    /*
+     * The writer thread's main loop: copy published records into a direct buffer in batches and write them out, parking when there's nothing to do.
+     */
+    private void drain() {
+
+        ByteBuffer batch = ByteBuffer.allocateDirect( WRITE_BATCH * RECORD_SIZE );
+        ByteBuffer source = ring.duplicate();
+
+        while( true ) {
+
+            // copy as many consecutive published records as will fit into our batch...
+            batch.clear();
+            long next = consumed;
+            while( batch.hasRemaining() && (published.get( (int) next & MASK ) == next) ) {
+                int base = ((int) next & MASK) * RECORD_SIZE;
+                source.limit( base + RECORD_SIZE );
+                source.position( base );
+                batch.put( source );
+                next++;
+            }
+
+            // if we got anything, write it and release the slots...
+            if( batch.position() > 0 ) {
+                batch.flip();
+                write( batch );
+                consumed = next;
+                continue;
+            }
+
+            // nothing to do; if we've been asked to stop, we're done...
+            if( !running )
+                break;
+
+            LockSupport.parkNanos( IDLE_PARK_NS );
+        }
+
+        closeFile();
+        long lost = dropped.get();
+        if( lost > 0 )
+            LOG.warn( msg( "Access log dropped {0} records because the writer fell behind", lost ) );
+    }
+
+
+    private void write( final ByteBuffer _batch ) {
+
+        try {
+            ensureFile();
+            while( _batch.hasRemaining() )
+                fileSize += channel.write( _batch );
+        }
+        catch( IOException e ) {
+            LOG.error( msg( "Problem writing access log: {0}", e.getMessage() ) );
+            closeFile();
+        }
+    }
+
+
+    private void ensureFile() throws IOException {
+
+        LocalDate today = LocalDate.now();
+        if( (channel != null) && today.equals( fileDate ) && (fileSize < MAX_FILE_SIZE) )
+            return;
+
+        closeFile();
+
+        // find the first unused file name for today...
+        if( !today.equals( fileDate ) )
+            fileSequence = 0;
+        fileDate = today;
+        File file;
+        do {
+            file = new File( dir, "access-" + today.toString() + "-" + ++fileSequence + ".bin" );
+        } while( file.exists() );
+
+        channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+        fileSize = 0;
+        LOG.info( msg( "Opened access log file {0}", file.getName() ) );
+    }
+
+
+    private void closeFile() {
+
+        if( channel == null )
+            return;
+
+        try {
+            channel.close();
+        }
+        catch( IOException e ) {
+            LOG.error( msg( "Problem closing access log: {0}", e.getMessage() ) );
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,125 @@
+package com.slightlyloony.blog.accesslog;
+
+import com.slightlyloony.blog.handlers.RequestMethod;
+import com.slightlyloony.blog.util.ID;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Offline tool that decodes binary access log files (see {@link AccessLog} for the record format) into either human-readable text or CSV.  Usage:
+ * <pre>
+ *     java com.slightlyloony.blog.accesslog.AccessLogDecoder [-csv] file...
+ * </pre>
+ * The decoded output is written to standard output.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class AccessLogDecoder {
+
+    private static final String CSV_HEADER = "timestamp,client,blog,id,method,access,status,bytes,init_us,metadata_us,respond_us,total_us,cache_hits,cache_misses";
+
+
+    public static void main( final String[] _args ) throws IOException {
+
+        boolean csv = false;
+        int first = 0;
+        if( (_args.length > 0) && "-csv".equals( _args[0] ) ) {
+            csv = true;
+            first = 1;
+        }
+
+        if( first >= _args.length ) {
+            System.err.println( "Usage: AccessLogDecoder [-csv] file..." );
+            System.exit( 1 );
+        }
+
+        PrintStream out = new PrintStream( new BufferedOutputStream( System.out, 1 << 16 ), false, "UTF-8" );
+        if( csv )
+            out.println( CSV_HEADER );
+
+        for( int i = first; i < _args.length; i++ )
+            decode( new File( _args[i] ), csv, out );
+
+        out.flush();
+    }
+
+
+    private static void decode( final File _file, final boolean _csv, final PrintStream _out ) throws IOException {
+
+        byte[] record = new byte[AccessLog.RECORD_SIZE];
+        try( DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( _file ), 1 << 16 ) ) ) {
+
+            while( true ) {
+
+                // read a whole record, or quit if we've hit the end of the file...
+                try {
+                    dis.readFully( record );
+                }
+                catch( EOFException e ) {
+                    break;
+                }
+
+                DataInputStream rec = new DataInputStream( new ByteArrayInputStream( record ) );
+                String timestamp = Instant.ofEpochMilli( rec.readLong() ).toString();
+                long idValue = rec.readLong();
+                byte[] nameBytes = new byte[AccessLog.BLOG_NAME_SIZE];
+                rec.readFully( nameBytes );
+                int methodOrdinal = rec.readByte();
+                int accessCode = rec.readByte();
+                int status = rec.readShort();
+                int bytes = rec.readInt();
+                int init = rec.readInt();
+                int metadata = rec.readInt();
+                int respond = rec.readInt();
+                int total = rec.readInt();
+                int hits = rec.readShort();
+                int misses = rec.readShort();
+                byte[] address = new byte[AccessLog.ADDRESS_SIZE];
+                rec.readFully( address );
+
+                String blog = trimName( nameBytes );
+                String id = (idValue < 0) ? "-" : ID.encode( idValue );
+                String method = ((methodOrdinal < 0) || (methodOrdinal >= RequestMethod.values().length))
+                        ? "-" : RequestMethod.values()[methodOrdinal].name();
+                String access = (accessCode == 0) ? "-" : String.valueOf( (char) accessCode );
+                String client = toClient( address );
+
+                if( _csv )
+                    _out.println( String.join( ",", timestamp, client, blog, id, method, access, Integer.toString( status ), Integer.toString( bytes ),
+                            Integer.toString( init ), Integer.toString( metadata ), Integer.toString( respond ), Integer.toString( total ),
+                            Integer.toString( hits ), Integer.toString( misses ) ) );
+                else
+                    _out.println( timestamp + " " + client + " " + method + " " + blog + "/" + id + access + " " + status + " " + bytes + " bytes in " + total
+                            + " us (init " + init + ", metadata " + metadata + ", respond " + respond + "), cache " + hits + " hits/" + misses
+                            + " misses" );
+            }
+        }
+    }
+
+
+    /*
+     * Returns the client address in the usual text form (dotted quad for IPv4-mapped addresses), or "-" if it's all zeros (unknown).
+     */
+    private static String toClient( final byte[] _address ) throws IOException {
+        for( byte b : _address )
+            if( b != 0 )
+                return InetAddress.getByAddress( _address ).getHostAddress();
+        return "-";
+    }
+
+
+    private static String trimName( final byte[] _bytes ) {
+        int len = 0;
+        while( (len < _bytes.length) && (_bytes[len] != 0) )
+            len++;
+        return (len == 0) ? "-" : new String( _bytes, 0, len, StandardCharsets.US_ASCII );
+    }
+
+
+    private AccessLogDecoder() {
+        // prevent instantiation...
+    }
+}
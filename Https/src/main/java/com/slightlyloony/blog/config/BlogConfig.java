@@ -1,7 +1,7 @@
 package com.slightlyloony.blog.config;
 
-import com.google.gson.Gson;
 import com.slightlyloony.blog.ServerInit;
+import com.slightlyloony.blog.util.Json;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -31,7 +31,7 @@ public class BlogConfig {
 
         try {
             File blogConfigFile = new File( new File( new File( ServerInit.getConfig().getContentRoot() ), _name ), "blog.json");
-            return new Gson().fromJson( new FileReader( blogConfigFile ), BlogConfig.class );
+            return Json.GSON.fromJson( new FileReader( blogConfigFile ), BlogConfig.class );
         }
         catch( FileNotFoundException e ) {
             LOG.fatal( "Problem reading blog configuration", e );
@@ -77,7 +77,7 @@ public class BlogConfig {
 
     public void serialize() {
 
-        String json = new Gson().toJson( this, BlogConfig.class );
+        String json = Json.GSON.toJson( this, BlogConfig.class );
         File blogConfigFile = new File( new File( new File( ServerInit.getConfig().getContentRoot() ), domain ), "blog.json");
         ;
         try( FileOutputStream fos = new FileOutputStream( blogConfigFile ); ) {
@@ -1,6 +1,7 @@
 package com.slightlyloony.blog.config;
 
 import java.net.InetSocketAddress;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -17,6 +18,26 @@ public class ServerConfig {
     private Map<String,Cache> caches;
     private int maxCacheEntrySize;
     private int sessionIdleTimeout;  // session idle timeout in milliseconds...
+    private String accessLogDir;     // directory for binary access log files...
+    private boolean binaryMetadata;  // true to write metadata files in the binary encoding rather than JSON...
+    private String storage;          // storage backend: "files" (the default, one file per object) or "packed" (segment files)...
+    private long packedSegmentSize;  // size in bytes at which the packed storage backend starts a new segment...
+    private int integrityCheckRate;  // maximum directory entries per second examined by the periodic integrity check...
+    private int userWriteDelay;      // seconds between flushes of changed users and users indexes to storage...
+    private int groupCommitWindow;   // milliseconds to gather directory syncs into one batch after object writes (zero to sync each one)...
+    private long offHeapCacheSize;   // maximum bytes of off-heap memory for the content of objects in off-heap caches (zero to disable)...
+    private int imageScalingThreads;   // number of threads scaling images in the background...
+    private int imageScalingQueueSize; // maximum number of image scaling jobs waiting for a thread...
+    private int[] imageLadder;         // heights at which scaled images are made for every scalable image, ahead of any request...
+    private String[] imageVariantTypes; // other image types to serve images in when the client accepts them, most preferred first ("WEBP" if unset)...
+    private int imageMetadataEntries;  // maximum number of images whose metadata is held, already serialized, for image metadata requests...
+    private int loginThreads;          // number of threads verifying login passwords...
+    private int loginQueueSize;        // maximum number of login password verifications waiting for a thread...
+    private int loginQueueTimeout;     // milliseconds a login waits for its password to be verified before it's told to try again...
+    private int loginsPerIP;           // maximum login password verifications in progress from one client IP address...
+    private int loginsPerUsername;     // maximum login password verifications in progress for one username...
+    private int passwordHashTarget;    // milliseconds that hashing (or verifying) a password should take, which sets the bcrypt cost...
+    private int passwordHashMinCost;   // the least bcrypt cost to hash passwords at, however slow this machine is...
     private String[] blogs;
 
 
@@ -26,7 +47,11 @@ public class ServerConfig {
 
 
     public Map<String, Cache> getCaches() {
-        return caches;
+
+        // the users indexes have a cache of their own, which older configurations don't mention; give them a modest one if that's the case...
+        Map<String,Cache> result = (caches == null) ? new HashMap<>() : new HashMap<>( caches );
+        result.putIfAbsent( "USERS", new Cache( 4 * 1024 * 1024, 64 * 1024, false ) );
+        return result;
     }
 
 
@@ -65,6 +90,106 @@ public class ServerConfig {
     }
 
 
+    public String getAccessLogDir() {
+        return (accessLogDir == null) ? "accesslogs" : accessLogDir;
+    }
+
+
+    public boolean isBinaryMetadata() {
+        return binaryMetadata;
+    }
+
+
+    public boolean isPackedStorage() {
+        return "packed".equals( storage );
+    }
+
+
+    public long getPackedSegmentSize() {
+        return (packedSegmentSize <= 0) ? 256L * 1024 * 1024 : packedSegmentSize;
+    }
+
+
+    public int getIntegrityCheckRate() {
+        return (integrityCheckRate <= 0) ? 2000 : integrityCheckRate;
+    }
+
+
+    public int getUserWriteDelay() {
+        return (userWriteDelay <= 0) ? 5 : userWriteDelay;
+    }
+
+
+    public int getGroupCommitWindow() {
+        return Math.max( 0, groupCommitWindow );
+    }
+
+
+    public long getOffHeapCacheSize() {
+        return Math.max( 0, offHeapCacheSize );
+    }
+
+
+    public int getImageScalingThreads() {
+        return (imageScalingThreads <= 0) ? 2 : imageScalingThreads;
+    }
+
+
+    public int getImageScalingQueueSize() {
+        return (imageScalingQueueSize <= 0) ? 64 : imageScalingQueueSize;
+    }
+
+
+    public int[] getImageLadder() {
+        return (imageLadder == null) ? new int[0] : imageLadder.clone();
+    }
+
+
+    public String[] getImageVariantTypes() {
+        return (imageVariantTypes == null) ? new String[] { "WEBP" } : imageVariantTypes.clone();
+    }
+
+
+    public int getImageMetadataEntries() {
+        return (imageMetadataEntries <= 0) ? 20000 : imageMetadataEntries;
+    }
+
+
+    public int getLoginThreads() {
+        return (loginThreads <= 0) ? 2 : loginThreads;
+    }
+
+
+    public int getLoginQueueSize() {
+        return (loginQueueSize <= 0) ? 32 : loginQueueSize;
+    }
+
+
+    public int getLoginQueueTimeout() {
+        return (loginQueueTimeout <= 0) ? 2000 : loginQueueTimeout;
+    }
+
+
+    public int getLoginsPerIP() {
+        return (loginsPerIP <= 0) ? 2 : loginsPerIP;
+    }
+
+
+    public int getLoginsPerUsername() {
+        return (loginsPerUsername <= 0) ? 1 : loginsPerUsername;
+    }
+
+
+    public int getPasswordHashTarget() {
+        return (passwordHashTarget <= 0) ? 250 : passwordHashTarget;
+    }
+
+
+    public int getPasswordHashMinCost() {
+        return (passwordHashMinCost <= 0) ? 10 : passwordHashMinCost;
+    }
+
+
     public String[] getBlogs() {
         return blogs;
     }
@@ -107,6 +232,19 @@ public class ServerConfig {
     public static class Cache {
         private long maxCacheSize;
         private long avgEntrySize;
+        private boolean offHeap;      // true if the content of objects in this cache should be held off-heap...
+
+
+        private Cache() {
+            // for Gson...
+        }
+
+
+        private Cache( final long _maxCacheSize, final long _avgEntrySize, final boolean _offHeap ) {
+            maxCacheSize = _maxCacheSize;
+            avgEntrySize = _avgEntrySize;
+            offHeap = _offHeap;
+        }
 
 
         public long getMaxCacheSize() {
@@ -117,5 +255,10 @@ public class ServerConfig {
         public long getAvgEntrySize() {
             return avgEntrySize;
         }
+
+
+        public boolean isOffHeap() {
+            return offHeap;
+        }
     }
 }
@@ -1,5 +1,6 @@
 package com.slightlyloony.blog.events;
 
+import com.slightlyloony.blog.objects.BlogObject;
 import com.slightlyloony.blog.security.BlogSession;
 
 /**
@@ -14,6 +15,9 @@ public enum EventType {
     INFO_REQUEST       ( String.class                ),  // info key
     IMAGE_META_REQUEST ( Integer.class               ),  // count of images
 
+    OBJECT_CREATED     ( BlogObject.class            ),  // the blog object created
+    OBJECT_UPDATED     ( BlogObject.class            ),  // the blog object updated
+
     PAGE_HIT           ( BlogSession.class ),  // session
     SESSION_KILLED     ( BlogSession.class ),  // session
     USER_LOGIN         ( BlogSession.class ),  // session
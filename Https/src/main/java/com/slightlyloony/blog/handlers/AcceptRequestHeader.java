@@ -51,6 +51,23 @@ public class AcceptRequestHeader {
     }
 
 
+    public boolean acceptsExplicitly( final String _mediaType ) {
+
+        if( _mediaType == null )
+            return false;
+
+        String[] parts = _mediaType.split( " */ *" );
+        if( parts.length != 2 )
+            return false;
+
+        for( Accept accept : accepts ) {
+            if( accept.valid && (accept.q > 0) && accept.type.equals( parts[0] ) && accept.subType.equals( parts[1] ) )
+                return true;
+        }
+        return false;
+    }
+
+
     public class Accept implements Comparable<Accept> {
 
         private final String type;
@@ -1,16 +1,15 @@
 package com.slightlyloony.blog.handlers;
 
+import com.slightlyloony.blog.Blog;
 import com.slightlyloony.blog.BlogServer;
+import com.slightlyloony.blog.accesslog.AccessLog;
 import com.slightlyloony.blog.events.EventType;
 import com.slightlyloony.blog.events.Events;
 import com.slightlyloony.blog.objects.BlogObjectMetadata;
 import com.slightlyloony.blog.objects.BlogObjectType;
 import com.slightlyloony.blog.responders.Responder;
+import com.slightlyloony.blog.security.BlogSession;
 import com.slightlyloony.blog.storage.StorageException;
-import com.slightlyloony.blog.util.Timer;
-import com.slightlyloony.common.logging.LU;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
@@ -19,28 +18,29 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 
 import static com.slightlyloony.blog.objects.ContentCompressionState.DO_NOT_COMPRESS;
 
 /**
  * The one and only handler for the blog.  We are deliberately trading the complexity of the normal Jetty "handler chains" for the relative
  * simplicity (to us, anyway!) of straightforward procedural code.
+ * <p>
+ * Every request, whatever its outcome, produces exactly one record in the {@link AccessLog}.  Nothing is formatted or logged synchronously here.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public class BlogHandler extends AbstractHandler implements Handler {
 
-    private static final Logger LOG = LogManager.getLogger();
-
-
     @Override
     public void handle( final String _s,
                         final Request _request, final HttpServletRequest _httpServletRequest, final HttpServletResponse _httpServletResponse )
             throws IOException, ServletException {
 
-        Timer t = new Timer();
-
-        LOG.info( LU.msg( "{0} {2}{1} from {3}", _request.getMethod(), _s, _request.getHeader( "Host" ), _request.getRemoteHost() ) );
+        long start = System.nanoTime();
+        long initialized = 0;
+        long metadataRead = 0;
+        AccessLog.beginRequest();
 
         BlogResponse response = new BlogResponse( _httpServletResponse );
         BlogRequest request = new BlogRequest( _request, _httpServletRequest, response );
@@ -51,10 +51,7 @@ public class BlogHandler extends AbstractHandler implements Handler {
                 response.setResponseCode( HttpServletResponse.SC_NOT_FOUND );
                 request.handled();
 
-                t.mark();
-
-                LOG.info( LU.msg( "{0} {2}{1} from {3} completed (NOT FOUND) in {4}",
-                        _request.getMethod(), _s, _request.getHeader( "Host" ), _request.getRemoteHost(), t.toString() ) );
+                logAccess( request, _request, start, initialized, metadataRead );
                 return;
             }
         }
@@ -64,10 +61,7 @@ public class BlogHandler extends AbstractHandler implements Handler {
             response.setResponseCode( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
             request.handled();
 
-            t.mark();
-
-            LOG.info( LU.msg( "{0} {2}{1} from {3} completed (but had error reading users) in {4}",
-                    _request.getMethod(), _s, _request.getHeader( "Host" ), _request.getRemoteHost(), t.toString() ) );
+            logAccess( request, _request, start, initialized, metadataRead );
             return;
         }
 
@@ -79,13 +73,12 @@ public class BlogHandler extends AbstractHandler implements Handler {
             response.setResponseCode( HttpServletResponse.SC_FORBIDDEN );
             request.handled();
 
-            t.mark();
-
-            LOG.info( LU.msg( "{0} {2}{1} from {3} completed (but request is unauthorized) in {4}",
-                    _request.getMethod(), _s, _request.getHeader( "Host" ), _request.getRemoteHost(), t.toString() ) );
+            logAccess( request, _request, start, initialized, metadataRead );
             return;
     }
 
+        initialized = System.nanoTime();
+
         // try to read the metadata for this request...
         BlogObjectMetadata metadata;
         try {
@@ -98,17 +91,19 @@ public class BlogHandler extends AbstractHandler implements Handler {
             response.setResponseCode( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
             request.handled();
 
-            t.mark();
-
-            LOG.info( LU.msg( "{0} {2}{1} from {3} completed (but resulting object is invalid) in {4}",
-                    _request.getMethod(), _s, _request.getHeader( "Host" ), _request.getRemoteHost(), t.toString() ) );
+            logAccess( request, _request, start, initialized, metadataRead );
             return;
         }
 
-        // if this is an HTML page, update the session and stats...
+        metadataRead = System.nanoTime();
+
+        // if this is an HTML page, update the session (making one if need be; nothing else does) and stats...
         if( metadata.getContentType() == BlogObjectType.HTML ) {
-            request.getSession().setLastPage( request.getId().getID() );
-            Events.fire(EventType.PAGE_HIT, request.getSession() );
+            BlogSession session = request.getSession();
+            if( session != null ) {
+                session.setLastPage( request.getId().getID() );
+                Events.fire(EventType.PAGE_HIT, session );
+            }
         }
 
         // get our responder, if we have one...
@@ -119,10 +114,7 @@ public class BlogHandler extends AbstractHandler implements Handler {
             response.setResponseCode( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
             request.handled();
 
-            t.mark();
-
-            LOG.info( LU.msg( "{0} {2}{1} from {3} completed (but method type is not supported) in {4}",
-                    _request.getMethod(), _s, _request.getHeader( "Host" ), _request.getRemoteHost(), t.toString() ) );
+            logAccess( request, _request, start, initialized, metadataRead );
             return;
         }
 
@@ -132,10 +124,7 @@ public class BlogHandler extends AbstractHandler implements Handler {
             response.setResponseCode( HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE );
             request.handled();
 
-            t.mark();
-
-            LOG.info( LU.msg( "{0} {2}{1} from {3} completed (but media type is not supported) in {4}",
-                    _request.getMethod(), _s, _request.getHeader( "Host" ), _request.getRemoteHost(), t.toString() ) );
+            logAccess( request, _request, start, initialized, metadataRead );
             return;
         }
 
@@ -157,16 +146,24 @@ public class BlogHandler extends AbstractHandler implements Handler {
             response.setResponseCode( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
             request.handled();
 
-            t.mark();
-
-            LOG.info( LU.msg( "{0} {2}{1} from {3} completed (but had a problem in responder) in {4}",
-                    _request.getMethod(), _s, _request.getHeader( "Host" ), _request.getRemoteHost(), t.toString() ) );
+            logAccess( request, _request, start, initialized, metadataRead );
             return;
         }
 
-        t.mark();
+        logAccess( request, _request, start, initialized, metadataRead );
+    }
+
+
+    /**
+     * Records the completed request in the access log.
+     */
+    private void logAccess( final BlogRequest _blogRequest, final Request _request, final long _start, final long _initialized,
+                            final long _metadataRead ) {
 
-        LOG.info( LU.msg( "{0} {2}{1} from {3} completed in {4}",
-                _request.getMethod(), _s, _request.getHeader( "Host" ), _request.getRemoteHost(), t.toString() ) );
+        Blog blog = _blogRequest.getBlog();
+        InetSocketAddress remote = _request.getRemoteInetSocketAddress();
+        AccessLog.INSTANCE.record( (blog == null) ? null : blog.getName(), (remote == null) ? null : remote.getAddress(), _blogRequest.getId(),
+                _blogRequest.getRequestMethod(), _blogRequest.getAccessRequirements(), _request.getResponse().getStatus(),
+                _request.getResponse().getContentCount(), _start, _initialized, _metadataRead, System.nanoTime() );
     }
 }
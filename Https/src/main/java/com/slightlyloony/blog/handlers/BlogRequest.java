@@ -10,7 +10,10 @@ import com.slightlyloony.blog.objects.BlogID;
 import com.slightlyloony.blog.security.*;
 import com.slightlyloony.blog.storage.StorageException;
 import com.slightlyloony.blog.users.Gender;
+import com.slightlyloony.blog.users.ImmutableUser;
 import com.slightlyloony.blog.users.User;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.http.HttpVersion;
 import org.eclipse.jetty.server.Request;
 
@@ -19,6 +22,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -26,6 +31,11 @@ import java.util.regex.Pattern;
  */
 public class BlogRequest {
 
+    private static final Logger LOG = LogManager.getLogger();
+
+    // the anonymous users for requests without a session, by blog name; they're immutable, so all those requests share them...
+    private static final Map<String,User> PUBLIC_USERS = new ConcurrentHashMap<>();
+
     private final Request request;
     private final HttpServletRequest httpServletRequest;
     private final BlogResponse response;
@@ -38,6 +48,7 @@ public class BlogRequest {
     private BlogObjectAccessRequirements accessRequirements;
     private BlogUserRights rights;
     private BlogSession session;
+    private boolean sessionChecked;  // true once we've tried to make a session for this request, if it didn't come with one...
     private RequestCookies cookies;
     private AcceptRequestHeader accepts;
     private AcceptEncodingRequestHeader acceptEncodings;
@@ -78,25 +89,10 @@ public class BlogRequest {
 
     private void initializeSession() {
 
-        // if we've already got a session, claim it...
+        // if we've already got a session, claim it; otherwise we'll make one only if it's needed (see getSession())...
         RequestCookie sessionCookie = cookies.get( Constants.SESSION_COOKIE_NAME );
         if( sessionCookie != null )
             session = BlogSessionManager.INSTANCE.claimSession( sessionCookie.getValue() );
-
-        // if we don't have a session, and it's a public URI, then we should have one...
-        if( (session == null) && (accessRequirements == BlogObjectAccessRequirements.PUBLIC) ) {
-
-            // create a new session...
-            session = BlogSessionManager.INSTANCE.create();
-
-            // if we succeeded, then set a name and set a session cookie...
-            if( session != null ) {
-                session.setName( httpServletRequest.getRemoteAddr() );  // default the name to the client's IP address...
-                response.addCookie( new ResponseCookie( Constants.SESSION_COOKIE_NAME, session.getToken(), blog.getName(), "/" ) );
-                session.setEntryPage( id.getID() );
-                session.setLastPage( id.getID() );
-            }
-        }
     }
 
 
@@ -107,9 +103,9 @@ public class BlogRequest {
         if( user != null)
             return;
 
-        // if we don't have a session, then we're going to have a generic public user, which we manufacture...
+        // if we don't have a session, then we're going to have a generic public user, shared by all such requests...
         if( session == null ) {
-            user = makeAnonymousUser( BlogAccessRight.PUBLIC );
+            user = PUBLIC_USERS.computeIfAbsent( blog.getName(), _name -> new ImmutableUser( makeAnonymousUser( BlogAccessRight.PUBLIC ) ) );
             return;
         }
 
@@ -136,6 +132,32 @@ public class BlogRequest {
     }
 
 
+    /*
+     * Makes a new session for this request (if its URI is public), sets its cookie, and finds the user for it.
+     */
+    private void createSession() {
+
+        if( accessRequirements != BlogObjectAccessRequirements.PUBLIC )
+            return;
+
+        // create a new session, then set a name and set a session cookie...
+        session = BlogSessionManager.INSTANCE.create();
+        session.setName( httpServletRequest.getRemoteAddr() );  // default the name to the client's IP address...
+        response.addCookie( new ResponseCookie( Constants.SESSION_COOKIE_NAME, session.getToken(), blog.getName(), "/" ) );
+        session.setEntryPage( id.getID() );
+        session.setLastPage( id.getID() );
+
+        // now that we have a session, we may have a logged-in user (by cookie), and at least an anonymous user with session rights...
+        try {
+            initializeUser();
+        }
+        catch( StorageException e ) {
+            LOG.error( "Problem finding the user for a new session", e );
+            user = makeAnonymousUser( BlogAccessRight.PUBLIC, BlogAccessRight.SESSION );
+        }
+    }
+
+
     private User makeAnonymousUser( final BlogAccessRight... _rights ) {
         User anonUser = new User( id, "anonymous******", blog.getName(), "impossible hash" );
         anonUser.setFirstName( "Anonymous" );
@@ -197,7 +219,8 @@ public class BlogRequest {
 
 
     public void logoutUser() {
-        session.removeUser();
+        if( session != null )
+            session.removeUser();
     }
 
 
@@ -268,12 +291,43 @@ public class BlogRequest {
     }
 
 
+    /**
+     * Returns true if this request's "Accept" header names the given media type itself (not just through a wildcard), with a non-zero quality.
+     * Clients send wildcards like "image/*" whether or not they can actually display every image type, so this is the test for offering a type
+     * that not every client supports.
+     *
+     * @param _mediaType the media type (e.g. "image/webp")
+     * @return true if the client explicitly accepts the given media type
+     */
+    public boolean acceptsExplicitly( final String _mediaType ) {
+        return accepts.acceptsExplicitly( _mediaType );
+    }
+
+
+    public String getRemoteAddress() {
+        return httpServletRequest.getRemoteAddr();
+    }
+
+
     public AcceptEncodingRequestHeader getAcceptEncodings() {
         return acceptEncodings;
     }
 
 
+    /**
+     * Returns the session for this request.  If the request didn't come with one, one is made (and its cookie set) the first time this is called,
+     * if the request's URI is public; otherwise this returns null.  Sessions are made only when they're needed - for HTML pages, and by responders
+     * that keep something in the session - so that requests for anything else (stylesheets, scripts, images), and crawlers that never send the
+     * cookie back, don't each leave a session behind.  Until then, the request has a shared anonymous user with just public rights.
+     *
+     * @return the session for this request, or null if there is none
+     */
     public BlogSession getSession() {
+
+        if( (session == null) && !sessionChecked ) {
+            sessionChecked = true;
+            createSession();
+        }
         return session;
     }
 
@@ -7,12 +7,15 @@ import com.slightlyloony.blog.objects.BlogObjectType;
 import com.slightlyloony.blog.util.S;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.server.HttpOutput;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * @author Tom Dilatush  tom@dilatush.com
@@ -73,11 +76,40 @@ public class BlogResponse {
     }
 
 
+    public void setVary( final String _vary ) {
+        response.setHeader( "Vary", _vary );
+    }
+
+
     public OutputStream getOutputStream() throws IOException {
         return response.getOutputStream();
     }
 
 
+    /**
+     * Writes the remaining bytes in the given buffer to the response.  When the response is Jetty's, the buffer is handed straight to Jetty, so
+     * content in a direct (off-heap) buffer is written without ever being copied to the heap.  Otherwise, it's copied through a small heap buffer.
+     *
+     * @param _buffer the buffer to write
+     * @throws IOException on any I/O problem
+     */
+    public void write( final ByteBuffer _buffer ) throws IOException {
+
+        ServletOutputStream os = response.getOutputStream();
+        if( os instanceof HttpOutput ) {
+            ((HttpOutput) os).write( _buffer );
+            return;
+        }
+
+        byte[] chunk = new byte[Math.min( 8192, _buffer.remaining() )];
+        while( _buffer.hasRemaining() ) {
+            int length = Math.min( chunk.length, _buffer.remaining() );
+            _buffer.get( chunk, 0, length );
+            os.write( chunk, 0, length );
+        }
+    }
+
+
     public void sendJSONResponse( final String _json ) throws IOException {
         InputStream is = new ByteArrayInputStream( S.toUTF8( _json ) );
         ByteStreams.copy( is, getOutputStream() );
@@ -1,6 +1,7 @@
 package com.slightlyloony.blog.objects;
 
 import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
+import com.slightlyloony.blog.storage.SlabAllocator;
 import com.slightlyloony.blog.storage.StorageInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -28,11 +29,54 @@ public class BlogContentObject extends BlogObject {
      */
     public synchronized void makeReadyForCache( final boolean _mayCompress ) {
 
+        // content that's already off-heap was made ready before it was moved...
+        if( content instanceof OffHeapObjectContent )
+            return;
+
         // make sure we have bytes, and attempt to compress them...
         content = content.asCompressedBytes( _mayCompress );
     }
 
 
+    /**
+     * Moves this instance's content (which must already be ready for the cache) into a block from the given allocator.  If the allocator has no
+     * room, the content stays on the heap.
+     *
+     * @param _allocator the allocator to get off-heap memory from
+     * @return true if the content is now off-heap
+     */
+    public synchronized boolean moveOffHeap( final SlabAllocator _allocator ) {
+
+        if( content instanceof OffHeapObjectContent )
+            return true;
+        if( !(content instanceof BytesObjectContent) )
+            return false;
+
+        BytesObjectContent bytes = (BytesObjectContent) content;
+        byte[] data = bytes.getBytes();
+        SlabAllocator.Block block = _allocator.allocate( data.length );
+        if( block == null )
+            return false;
+
+        block.getBuffer().put( data );
+        content = new OffHeapObjectContent( block, bytes.getCompressionState() );
+        return true;
+    }
+
+
+    /**
+     * Retires this instance's off-heap content, if it has any, returning its block to the given allocator.  This is invoked when the cache evicts
+     * this instance.  Anyone still holding this instance may continue to use it for the allocator's grace period.
+     *
+     * @param _allocator the allocator the content's block came from
+     */
+    public synchronized void releaseOffHeap( final SlabAllocator _allocator ) {
+
+        if( content instanceof OffHeapObjectContent )
+            _allocator.retire( ((OffHeapObjectContent) content).getBlock() );
+    }
+
+
     @Override
     public synchronized int size() {
         return baseSize() + 8 + content.size();
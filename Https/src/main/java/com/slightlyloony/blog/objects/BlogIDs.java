@@ -1,5 +1,7 @@
 package com.slightlyloony.blog.objects;
 
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.RateLimiter;
 import com.slightlyloony.blog.ServerInit;
 import com.slightlyloony.blog.handlers.HandlerIllegalStateException;
 import com.slightlyloony.blog.storage.Constants;
@@ -10,15 +12,32 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.slightlyloony.common.logging.LU.msg;
 
 /**
- * The main responsibility of this singleton class is to issue a new blog object ID when one is needed.  To do this, it examines the file system
- * upon startup to find the highest blog object ID that's actually on the file system, then issues new IDs starting at the next one.  Key to the
- * integrity of this scheme is that new blog object IDs should be issued as new objects are created and written.
+ * The main responsibility of this singleton class is to issue a new blog object ID when one is needed.  To do this, it finds the highest blog
+ * object ID that's actually on the file system upon startup, then issues new IDs starting at the next one.  Key to the integrity of this scheme is
+ * that new blog object IDs should be issued as new objects are created and written.
+ * <p>
+ * IDs are reserved in blocks of 1,024 (exactly the IDs in one leaf directory), and each reservation is durably recorded in a small file before any
+ * ID in the block is issued.  After a restart (or a crash) only the leaf directory of the last reserved block needs to be examined to find the
+ * highest ID in use.  Issuing an ID within the current block is just an atomic increment; only the thread that crosses into a new block waits for
+ * the reservation to be written.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
@@ -28,187 +47,350 @@ public class BlogIDs {
 
     private static final Logger LOG = LogManager.getLogger();
 
-    private long lastUsedID;
+    private static final int CHECK_THREADS = 4;              // the integrity check is I/O bound, so this needn't track the processor count...
+    private static final long MODIFICATION_GUARD_MS = 2000;  // leaf directories modified more recently than this are always re-examined...
+    private static final ForkJoinPool CHECK_POOL = new ForkJoinPool( CHECK_THREADS );
+
+    private static final int LEAF_BITS = 10;                 // the last two characters of an ID (its position within a leaf directory)...
+
+    private final AtomicLong lastUsedID = new AtomicLong();
+    private volatile long reservedThrough;                   // the highest ID that may be issued without another reservation...
+    private File objectsRoot;
+    private File reservationFile;
+    private IntegrityManifest manifest;
 
 
     /**
-     * Reads the file system to determine the last used blog object ID.
+     * Determines the last used blog object ID.  Normally this reads the reservation file to find the block of IDs most recently reserved, then
+     * examines only the one leaf directory holding that block - so the time this takes doesn't depend on the size of the object store.  If there's
+     * no reservation file (the first startup after an upgrade, or a brand new object store), the highest ID is found by walking down the directory
+     * tree instead, and the reservation file is created.
      */
     public void init() {
 
         Timer t = new Timer();
 
-        // get the root of our object storage...
-        File dir = new File( ServerInit.getConfig().getContentRoot(), Constants.OBJECTS_ROOT );
+        String root = ServerInit.getConfig().getContentRoot();
+        objectsRoot = new File( root, Constants.OBJECTS_ROOT );
+        reservationFile = new File( root, Constants.BLOG_ID_RESERVATION );
+
+        long reserved = readReservation();
+        long found;
+        if( reserved >= 0 ) {
 
-        // dive down through four levels of highest used two-digit directory names...
-        // TODO: note that this will fail if there are any FILES with valid base64url two character names in these directories...
-        // TODO: the integrity check does look for this, but only every 30 minutes...
-        for( int i = 0; i < 4; i++ ) {
+            // nothing above the reserved block can have been issued, and every ID below it was issued before the block was reserved...
+            long block = reserved >>> LEAF_BITS;
+            found = Math.max( highestIn( leafDir( block ), 4 ), (block << LEAF_BITS) - 1 );
+            LOG.info( msg( "Recovered from reserved block ending at blog object ID {0}", reserved ) );
+        }
+        else {
+            found = highestIn( objectsRoot, 0 );
+            LOG.info( "No blog object ID reservation file; examined the whole object store" );
+        }
+
+        lastUsedID.set( Math.max( found, 0 ) );
+        reservedThrough = -1;
+        reserveThrough( lastUsedID.get() );
+
+        t.mark();
+        LOG.info( msg( "Found highest used blog object ID ({0}) in {1}", lastUsedID.get(), t.toString() ) );
+
+        // schedule an integrity check every 30 minutes, limited to the configured rate so it doesn't compete with serving requests...
+        RateLimiter limiter = RateLimiter.create( ServerInit.getConfig().getIntegrityCheckRate() );
+        ExecutionService.INSTANCE.scheduleWithFixedDelay( () -> integrityCheck( limiter ), 30, 30, TimeUnit.MINUTES );
+    }
 
-            // sort dirs by base64url value of name...
-            String[] dirs = dir.list( ( _dir, _name ) -> _name.length() == 2 && ID.isValid( _name ) );
-            Arrays.sort( dirs, ( _name1, _name2 ) -> -1 * ID.compare( _name1, _name2 ) );
 
-            // the first result is the highest used dir; concatenate it...
-            dir = new File( dir, dirs[0] );
+    /*
+     * Returns the highest blog object ID found at or below the given directory, which is at the given level (0 for the objects root, 4 for a leaf
+     * directory), or -1 if there are none.  Subdirectories are examined highest first, moving on to the next lower one when a subtree is empty.
+     */
+    private long highestIn( final File _dir, final int _level ) {
+
+        // at a leaf directory, get the highest file name, using just the first 10 characters of each file name...
+        if( _level == 4 ) {
+            String[] files = _dir.list( ( _d, _name ) -> (_name.length() >= 10) && ID.isValid( _name.substring( 0, 10 ) ) );
+            long highest = -1;
+            if( files != null )
+                for( String file : files )
+                    highest = Math.max( highest, ID.decode( file.substring( 0, 10 ) ) );
+            return highest;
         }
 
-        // now get the highest file name, using just the first 10 characters of each file name...
-        String[] files = dir.list( (_dir, _name) -> (_name.length() >= 10) && ID.isValid( _name.substring( 0, 10 ) ) );
-        Arrays.sort( files, ( _name1, _name2 ) -> -1 * ID.compare( _name1.substring( 0, 10 ), _name2.substring( 0, 10 ) ) );
+        // otherwise, sort dirs by base32 value of name, highest first...
+        String[] dirs = _dir.list( ( _d, _name ) -> (_name.length() == 2) && ID.isValid( _name ) && new File( _d, _name ).isDirectory() );
+        if( dirs == null )
+            return -1;
+        Arrays.sort( dirs, ( _name1, _name2 ) -> -1 * ID.compare( _name1, _name2 ) );
 
-        // get the value we found...
-        // TODO: note that this will fail if the highest directory is empty...
-        lastUsedID = ID.decode( files[0].substring( 0, 10 ) );
+        for( String dir : dirs ) {
+            long highest = highestIn( new File( _dir, dir ), _level + 1 );
+            if( highest >= 0 )
+                return highest;
+        }
+        return -1;
+    }
 
-        t.mark();
-        LOG.info( msg( "Found highest used blog object ID ({0}) in {1}", lastUsedID, t.toString() ) );
 
-        // schedule an integrity check every 30 minutes...
-        ExecutionService.INSTANCE.scheduleAtFixedRate( (Runnable) BlogIDs.INSTANCE::integrityCheck, 30, 30, TimeUnit.MINUTES );
+    /*
+     * Returns the leaf directory holding the given block of blog object IDs.
+     */
+    private File leafDir( final long _block ) {
+        String path = ID.encode( _block << LEAF_BITS );
+        return new File( objectsRoot, path.substring( 0, 2 ) + File.separator + path.substring( 2, 4 ) + File.separator + path.substring( 4, 6 )
+                + File.separator + path.substring( 6, 8 ) );
+    }
+
+
+    /*
+     * Returns the last blog object ID recorded in the reservation file, or -1 if there is no reservation file or it can't be read.
+     */
+    private long readReservation() {
+
+        if( !reservationFile.exists() )
+            return -1;
+
+        try {
+            String text = new String( Files.readAllBytes( reservationFile.toPath() ), StandardCharsets.US_ASCII ).trim();
+            return Long.parseLong( text );
+        }
+        catch( IOException | NumberFormatException e ) {
+            LOG.warn( msg( "Ignoring unreadable blog object ID reservation file {0}: {1}", reservationFile.getName(), e.getMessage() ) );
+            return -1;
+        }
+    }
+
+
+    /*
+     * Durably reserves the block of blog object IDs holding the given ID (if it isn't already reserved), so that after a crash no ID above the
+     * reserved block can have been issued.  The reservation is written to a temporary file, forced to disk, and renamed into place.
+     */
+    private synchronized void reserveThrough( final long _id ) {
+
+        if( _id <= reservedThrough )
+            return;
+
+        // with no reservation file, there's nothing to record (this is the packed storage case)...
+        if( reservationFile == null ) {
+            reservedThrough = Long.MAX_VALUE;
+            return;
+        }
+
+        long through = (((_id >>> LEAF_BITS) + 1) << LEAF_BITS) - 1;
+        File temp = new File( reservationFile.getParentFile(), reservationFile.getName() + ".tmp" );
+        try {
+            try( FileChannel channel = FileChannel.open( temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING ) ) {
+                ByteBuffer buffer = ByteBuffer.wrap( (Long.toString( through ) + "\n").getBytes( StandardCharsets.US_ASCII ) );
+                while( buffer.hasRemaining() )
+                    channel.write( buffer );
+                channel.force( true );
+            }
+            Files.move( temp.toPath(), reservationFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch( IOException e ) {
+            throw new HandlerIllegalStateException( "Could not reserve blog object IDs through " + through + ": " + e.getMessage(), e );
+        }
+
+        reservedThrough = through;
+        LOG.info( msg( "Reserved blog object IDs through {0}", through ) );
+    }
+
+
+    /**
+     * Initializes with the given last used blog object ID, for storage backends (like {@link com.slightlyloony.blog.storage.PackedStorage}) that
+     * don't keep objects in the directory tree that {@link #init()} and {@link #integrityCheck()} examine.
+     *
+     * @param _lastUsedID the highest blog object ID in use
+     */
+    public void init( final long _lastUsedID ) {
+        lastUsedID.set( _lastUsedID );
+        reservedThrough = Long.MAX_VALUE;
+        LOG.info( msg( "Highest used blog object ID is {0}", _lastUsedID ) );
     }
 
 
     /**
-     * Reads the file system to see if there are any missing blog object IDs.
+     * Reads the file system to see if there are any missing blog object IDs.  Leaf directories that haven't changed since they last passed (according
+     * to the integrity manifest) are skipped, and the directories are examined in parallel.
      *
      * @return true if the blog object IDs check out ok, with no errors
      */
     public boolean integrityCheck() {
+        return integrityCheck( null );
+    }
+
+
+    /*
+     * Runs the integrity check, limiting the rate at which directory entries are examined if a rate limiter is given.
+     */
+    private boolean integrityCheck( final RateLimiter _limiter ) {
 
         Timer t = new Timer();
 
         // get the root of our object storage and verify that it's valid...
-        File dir = new File( ServerInit.getConfig().getContentRoot(), Constants.OBJECTS_ROOT );
+        File contentRoot = new File( ServerInit.getConfig().getContentRoot() );
+        File dir = new File( contentRoot, Constants.OBJECTS_ROOT );
         if( !dir.exists() || !dir.isDirectory() || !dir.canRead() || !dir.canWrite() ) {
             LOG.fatal( msg( "Blog object root {0} doesn't exist, isn't a directory, can't be read, or can't be written", dir.getAbsolutePath() ) );
             return false;
         }
 
-        // recursively examine our directories and verify validity of their contents...
-        boolean result = examine( dir, "", true );
+        // load our manifest, the first time through...
+        synchronized( this ) {
+            if( manifest == null )
+                manifest = new IntegrityManifest( new File( contentRoot, Constants.INTEGRITY_MANIFEST ) );
+        }
+
+        // examine our directories in parallel, then remember what passed...
+        CheckCounts counts = new CheckCounts();
+        boolean result = CHECK_POOL.invoke( new Examine( dir, "", manifest, _limiter, counts ) );
+        manifest.save();
 
         t.mark();
-        LOG.info( msg( "Checked blog object store integrity in {0}", t.toString() ) );
+        LOG.info( msg( "Checked blog object store integrity ({0} leaf directories examined, {1} unchanged) in {2}", counts.examined.get(),
+                counts.skipped.get(), t.toString() ) );
 
         return result;
     }
 
 
-    private boolean examine( final File _dir, final String _path, final boolean _truth ) {
+    /*
+     * Examines one directory in the object store.  Leaf directories (those whose path is eight characters) must contain only files named with blog
+     * IDs that begin with the path, and whose last two characters run contiguously from zero.  Other directories must contain only directories with
+     * two character names that run contiguously from zero; each of these is examined by a subtask.
+     */
+    private static class Examine extends RecursiveTask<Boolean> {
 
-        boolean newTruth = _truth;
+        private static final long serialVersionUID = 1L;  // tasks are never actually serialized...
 
-        // get all our entries, sorted by encoded value...
-        File[] entries = _dir.listFiles( ( _dirr, _name ) -> {
-            if( _name.startsWith( "." ) ) return false;
-            int i = _name.indexOf( '.' );
-            String n = _name.substring( 0, (i < 0) ? _name.length() : i );
-            return n.length() >= 2 && ID.isValid( n );
-        } );
-        if( entries == null )
-            throw new HandlerIllegalStateException( "Given entry is not a directory: " + _dir.getName() );
-        Arrays.sort( entries, ( _file1, _file2 ) -> ID.compare( _file1.getName().substring( 0, 10 ), _file2.getName().substring( 0, 10 ) ) );
+        private final File dir;
+        private final String path;
+        private final IntegrityManifest manifest;
+        private final RateLimiter limiter;
+        private final CheckCounts counts;
 
-        // if we're at the lowest level, look for files...
-        if( _path.length() == 8 ) {
 
-            // iterate over all our files, making sure they're files and in the right sequence...
-            int expectedEntry = 0;
-            for( File entry : entries ) {
-
-                String name = entry.getName();
+        private Examine( final File _dir, final String _path, final IntegrityManifest _manifest, final RateLimiter _limiter,
+                         final CheckCounts _counts ) {
+            dir = _dir;
+            path = _path;
+            manifest = _manifest;
+            limiter = _limiter;
+            counts = _counts;
+        }
 
-                // skip any hidden files...
-                if( entry.isHidden() )
-                    continue;
 
-                // make sure we have an actual usable file here..
-                if( !entry.exists() || !entry.isFile() || !entry.canRead() || !entry.canWrite() ) {
-                    LOG.error( msg( "Entry {0} doesn't exist, isn't a file, can't be read, or can't be written", name ) );
-                    return false;
-                }
+        @Override
+        protected Boolean compute() {
 
-                // make sure our file name is at least 10 characters and is comprised of valid base64url characters...
-                if( (name.length() < 10) || !ID.isValid( name.substring( 0, 10 ) ) ) {
-                    LOG.error( msg( "Entry {0} isn't named with a valid blog ID", name ) );
-                    return false;
-                }
+            boolean isLeaf = (path.length() == 8);
 
-                // make sure the first 8 digits match our directory hierarchy...
-                if( !_path.equals( name.substring( 0, 8 ) ) ) {
-                    LOG.error( msg( "Entry {0} isn't in the right directory: {1}", name, _dir.getAbsolutePath() ) );
-                    return false;
-                }
+            // if this leaf hasn't changed since it last passed, we're done (note that we get the time BEFORE we list the entries)...
+            long modified = dir.lastModified();
+            if( isLeaf && manifest.isUnchanged( path, modified ) ) {
+                counts.skipped.incrementAndGet();
+                return true;
+            }
 
-                // make sure the last 2 digits are what we expected...
-                String lastTwo = name.substring( 8, 10 );
-                int val = (ID.get( lastTwo.charAt( 0 ) ) << 5) + ID.get( lastTwo.charAt( 1 ) );
-                if( val != expectedEntry ) {
-                    String expectedDigits = "" + ID.get( expectedEntry >>> 5 ) + ID.get( expectedEntry & 0x1f );
-                    LOG.error( msg( "Entry {0} doesn't have the expected last two digits: {1}", name, expectedDigits ) );
-                    return false;
+            // get all our (non-hidden) entries, sorted by encoded value...
+            int nameLength = isLeaf ? 10 : 2;
+            File[] entries = dir.listFiles( ( _dir, _name ) -> !_name.startsWith( "." ) );
+            if( entries == null ) {
+                LOG.error( msg( "Entry {0} isn't a directory, or can't be read", dir.getAbsolutePath() ) );
+                return fail();
+            }
+            if( limiter != null )
+                limiter.acquire( Math.max( 1, entries.length ) );
+            for( File entry : entries ) {
+                String name = entry.getName();
+                if( (name.length() < nameLength) || !ID.isValid( name.substring( 0, nameLength ) ) || (!isLeaf && (name.length() != 2)) ) {
+                    LOG.error( msg( "Entry {0} isn't named with a valid blog ID{1}", name, isLeaf ? "" : " 2 digit part" ) );
+                    return fail();
                 }
-
-                expectedEntry++;
             }
+            Arrays.sort( entries, ( _file1, _file2 ) -> ID.compare( _file1.getName().substring( 0, nameLength ),
+                    _file2.getName().substring( 0, nameLength ) ) );
 
-            return newTruth;
-        }
-
-        // otherwise, look for directories...
-        else {
-
-            // iterate over all our files, making sure they're files and in the right sequence...
+            // make sure our entries are usable, and named in the right sequence...
             int expectedEntry = 0;
             for( File entry : entries ) {
 
                 String name = entry.getName();
 
-                // skip any hidden files...
-                if( entry.isHidden() )
-                    continue;
-
-                // make sure we have an actual usable directory here..
-                if( !entry.exists() || !entry.isDirectory() || !entry.canRead() || !entry.canWrite() ) {
-                    LOG.error( msg( "Entry {0} doesn't exist, isn't a directory, can't be read, or can't be written", name ) );
-                    return false;
+                // make sure we have an actual usable file or directory here...
+                if( isLeaf ? !entry.isFile() : !entry.isDirectory() ) {
+                    LOG.error( msg( "Entry {0} isn''t a {1}", name, isLeaf ? "file" : "directory" ) );
+                    return fail();
+                }
+                if( !entry.canRead() || !entry.canWrite() ) {
+                    LOG.error( msg( "Entry {0} can''t be read, or can''t be written", name ) );
+                    return fail();
                 }
 
-                // make sure our file name is exactly 2 characters and is comprised of valid base64url characters...
-                if( (name.length() != 2) || !ID.isValid( name.charAt( 0 ) ) || !ID.isValid( name.charAt( 1 ) ) ) {
-                    LOG.error( msg( "Entry {0} isn't named with a valid blog ID 2 digit part", name ) );
-                    return false;
+                // make sure the first 8 digits of a file name match our directory hierarchy...
+                if( isLeaf && !path.equals( name.substring( 0, 8 ) ) ) {
+                    LOG.error( msg( "Entry {0} isn''t in the right directory: {1}", name, dir.getAbsolutePath() ) );
+                    return fail();
                 }
 
-                // make sure the 2 digits are what we expected...
-                int val = (ID.get( name.charAt( 0 ) ) << 6) + ID.get( name.charAt( 1 ) );
+                // make sure the last 2 digits are what we expected...
+                int offset = nameLength - 2;
+                int val = (ID.get( name.charAt( offset ) ) << 5) + ID.get( name.charAt( offset + 1 ) );
                 if( val != expectedEntry ) {
-                    String expectedDigits = "" + ID.get( expectedEntry >>> 6 ) + ID.get( expectedEntry & 0x3f );
-                    LOG.error( msg( "Entry {0} doesn't have the expected name: {1}", name, expectedDigits ) );
-                    return false;
+                    String expectedDigits = "" + ID.get( expectedEntry >>> 5 ) + ID.get( expectedEntry & 0x1f );
+                    LOG.error( msg( "Entry {0} doesn''t have the expected last two digits: {1}", name, expectedDigits ) );
+                    return fail();
                 }
 
                 expectedEntry++;
+            }
 
-                // now go explore the subdirectory...
-                newTruth = newTruth && examine( new File( _dir, name ), _path + name, newTruth );
+            // if we're a leaf, we passed - but we only remember that if our modification time can't be confused with one that's still changing...
+            if( isLeaf ) {
+                counts.examined.incrementAndGet();
+                if( System.currentTimeMillis() - modified > MODIFICATION_GUARD_MS )
+                    manifest.passed( path, modified );
+                return true;
             }
 
-            return newTruth;
+            // otherwise, go explore all our subdirectories...
+            List<Examine> subtasks = Lists.newArrayListWithCapacity( entries.length );
+            for( File entry : entries )
+                subtasks.add( new Examine( entry, path + entry.getName(), manifest, limiter, counts ) );
+            boolean result = true;
+            for( Examine subtask : invokeAll( subtasks ) )
+                result &= subtask.join();
+            return result;
+        }
+
+
+        private boolean fail() {
+            if( path.length() == 8 )
+                manifest.failed( path );
+            return false;
         }
     }
 
 
+    private static class CheckCounts {
+        private final AtomicInteger examined = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+    }
+
+
     /**
      * Returns the next available (unused) blog object ID, in sequential order.
      *
      * @return the next available (unused) blog object ID
      */
-    public synchronized BlogID getNextBlogID() {
+    public BlogID getNextBlogID() {
+
+        long id = lastUsedID.incrementAndGet();
+        if( id > reservedThrough )
+            reserveThrough( id );
 
-        BlogID result =  BlogID.create( ID.encode( ++lastUsedID ) );
+        BlogID result =  BlogID.create( ID.encode( id ) );
         if( result == null)
             throw new HandlerIllegalStateException( "Could not create next blog object ID" );
 
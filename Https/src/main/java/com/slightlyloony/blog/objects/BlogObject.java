@@ -42,7 +42,9 @@ public abstract class BlogObject {
 
 
     /**
-     * The approximate memory requirements for this instance, in bytes.
+     * The approximate memory requirements for this instance, in bytes.  This is a cheap estimate, used for statistics and to decide whether an
+     * object is small enough to be worth caching; the caches themselves budget by measured size (see {@link
+     * com.slightlyloony.blog.util.MemorySizer}).
      *
      * @return the approximate number of bytes this instance occupies in memory
      */
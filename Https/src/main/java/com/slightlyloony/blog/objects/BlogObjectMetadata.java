@@ -8,8 +8,12 @@ import com.slightlyloony.blog.responders.ResponderType;
 import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
 import com.slightlyloony.blog.storage.StorageException;
 import com.slightlyloony.blog.templates.sources.SourceType;
+import com.slightlyloony.blog.util.ID;
+import com.slightlyloony.blog.util.S;
 
+import java.io.*;
 import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.Map;
 
 import static com.slightlyloony.blog.objects.ContentCompressionState.UNCOMPRESSED;
@@ -20,6 +24,10 @@ import static com.slightlyloony.blog.objects.ContentCompressionState.UNCOMPRESSE
  * of this class.  There is a custom serializer in order to provide one particular little bit of magic: fields with default values are completely
  * left out, in order to minimize the size of the on-disk object.  This is less for saving space (as each file will be 4k minimum anyway), and more
  * about minimizing the deserialization time.
+ * <p>
+ * There is also a compact, versioned binary encoding (see {@link #toBinary()} and {@link #fromBinary(byte[],BlogID,BlogObjectType,
+ * BlogObjectAccessRequirements)}), which decodes in a few microseconds instead of a Gson reflection pass.  Binary files start with the bytes
+ * {@link #BINARY_MAGIC}, which can never begin a JSON file, so {@link BlogObjectMetadataCodec} can read either format from the same store.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
@@ -27,6 +35,45 @@ public class BlogObjectMetadata extends BlogObjectObject {
 
     private static final int DEFAULT_EXTERNAL_CACHE_SECONDS = 30 * 24 * 3600;
 
+    /**
+     * The first bytes of every binary-encoded metadata file: a zero byte (never valid at the start of a JSON file), "BM", and the format version.
+     * Version 1 wrote strings with {@link DataOutput#writeUTF(String)}, which can't hold more than 64k bytes; version 2 writes them as a length
+     * followed by that many bytes of UTF-8.  Both versions can be read.
+     */
+    public static final byte[] BINARY_MAGIC = { 0, 'B', 'M', 2 };
+
+    // bits in the binary encoding's field presence mask; a field whose bit is clear has its default value...
+    private static final int F_EXTERNAL_CACHE_SECONDS = 1;
+    private static final int F_NOT_SERVER_CACHEABLE   = 1 << 1;
+    private static final int F_COMPRESSION_STATE      = 1 << 2;
+    private static final int F_METHODS                = 1 << 3;
+    private static final int F_UNAUTHORIZED_RESPONDER = 1 << 4;
+    private static final int F_CONTENT                = 1 << 5;
+    private static final int F_CONTENT_TYPE           = 1 << 6;
+    private static final int F_SOURCE_TYPE            = 1 << 7;
+    private static final int F_HEIGHT                 = 1 << 8;
+    private static final int F_WIDTH                  = 1 << 9;
+    private static final int F_SIZE                   = 1 << 10;
+    private static final int F_SCALED_IMAGES          = 1 << 11;
+    private static final int F_SOURCE                 = 1 << 12;
+    private static final int F_CREDIT                 = 1 << 13;
+    private static final int F_DESCRIPTION            = 1 << 14;
+    private static final int F_TITLE                  = 1 << 15;
+    private static final int F_WHERE                  = 1 << 16;
+    private static final int F_WHEN                   = 1 << 17;
+    private static final int F_CAMERA_SETTINGS        = 1 << 18;
+    private static final int F_CAMERA_ORIENTATION     = 1 << 19;
+    private static final int F_SCALED_IMAGE_TYPES     = 1 << 20;
+
+    // Gson instances are threadsafe and expensive to build, so we build ours just once...
+    private static final Gson READER = new GsonBuilder()
+            .registerTypeAdapter( BlogID.class, new BlogID.Deserializer() )
+            .create();
+    private static final Gson WRITER = new GsonBuilder()
+            .registerTypeAdapter( BlogID.class, new BlogID.Serializer() )
+            .registerTypeAdapter( BlogObjectMetadata.class, new Serializer() )
+            .create();
+
     private int externalCacheSeconds;
     private boolean serverCacheable;
     private ContentCompressionState compressionState;
@@ -301,6 +348,36 @@ public class BlogObjectMetadata extends BlogObjectObject {
     }
 
 
+    /**
+     * Returns the scaled images of the given type, in ascending order of height, or null if there are none.
+     *
+     * @param _type the type of scaled images wanted, or null for those in the base image's type
+     * @return the scaled images of the given type, or null if there are none
+     */
+    public ScaledImage[] getScaledImages( final BlogObjectType _type ) {
+
+        if( scaledImages == null )
+            return null;
+
+        // the usual case is that there are no variants, and we can just return what we have...
+        if( (_type == null) && !hasVariants() )
+            return scaledImages;
+
+        ScaledImage[] result = Arrays.stream( scaledImages ).filter( _image -> _image.type == _type ).toArray( ScaledImage[]::new );
+        return (result.length == 0) ? null : result;
+    }
+
+
+    private boolean hasVariants() {
+
+        if( scaledImages != null )
+            for( ScaledImage scaledImage : scaledImages )
+                if( scaledImage.type != null )
+                    return true;
+        return false;
+    }
+
+
     public int getSize() {
         return size;
     }
@@ -317,28 +394,35 @@ public class BlogObjectMetadata extends BlogObjectObject {
     }
 
 
+    /**
+     * Records one scaled version of an image.  Its type is null if it's in the base image's type; otherwise it's a variant in another type (see
+     * {@link com.slightlyloony.blog.config.ServerConfig#getImageVariantTypes()}), which may be the same size as the base image.
+     */
     public static class ScaledImage {
 
         public final BlogID content;
         public final int height;
         public final int width;
+        public final BlogObjectType type;
 
 
         public ScaledImage( final BlogID _content, final int _height, final int _width ) {
+            this( _content, _height, _width, null );
+        }
+
+
+        public ScaledImage( final BlogID _content, final int _height, final int _width, final BlogObjectType _type ) {
             content = _content;
             height = _height;
             width = _width;
+            type = _type;
         }
     }
 
 
     public String toJSON() throws StorageException {
         try {
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter( BlogID.class, new BlogID.Serializer() );
-            gsonBuilder.registerTypeAdapter( BlogObjectMetadata.class, new Serializer()   );
-            Gson gson = gsonBuilder.create();
-            return gson.toJson( this, getClass() );
+            return WRITER.toJson( this, getClass() );
         }
         catch( Exception e ) {
             throw new StorageException( "Problem serializing BlogObjectMetadata to JSON", e );
@@ -349,10 +433,18 @@ public class BlogObjectMetadata extends BlogObjectObject {
     public static BlogObjectMetadata fromJSON( final String _json, final BlogID _id, final BlogObjectType _type,
                                                final BlogObjectAccessRequirements _accessRequirements ) throws StorageException {
         try {
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter( BlogObjectMetadata.class, new Deserializer( _id, _type, _accessRequirements ) );
-            Gson gson = gsonBuilder.create();
-            return gson.fromJson( _json, BlogObjectMetadata.class );
+            BlogObjectMetadata result = READER.fromJson( _json, BlogObjectMetadata.class );
+
+            // empty (or blank) JSON parses to nothing at all...
+            if( result == null )
+                throw new StorageException( "Problem deserializing BlogObjectMetadata from JSON: empty object " + _id );
+
+            // then we set the fields from our file name...
+            result.type = _type;
+            result.blogID = _id;
+            result.accessRequirements = _accessRequirements;
+
+            return result;
         }
         catch( JsonSyntaxException e ) {
             throw new StorageException( "Problem deserializing BlogObjectMetadata from JSON: " + e.getMessage(), e );
@@ -360,37 +452,197 @@ public class BlogObjectMetadata extends BlogObjectObject {
     }
 
 
-    private static class Deserializer implements JsonDeserializer {
+    /**
+     * Returns true if the given bytes are a binary-encoded metadata object (as opposed to JSON).
+     *
+     * @param _bytes the bytes to test
+     * @return true if the given bytes are binary-encoded metadata
+     */
+    public static boolean isBinary( final byte[] _bytes ) {
+        return (_bytes.length >= BINARY_MAGIC.length) && (_bytes[0] == BINARY_MAGIC[0]) && (_bytes[1] == BINARY_MAGIC[1])
+                && (_bytes[2] == BINARY_MAGIC[2]);
+    }
 
-        private final BlogID id;
-        private final BlogObjectType type;
-        private final BlogObjectAccessRequirements accessRequirements;
 
+    /**
+     * Encodes this instance in the compact binary format.  As with JSON, fields that have their default value are left out entirely; a presence
+     * mask records which fields follow.  Enums are written by name, so reordering an enum doesn't corrupt the store.
+     *
+     * @return the encoded bytes
+     * @throws StorageException on any problem
+     */
+    public byte[] toBinary() throws StorageException {
+
+        int mask = 0;
+        if( externalCacheSeconds != DEFAULT_EXTERNAL_CACHE_SECONDS ) mask |= F_EXTERNAL_CACHE_SECONDS;
+        if( !serverCacheable )                                      mask |= F_NOT_SERVER_CACHEABLE;
+        if( compressionState != UNCOMPRESSED )                      mask |= F_COMPRESSION_STATE;
+        if( methods.size() > 0 )                                    mask |= F_METHODS;
+        if( unauthorizedResponder != null )                         mask |= F_UNAUTHORIZED_RESPONDER;
+        if( content != null )                                       mask |= F_CONTENT;
+        if( contentType != null )                                   mask |= F_CONTENT_TYPE;
+        if( sourceType != null )                                    mask |= F_SOURCE_TYPE;
+        if( height != 0 )                                           mask |= F_HEIGHT;
+        if( width != 0 )                                            mask |= F_WIDTH;
+        if( size != 0 )                                             mask |= F_SIZE;
+        if( scaledImages != null )                                  mask |= F_SCALED_IMAGES;
+        if( source != null )                                        mask |= F_SOURCE;
+        if( credit != null )                                        mask |= F_CREDIT;
+        if( description != null )                                  mask |= F_DESCRIPTION;
+        if( title != null )                                         mask |= F_TITLE;
+        if( where != null )                                         mask |= F_WHERE;
+        if( when != null )                                          mask |= F_WHEN;
+        if( cameraSettings != null )                                mask |= F_CAMERA_SETTINGS;
+        if( cameraOrientation != null )                             mask |= F_CAMERA_ORIENTATION;
+        if( hasVariants() )                                         mask |= F_SCALED_IMAGE_TYPES;
 
-        public Deserializer( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements ) {
-            id = _id;
-            type = _type;
-            accessRequirements = _accessRequirements;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream( 128 );
+            DataOutputStream dos = new DataOutputStream( baos );
+
+            dos.write( BINARY_MAGIC );
+            dos.writeInt( mask );
+
+            if( (mask & F_EXTERNAL_CACHE_SECONDS) != 0 ) dos.writeInt( externalCacheSeconds );
+            if( (mask & F_COMPRESSION_STATE)      != 0 ) writeString( dos, compressionState.name() );
+            if( (mask & F_METHODS)                != 0 ) {
+                dos.writeByte( methods.size() );
+                for( Map.Entry<RequestMethod,ResponderType> entry : methods.entrySet() ) {
+                    writeString( dos, entry.getKey().name() );
+                    writeString( dos, entry.getValue().name() );
+                }
+            }
+            if( (mask & F_UNAUTHORIZED_RESPONDER) != 0 ) writeString( dos, unauthorizedResponder.name() );
+            if( (mask & F_CONTENT)                != 0 ) dos.writeLong( content.asLong() );
+            if( (mask & F_CONTENT_TYPE)           != 0 ) writeString( dos, contentType.name() );
+            if( (mask & F_SOURCE_TYPE)            != 0 ) writeString( dos, sourceType.name() );
+            if( (mask & F_HEIGHT)                 != 0 ) dos.writeInt( height );
+            if( (mask & F_WIDTH)                  != 0 ) dos.writeInt( width );
+            if( (mask & F_SIZE)                   != 0 ) dos.writeInt( size );
+            if( (mask & F_SCALED_IMAGES)          != 0 ) {
+                dos.writeShort( scaledImages.length );
+                for( ScaledImage scaledImage : scaledImages ) {
+                    dos.writeLong( scaledImage.content.asLong() );
+                    dos.writeInt( scaledImage.height );
+                    dos.writeInt( scaledImage.width );
+                }
+            }
+            if( (mask & F_SOURCE)                 != 0 ) writeString( dos, source );
+            if( (mask & F_CREDIT)                 != 0 ) writeString( dos, credit );
+            if( (mask & F_DESCRIPTION)            != 0 ) writeString( dos, description );
+            if( (mask & F_TITLE)                  != 0 ) writeString( dos, title );
+            if( (mask & F_WHERE)                  != 0 ) writeString( dos, where );
+            if( (mask & F_WHEN)                   != 0 ) writeString( dos, when );
+            if( (mask & F_CAMERA_SETTINGS)        != 0 ) writeString( dos, cameraSettings );
+            if( (mask & F_CAMERA_ORIENTATION)     != 0 ) writeString( dos, cameraOrientation );
+
+            // the types of the scaled images come last, so that older readers (which stop at the camera orientation) can still read the rest...
+            if( (mask & F_SCALED_IMAGE_TYPES)     != 0 )
+                for( ScaledImage scaledImage : scaledImages )
+                    writeString( dos, (scaledImage.type == null) ? "" : scaledImage.type.name() );
+
+            dos.flush();
+            return baos.toByteArray();
+        }
+        catch( IOException e ) {
+            throw new StorageException( "Problem serializing BlogObjectMetadata to binary", e );
         }
+    }
 
 
-        @Override
-        public BlogObjectMetadata deserialize( final JsonElement _jsonElement, final Type _type,
-                                               final JsonDeserializationContext _jsonDeserializationContext ) throws JsonParseException {
+    /**
+     * Decodes a metadata object from the compact binary format produced by {@link #toBinary()}.
+     *
+     * @param _bytes the encoded bytes
+     * @param _id the blog ID of the metadata object
+     * @param _type the blog object type
+     * @param _accessRequirements the access requirements
+     * @return the decoded metadata object
+     * @throws StorageException on any problem, including an unsupported format version
+     */
+    public static BlogObjectMetadata fromBinary( final byte[] _bytes, final BlogID _id, final BlogObjectType _type,
+                                                 final BlogObjectAccessRequirements _accessRequirements ) throws StorageException {
 
-            // first we deserialize it...
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter( BlogID.class, new BlogID.Deserializer()                           );
-            Gson gson = gsonBuilder.create();
-            BlogObjectMetadata result = gson.fromJson( _jsonElement, BlogObjectMetadata.class );
+        if( !isBinary( _bytes ) )
+            throw new StorageException( "Not a binary BlogObjectMetadata: " + _id );
+        int version = _bytes[3];
+        if( (version < 1) || (version > BINARY_MAGIC[3]) )
+            throw new StorageException( "Unsupported binary BlogObjectMetadata version " + version + ": " + _id );
 
-            // then we set the fields from our file name...
-            result.type = type;
-            result.blogID = id;
-            result.accessRequirements = accessRequirements;
+        try {
+            DataInputStream dis = new DataInputStream( new ByteArrayInputStream( _bytes, BINARY_MAGIC.length, _bytes.length - BINARY_MAGIC.length ) );
+
+            BlogObjectMetadata result = new BlogObjectMetadata();
+            result.type = _type;
+            result.blogID = _id;
+            result.accessRequirements = _accessRequirements;
+
+            int mask = dis.readInt();
+
+            if( (mask & F_EXTERNAL_CACHE_SECONDS) != 0 ) result.externalCacheSeconds = dis.readInt();
+            if( (mask & F_NOT_SERVER_CACHEABLE)   != 0 ) result.serverCacheable = false;
+            if( (mask & F_COMPRESSION_STATE)      != 0 ) result.compressionState = ContentCompressionState.valueOf( readString( dis, version ) );
+            if( (mask & F_METHODS)                != 0 ) {
+                int count = dis.readUnsignedByte();
+                for( int i = 0; i < count; i++ )
+                    result.methods.put( RequestMethod.valueOf( readString( dis, version ) ), ResponderType.valueOf( readString( dis, version ) ) );
+            }
+            if( (mask & F_UNAUTHORIZED_RESPONDER) != 0 ) result.unauthorizedResponder = ResponderType.valueOf( readString( dis, version ) );
+            if( (mask & F_CONTENT)                != 0 ) result.content = BlogID.create( ID.encode( dis.readLong() ) );
+            if( (mask & F_CONTENT_TYPE)           != 0 ) result.contentType = BlogObjectType.valueOf( readString( dis, version ) );
+            if( (mask & F_SOURCE_TYPE)            != 0 ) result.sourceType = SourceType.valueOf( readString( dis, version ) );
+            if( (mask & F_HEIGHT)                 != 0 ) result.height = dis.readInt();
+            if( (mask & F_WIDTH)                  != 0 ) result.width = dis.readInt();
+            if( (mask & F_SIZE)                   != 0 ) result.size = dis.readInt();
+            if( (mask & F_SCALED_IMAGES)          != 0 ) {
+                ScaledImage[] images = new ScaledImage[dis.readUnsignedShort()];
+                for( int i = 0; i < images.length; i++ )
+                    images[i] = new ScaledImage( BlogID.create( ID.encode( dis.readLong() ) ), dis.readInt(), dis.readInt() );
+                result.scaledImages = images;
+            }
+            if( (mask & F_SOURCE)                 != 0 ) result.source = readString( dis, version );
+            if( (mask & F_CREDIT)                 != 0 ) result.credit = readString( dis, version );
+            if( (mask & F_DESCRIPTION)            != 0 ) result.description = readString( dis, version );
+            if( (mask & F_TITLE)                  != 0 ) result.title = readString( dis, version );
+            if( (mask & F_WHERE)                  != 0 ) result.where = readString( dis, version );
+            if( (mask & F_WHEN)                   != 0 ) result.when = readString( dis, version );
+            if( (mask & F_CAMERA_SETTINGS)        != 0 ) result.cameraSettings = readString( dis, version );
+            if( (mask & F_CAMERA_ORIENTATION)     != 0 ) result.cameraOrientation = readString( dis, version );
+            if( (mask & F_SCALED_IMAGE_TYPES)     != 0 ) {
+                ScaledImage[] images = result.scaledImages;
+                for( int i = 0; i < images.length; i++ ) {
+                    String type = readString( dis, version );
+                    if( !type.isEmpty() )
+                        images[i] = new ScaledImage( images[i].content, images[i].height, images[i].width, BlogObjectType.valueOf( type ) );
+                }
+            }
 
             return result;
         }
+        catch( IOException | IllegalArgumentException e ) {
+            throw new StorageException( "Problem deserializing BlogObjectMetadata from binary: " + e.getMessage(), e );
+        }
+    }
+
+
+    private static void writeString( final DataOutputStream _dos, final String _string ) throws IOException {
+        byte[] bytes = S.toUTF8( _string );
+        _dos.writeInt( bytes.length );
+        _dos.write( bytes );
+    }
+
+
+    private static String readString( final DataInputStream _dis, final int _version ) throws IOException {
+
+        if( _version == 1 )
+            return _dis.readUTF();
+
+        int length = _dis.readInt();
+        if( (length < 0) || (length > _dis.available()) )
+            throw new IOException( "Invalid string length: " + length );
+        byte[] bytes = new byte[length];
+        _dis.readFully( bytes );
+        return S.fromUTF8( bytes );
     }
 
 
@@ -1,13 +1,19 @@
 package com.slightlyloony.blog.objects;
 
+import com.slightlyloony.blog.ServerInit;
+import com.slightlyloony.blog.config.ServerConfig;
 import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
 import com.slightlyloony.blog.storage.StorageCodec;
 import com.slightlyloony.blog.storage.StorageCodecBase;
 import com.slightlyloony.blog.storage.StorageException;
+import com.slightlyloony.blog.util.S;
 
 import java.io.File;
 
 /**
+ * Reads and writes metadata files.  Reads accept either the JSON or the binary encoding (sniffed from the first bytes of the file), so a store can be
+ * migrated in place; writes use whichever encoding the server configuration selects.
+ *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public class BlogObjectMetadataCodec extends StorageCodecBase implements StorageCodec {
@@ -27,7 +33,7 @@ public class BlogObjectMetadataCodec extends StorageCodecBase implements Storage
     public BlogObject read( final File _file, final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
                             final ContentCompressionState _compressionState ) throws StorageException {
 
-        return BlogObjectMetadata.fromJSON( getFileAsString( _file ), _id, _type, _accessRequirements );
+        return decode( getFileAsBytes( _file ), _id, _type, _accessRequirements, _compressionState );
     }
 
 
@@ -42,13 +48,8 @@ public class BlogObjectMetadataCodec extends StorageCodecBase implements Storage
     @Override
     public BlogObject create( final BlogObject _object, final File _file ) throws StorageException {
 
-        if( _object instanceof BlogObjectMetadata ) {
-            BlogObjectMetadata metadata = (BlogObjectMetadata) _object;
-            writeStringToFile( metadata.toJSON(), _file );
-            return _object;
-        }
-        else
-            throw new StorageException( "Expected BlogObjectMetadata object, got: " + _object.getClass().getSimpleName() );
+        writeBytesToFile( encode( _object ), _file );
+        return _object;
     }
 
 
@@ -63,4 +64,45 @@ public class BlogObjectMetadataCodec extends StorageCodecBase implements Storage
     public BlogObject update( final BlogObject _object, final File _file ) throws StorageException {
         return create( _object, _file );
     }
+
+
+    /**
+     * Decodes a blog object from the given bytes, as produced by {@link #encode(BlogObject)}.
+     *
+     * @param _bytes              the encoded blog object
+     * @param _id                 the blog ID for the blog object being read
+     * @param _type               the blog object type
+     * @param _accessRequirements the blog object's access requirements
+     * @param _compressionState   the blog object's compression state
+     * @return the blog object decoded
+     * @throws StorageException on any problem
+     */
+    @Override
+    public BlogObject decode( final byte[] _bytes, final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
+                              final ContentCompressionState _compressionState ) throws StorageException {
+
+        if( BlogObjectMetadata.isBinary( _bytes ) )
+            return BlogObjectMetadata.fromBinary( _bytes, _id, _type, _accessRequirements );
+        return BlogObjectMetadata.fromJSON( S.fromUTF8( _bytes ), _id, _type, _accessRequirements );
+    }
+
+
+    /**
+     * Encodes the given blog object into the bytes that persist it.
+     *
+     * @param _object the blog object to encode
+     * @return the encoded blog object
+     * @throws StorageException on any problem
+     */
+    @Override
+    public byte[] encode( final BlogObject _object ) throws StorageException {
+
+        if( _object instanceof BlogObjectMetadata ) {
+            BlogObjectMetadata metadata = (BlogObjectMetadata) _object;
+            ServerConfig config = ServerInit.getConfig();
+            return ((config != null) && config.isBinaryMetadata()) ? metadata.toBinary() : S.toUTF8( metadata.toJSON() );
+        }
+        else
+            throw new StorageException( "Expected BlogObjectMetadata object, got: " + _object.getClass().getSimpleName() );
+    }
 }
@@ -23,6 +23,7 @@ public enum BlogObjectType {
     PNG       ( "png",   "image/png",                            IMAGE,  false, new BlogContentObjectCodec()  ),
     GIF       ( "gif",   "image/gif",                            IMAGE,  false, new BlogContentObjectCodec()  ),
     ICO       ( "ico",   "image/x-icon",                         IMAGE,  false, new BlogContentObjectCodec()  ),
+    WEBP      ( "webp",  "image/webp",                           IMAGE,  false, new BlogContentObjectCodec()  ),
     HTML      ( "html",  "text/html",                            TEXT,   true,  new BlogContentObjectCodec()  ),
     CSS       ( "css",   "text/css",                             TEXT,   true,  new BlogContentObjectCodec()  ),
     JSON      ( "json",  "application/json",                     TEXT,   true,  new BlogContentObjectCodec()  ),
@@ -40,7 +41,7 @@ public enum BlogObjectType {
     KML       ( "kml",   "application/vnd.google-earth.kml+xml", TEXT,   true,  new BlogContentObjectCodec()  ),
     XHTML     ( "xhtml", "application/xhtml+xml",                TEXT,   true,  new BlogContentObjectCodec()  ),
     USERDATA  ( "user",  null,                                   USER,   false, new UserCodec()               ),
-    USERINDEX ( "users", null,                                   USER,   false, new UsersCodec()              ),
+    USERINDEX ( "users", null,                                   USERS,  false, new UsersCodec()              ),
     INFO      ( "info",  null,                                   TEXT,   true,  new InfoCodec()               );
 
 
@@ -0,0 +1,121 @@
+package com.slightlyloony.blog.objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * Records the last successfully checked state of each leaf directory in the object store, so that the integrity check only needs to re-examine the
+ * leaf directories that have changed since.  A leaf directory's state is its modification time, which the file system updates whenever an entry is
+ * added to, removed from, or renamed within it - exactly the changes that could break the naming rules the integrity check enforces.  Changes to
+ * the permissions of individual files don't change the directory's modification time; those are caught only when the directory is re-examined for
+ * some other reason, or when the manifest is deleted.
+ * <p>
+ * The manifest is persisted as a text file with one line per leaf directory (its eight character path and its modification time), written to a
+ * temporary file and renamed into place so that a crash never leaves a partial manifest.  A missing or unreadable manifest simply causes a full check.
+ * <p>
+ * This class is threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+class IntegrityManifest {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private final File file;
+    private final Map<String,Long> leaves;
+
+
+    /**
+     * Creates a new instance of this class, loading the manifest in the given file if it exists.
+     *
+     * @param _file the file the manifest is persisted in
+     */
+    IntegrityManifest( final File _file ) {
+
+        file = _file;
+        leaves = new ConcurrentHashMap<>();
+
+        if( !file.exists() )
+            return;
+
+        try( BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "US-ASCII" ) ) ) {
+            String line;
+            while( (line = reader.readLine()) != null ) {
+                int space = line.indexOf( ' ' );
+                if( space != 8 )
+                    throw new IOException( "Malformed line: " + line );
+                leaves.put( line.substring( 0, 8 ), Long.parseLong( line.substring( 9 ) ) );
+            }
+        }
+        catch( IOException | NumberFormatException e ) {
+            LOG.warn( msg( "Ignoring unreadable integrity manifest {0}: {1}", file.getName(), e.getMessage() ) );
+            leaves.clear();
+        }
+    }
+
+
+    /**
+     * Returns true if the leaf directory with the given path passed its last check, and hasn't been modified since.
+     *
+     * @param _path the eight character path of the leaf directory
+     * @param _modified the leaf directory's current modification time
+     * @return true if the leaf directory is unchanged since it last passed
+     */
+    boolean isUnchanged( final String _path, final long _modified ) {
+        Long checked = leaves.get( _path );
+        return (checked != null) && (checked == _modified) && (_modified != 0);
+    }
+
+
+    /**
+     * Records that the leaf directory with the given path passed its check, as of the given modification time.
+     *
+     * @param _path the eight character path of the leaf directory
+     * @param _modified the leaf directory's modification time, as read before it was examined
+     */
+    void passed( final String _path, final long _modified ) {
+        leaves.put( _path, _modified );
+    }
+
+
+    /**
+     * Records that the leaf directory with the given path failed its check (or no longer exists), so that it will be re-examined next time.
+     *
+     * @param _path the eight character path of the leaf directory
+     */
+    void failed( final String _path ) {
+        leaves.remove( _path );
+    }
+
+
+    /**
+     * Persists this manifest.
+     */
+    void save() {
+
+        File temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+        try {
+            try( Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( temp ), "US-ASCII" ) ) ) {
+                for( Map.Entry<String,Long> leaf : new TreeMap<>( leaves ).entrySet() ) {
+                    writer.write( leaf.getKey() );
+                    writer.write( ' ' );
+                    writer.write( Long.toString( leaf.getValue() ) );
+                    writer.write( '\n' );
+                }
+            }
+            Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch( IOException e ) {
+            LOG.error( msg( "Problem saving integrity manifest {0}: {1}", file.getName(), e.getMessage() ) );
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.slightlyloony.blog.objects;
+
+import com.slightlyloony.blog.handlers.BlogRequest;
+import com.slightlyloony.blog.handlers.BlogResponse;
+import com.slightlyloony.blog.handlers.HandlerIllegalStateException;
+import com.slightlyloony.blog.storage.SlabAllocator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Content held in a block of off-heap memory from a {@link SlabAllocator}, for cached objects whose bodies are large and rarely change (images and
+ * binaries).  When the content can be sent as it is, it's written straight from the off-heap block to the response, with no copy through the heap.
+ * Otherwise (when it has to be compressed or decompressed on the way out, or when it's wanted as bytes or a stream) it's copied to the heap first.
+ * <p>
+ * The block is held for the duration of each use, so that the cache evicting the content in the meantime doesn't free it out from under us.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class OffHeapObjectContent extends BlogObjectContent {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private final SlabAllocator.Block block;
+
+
+    /**
+     * Creates a new instance of this class holding the content in the given (already filled) block.  The new instance takes over the caller's hold
+     * on the block.
+     *
+     * @param _block the block holding the content
+     * @param _compressionState the compression state of the content
+     */
+    public OffHeapObjectContent( final SlabAllocator.Block _block, final ContentCompressionState _compressionState ) {
+        super( _compressionState, _block.getLength() );
+
+        block = _block;
+    }
+
+
+    @Override
+    public void write( final BlogRequest _request, final BlogResponse _response, final boolean _mayCompress ) {
+
+        // if the content needs compressing or decompressing on the way out, we have to stream it through the heap...
+        if( compressionState.mayCompress() && _mayCompress && _request.acceptsGZIP() ) {
+            copy( _response, contIS(), gzipOS( respOS( _response ) ), true, -1 );
+            return;
+        }
+        if( compressionState.isCompressed() && !_request.acceptsGZIP() ) {
+            copy( _response, gzipIS( contIS() ), respOS( _response ), false, -1 );
+            return;
+        }
+
+        // otherwise we can send it directly from our block...
+        if( compressionState.isCompressed() )
+            _response.setContentEncoding( "gzip" );
+        _response.setContentLength( contentLength );
+
+        retain();
+        try {
+            _response.write( block.getBuffer() );
+        }
+        catch( IOException e ) {
+            String msg = "Problem writing off-heap content to response output stream";
+            LOG.error( msg );
+            throw new HandlerIllegalStateException( msg, e );
+        }
+        finally {
+            block.release();
+        }
+    }
+
+
+    @Override
+    protected InputStream contIS() {
+        return new ByteArrayInputStream( copyBytes() );
+    }
+
+
+    @Override
+    public int size() {
+        return 8 + contentLength;
+    }
+
+
+    @Override
+    public BytesObjectContent asBytes() {
+        return new BytesObjectContent( copyBytes(), compressionState, contentLength );
+    }
+
+
+    /**
+     * Returns a copy of this content on the heap.  Content is only moved off-heap after it has been made ready for the cache, so it's already
+     * compressed if it's going to be.
+     *
+     * @param _mayCompress ignored
+     * @return a copy of this content, as bytes
+     */
+    @Override
+    public BytesObjectContent asCompressedBytes( final boolean _mayCompress ) {
+        return asBytes();
+    }
+
+
+    @Override
+    public StreamObjectContent asStream() {
+        return asBytes().asStream();
+    }
+
+
+    /**
+     * Returns the block holding this content, so that it can be retired when this content is evicted from the cache.
+     *
+     * @return the block holding this content
+     */
+    public SlabAllocator.Block getBlock() {
+        return block;
+    }
+
+
+    private byte[] copyBytes() {
+
+        retain();
+        try {
+            byte[] result = new byte[contentLength];
+            ByteBuffer buffer = block.getBuffer();
+            buffer.get( result );
+            return result;
+        }
+        finally {
+            block.release();
+        }
+    }
+
+
+    private void retain() {
+        if( !block.retain() )
+            throw new HandlerIllegalStateException( "Off-heap content was used after it was freed" );
+    }
+}
@@ -0,0 +1,241 @@
+package com.slightlyloony.blog.responders;
+
+import com.google.gson.JsonObject;
+import com.slightlyloony.blog.ServerInit;
+import com.slightlyloony.blog.handlers.BlogRequest;
+import com.slightlyloony.blog.storage.AtomicFiles;
+import com.slightlyloony.blog.storage.Constants;
+import com.slightlyloony.blog.util.Json;
+import com.slightlyloony.blog.util.S;
+import com.slightlyloony.common.ExecutionService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * The cost model {@link ScalableImageResponder} uses to decide whether making a new scaled image is worth it: whether the time to make it is less
+ * than the time saved by sending a smaller image.  Both sides of that comparison are measured on this server rather than guessed:
+ * <ul>
+ *     <li>the cost of scaling, in microseconds per megapixel of work (the pixels decoded plus the pixels produced), measured by the
+ *     {@link ImageScaler} for each image it scales, decode through encode; and</li>
+ *     <li>the throughput of sending images, in bytes per microsecond, measured for each class of client (see {@link #getClientClass(BlogRequest)})
+ *     on responses large enough that writing them has to wait on the network.</li>
+ * </ul>
+ * Each is kept as an exponentially weighted moving average, starting from the old fixed guesses: 10,000 microseconds per megapixel (the old
+ * 0.01 microseconds per source pixel touched, which is about the pixels decoded) and 1.25 bytes per microsecond (10 Mbps).  The model is persisted
+ * in the content root every few minutes and at shutdown, so that it doesn't have to be learned again after every restart.
+ * <p>
+ * This class is a singleton.  It is threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ImageCostModel {
+
+    public static final ImageCostModel INSTANCE = new ImageCostModel();
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final double WEIGHT = 0.1;                     // the weight of each new sample in the moving averages...
+    private static final double DEFAULT_SCALING = 10000;          // microseconds per megapixel (10 ns per pixel)...
+    private static final double DEFAULT_THROUGHPUT = 1.25;        // bytes per microsecond (10 Mbps)...
+    private static final long MIN_SEND_BYTES = 64 * 1024;         // smaller responses just fill Jetty's buffer, so they don't tell us anything...
+    private static final int SAVE_MINUTES = 5;
+
+    private Model model;
+    private ScheduledFuture<?> saver;
+
+
+    private ImageCostModel() {
+        model = new Model();
+    }
+
+
+    /**
+     * Loads the persisted model (if there is one), and starts saving it periodically.
+     */
+    public synchronized void init() {
+
+        File file = getFile();
+        if( file.exists() ) {
+            try {
+                Model loaded = Json.GSON.fromJson( S.fromUTF8( Files.readAllBytes( file.toPath() ) ), Model.class );
+                if( (loaded != null) && (loaded.usPerMegapixel > 0) && (loaded.throughput != null) )
+                    model = loaded;
+            }
+            catch( IOException | RuntimeException e ) {
+                LOG.warn( msg( "Ignoring unreadable image cost model {0}: {1}", file.getName(), e.getMessage() ) );
+            }
+        }
+
+        if( saver == null )
+            saver = ExecutionService.INSTANCE.scheduleWithFixedDelay( this::save, SAVE_MINUTES, SAVE_MINUTES, TimeUnit.MINUTES );
+        LOG.info( msg( "Image cost model: {0} us per megapixel scaled, {1} scaling samples", model.usPerMegapixel, model.scalingSamples ) );
+    }
+
+
+    /**
+     * Stops the periodic saving, and saves the model one last time.
+     */
+    public void shutdown() {
+
+        synchronized( this ) {
+            if( saver != null )
+                saver.cancel( false );
+            saver = null;
+        }
+        save();
+    }
+
+
+    /**
+     * Returns the class of client that made the given request, which (for now) is just whether its user agent says it's a mobile device.
+     *
+     * @param _request the request
+     * @return the client class
+     */
+    public static String getClientClass( final BlogRequest _request ) {
+
+        List<String> agents = _request.getHeaders( "User-Agent" );
+        if( (agents == null) || agents.isEmpty() )
+            return "unknown";
+        String agent = agents.get( 0 );
+        return (agent.contains( "Mobi" ) || agent.contains( "Android" )) ? "mobile" : "desktop";
+    }
+
+
+    /**
+     * Records the time taken to scale an image (including decoding the base image and encoding the result).
+     *
+     * @param _decodedPixels the number of pixels decoded from the base image
+     * @param _scaledPixels the number of pixels in the scaled image
+     * @param _nanos the time taken, in nanoseconds
+     */
+    public synchronized void recordScaling( final long _decodedPixels, final long _scaledPixels, final long _nanos ) {
+
+        double megapixels = (_decodedPixels + _scaledPixels) / 1e6;
+        if( megapixels <= 0 )
+            return;
+        model.usPerMegapixel = average( model.usPerMegapixel, _nanos / 1000.0 / megapixels, model.scalingSamples++ );
+    }
+
+
+    /**
+     * Records the time taken to send an image to a client of the given class.
+     *
+     * @param _clientClass the client class
+     * @param _bytes the number of bytes sent
+     * @param _nanos the time taken, in nanoseconds
+     */
+    public synchronized void recordSend( final String _clientClass, final long _bytes, final long _nanos ) {
+
+        if( (_bytes < MIN_SEND_BYTES) || (_nanos <= 0) )
+            return;
+        Throughput throughput = model.throughput.computeIfAbsent( _clientClass, _class -> new Throughput() );
+        throughput.bytesPerMicrosecond = average( throughput.bytesPerMicrosecond, _bytes * 1000.0 / _nanos, throughput.samples++ );
+    }
+
+
+    /**
+     * Returns the estimated time to scale an image, in microseconds.
+     *
+     * @param _decodedPixels the number of pixels that would be decoded from the base image
+     * @param _scaledPixels the number of pixels in the scaled image
+     * @return the estimated time, in microseconds
+     */
+    public synchronized double getScalingCost( final long _decodedPixels, final long _scaledPixels ) {
+        return model.usPerMegapixel * (_decodedPixels + _scaledPixels) / 1e6;
+    }
+
+
+    /**
+     * Returns the estimated time to send the given number of bytes to a client of the given class, in microseconds.
+     *
+     * @param _clientClass the client class
+     * @param _bytes the number of bytes
+     * @return the estimated time, in microseconds
+     */
+    public synchronized double getSendingCost( final String _clientClass, final double _bytes ) {
+        Throughput throughput = model.throughput.get( _clientClass );
+        return _bytes / ((throughput == null) ? DEFAULT_THROUGHPUT : throughput.bytesPerMicrosecond);
+    }
+
+
+    /**
+     * Returns the current model, as a JSON object.
+     *
+     * @return the model
+     */
+    public synchronized JsonObject getStats() {
+
+        JsonObject result = new JsonObject();
+        result.addProperty( "usPerMegapixel", model.usPerMegapixel );
+        result.addProperty( "scalingSamples", model.scalingSamples );
+        JsonObject clients = new JsonObject();
+        for( Map.Entry<String,Throughput> entry : model.throughput.entrySet() ) {
+            JsonObject client = new JsonObject();
+            client.addProperty( "mbps",    entry.getValue().bytesPerMicrosecond * 8 );
+            client.addProperty( "samples", entry.getValue().samples                 );
+            clients.add( entry.getKey(), client );
+        }
+        result.add( "throughput", clients );
+        return result;
+    }
+
+
+    private void save() {
+
+        String json;
+        synchronized( this ) {
+            json = Json.GSON.toJson( model );
+        }
+        try {
+            AtomicFiles.replace( getFile(), S.toUTF8( json ) );
+        }
+        catch( IOException e ) {
+            LOG.error( msg( "Problem saving image cost model: {0}", e.getMessage() ) );
+        }
+    }
+
+
+    /*
+     * Returns the moving average updated with the given sample.  The first few samples are weighted more heavily, so that the defaults are
+     * forgotten quickly.
+     */
+    private double average( final double _average, final double _sample, final long _samples ) {
+        double weight = Math.max( WEIGHT, 1.0 / (_samples + 2) );
+        return _average + weight * (_sample - _average);
+    }
+
+
+    private File getFile() {
+        return new File( ServerInit.getConfig().getContentRoot(), Constants.IMAGE_COST_MODEL );
+    }
+
+
+    /*
+     * The persisted form of the model.
+     */
+    private static class Model {
+
+        private double usPerMegapixel = DEFAULT_SCALING;
+        private long scalingSamples;
+        private Map<String,Throughput> throughput = new TreeMap<>();
+    }
+
+
+    private static class Throughput {
+
+        private double bytesPerMicrosecond = DEFAULT_THROUGHPUT;
+        private long samples;
+    }
+}
@@ -0,0 +1,294 @@
+package com.slightlyloony.blog.responders;
+
+import com.slightlyloony.blog.handlers.HandlerIllegalArgumentException;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.stream.IntStream;
+
+/**
+ * Static container class for the image scaling engine.  Images are scaled down in two stages: first by repeatedly halving the image (averaging each
+ * 2x2 block of pixels) while it's at least twice the target size, then with a single Lanczos (three lobe) resampling pass to the exact target size.
+ * The halving is cheap and, unlike a single large affine transform, never skips source pixels, so large reductions don't alias; the final pass
+ * only ever reduces by less than two, so its kernel stays small.
+ * <p>
+ * All the work is done on packed ARGB pixels in plain {@code int[]} arrays (premultiplied, if the image has an alpha channel), with each stage
+ * processing rows in parallel on the common fork-join pool.  The source image is read once into an array, and the result is written once into the
+ * returned image; no intermediate {@link BufferedImage}s are made.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ImageDownscaler {
+
+    private static final int LOBES = 3;
+
+
+    /**
+     * Returns a new image with the given dimensions, scaled from the given image.  The result is {@link BufferedImage#TYPE_INT_ARGB} if the
+     * source has an alpha channel, and {@link BufferedImage#TYPE_INT_RGB} otherwise.
+     *
+     * @param _image the image to scale
+     * @param _width the width of the scaled image
+     * @param _height the height of the scaled image
+     * @return the scaled image
+     */
+    public static BufferedImage scale( final BufferedImage _image, final int _width, final int _height ) {
+
+        if( (_image == null) || (_width <= 0) || (_height <= 0) )
+            throw new HandlerIllegalArgumentException( "Missing image, or invalid scaled dimensions: " + _width + "x" + _height );
+
+        boolean alpha = _image.getColorModel().hasAlpha();
+        Pixels pixels = read( _image, alpha );
+
+        // halve while we're at least twice the size we want...
+        while( (pixels.width >= 2 * _width) && (pixels.height >= 2 * _height) )
+            pixels = halve( pixels );
+
+        // then resample to the exact size, one dimension at a time...
+        if( pixels.width != _width )
+            pixels = resampleRows( pixels, _width );
+        if( pixels.height != _height )
+            pixels = resampleColumns( pixels, _height );
+
+        return write( pixels, alpha );
+    }
+
+
+    /*
+     * Reads the given image into packed ARGB pixels, premultiplying if it has alpha.  The common layouts (the int types, and the interleaved byte
+     * layout the JPEG reader produces) are read directly from the raster's data; anything else goes through getRGB().
+     */
+    private static Pixels read( final BufferedImage _image, final boolean _alpha ) {
+
+        int w = _image.getWidth();
+        int h = _image.getHeight();
+        Pixels result = new Pixels( w, h );
+        WritableRaster raster = _image.getRaster();
+        boolean untranslated = (raster.getSampleModelTranslateX() == 0) && (raster.getSampleModelTranslateY() == 0);
+
+        if( untranslated && ((_image.getType() == BufferedImage.TYPE_INT_RGB) || (_image.getType() == BufferedImage.TYPE_INT_ARGB)) ) {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int opaque = (_image.getType() == BufferedImage.TYPE_INT_RGB) ? 0xFF000000 : 0;
+            IntStream.range( 0, h ).parallel().forEach( _y -> {
+                for( int x = 0, i = _y * w; x < w; x++, i++ )
+                    result.data[i] = data[i] | opaque;
+            } );
+        }
+
+        else if( untranslated && (_image.getType() == BufferedImage.TYPE_3BYTE_BGR)
+                && (raster.getSampleModel() instanceof PixelInterleavedSampleModel) ) {
+            PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int stride = model.getScanlineStride();
+            int step = model.getPixelStride();
+            int[] offsets = model.getBandOffsets();  // red, green, blue...
+            IntStream.range( 0, h ).parallel().forEach( _y -> {
+                for( int x = 0, p = _y * stride, i = _y * w; x < w; x++, p += step, i++ )
+                    result.data[i] = 0xFF000000 | ((data[p + offsets[0]] & 0xFF) << 16) | ((data[p + offsets[1]] & 0xFF) << 8)
+                            | (data[p + offsets[2]] & 0xFF);
+            } );
+        }
+
+        else {
+            IntStream.range( 0, h ).parallel().forEach( _y -> _image.getRGB( 0, _y, w, 1, result.data, _y * w, w ) );
+        }
+
+        if( _alpha )
+            IntStream.range( 0, h ).parallel().forEach( _y -> {
+                for( int i = _y * w, end = i + w; i < end; i++ )
+                    result.data[i] = premultiply( result.data[i] );
+            } );
+        return result;
+    }
+
+
+    private static BufferedImage write( final Pixels _pixels, final boolean _alpha ) {
+
+        BufferedImage result = new BufferedImage( _pixels.width, _pixels.height, _alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB );
+        int[] data = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        int w = _pixels.width;
+        IntStream.range( 0, _pixels.height ).parallel().forEach( _y -> {
+            for( int i = _y * w, end = i + w; i < end; i++ )
+                data[i] = _alpha ? unpremultiply( _pixels.data[i] ) : _pixels.data[i];
+        } );
+        return result;
+    }
+
+
+    /*
+     * Halves both dimensions, averaging each 2x2 block (an odd last row or column is dropped).
+     */
+    private static Pixels halve( final Pixels _src ) {
+
+        Pixels dst = new Pixels( _src.width >>> 1, _src.height >>> 1 );
+        int sw = _src.width;
+        IntStream.range( 0, dst.height ).parallel().forEach( _y -> {
+            int row0 = 2 * _y * sw;
+            int row1 = row0 + sw;
+            for( int x = 0, i = _y * dst.width; x < dst.width; x++, i++ ) {
+                int p0 = _src.data[row0 + 2 * x];
+                int p1 = _src.data[row0 + 2 * x + 1];
+                int p2 = _src.data[row1 + 2 * x];
+                int p3 = _src.data[row1 + 2 * x + 1];
+                dst.data[i] = (average( p0 >>> 24, p1 >>> 24, p2 >>> 24, p3 >>> 24 ) << 24)
+                        | (average( (p0 >> 16) & 0xFF, (p1 >> 16) & 0xFF, (p2 >> 16) & 0xFF, (p3 >> 16) & 0xFF ) << 16)
+                        | (average( (p0 >> 8) & 0xFF, (p1 >> 8) & 0xFF, (p2 >> 8) & 0xFF, (p3 >> 8) & 0xFF ) << 8)
+                        | average( p0 & 0xFF, p1 & 0xFF, p2 & 0xFF, p3 & 0xFF );
+            }
+        } );
+        return dst;
+    }
+
+
+    private static Pixels resampleRows( final Pixels _src, final int _width ) {
+
+        Kernel kernel = new Kernel( _src.width, _width );
+        Pixels dst = new Pixels( _width, _src.height );
+        IntStream.range( 0, _src.height ).parallel().forEach( _y -> {
+            int srcRow = _y * _src.width;
+            int dstRow = _y * _width;
+            for( int x = 0; x < _width; x++ )
+                dst.data[dstRow + x] = kernel.apply( x, _src.data, srcRow, 1 );
+        } );
+        return dst;
+    }
+
+
+    private static Pixels resampleColumns( final Pixels _src, final int _height ) {
+
+        Kernel kernel = new Kernel( _src.height, _height );
+        Pixels dst = new Pixels( _src.width, _height );
+        IntStream.range( 0, _height ).parallel().forEach( _y -> {
+            int dstRow = _y * _src.width;
+            for( int x = 0; x < _src.width; x++ )
+                dst.data[dstRow + x] = kernel.apply( _y, _src.data, x, _src.width );
+        } );
+        return dst;
+    }
+
+
+    private static int average( final int _a, final int _b, final int _c, final int _d ) {
+        return (_a + _b + _c + _d + 2) >>> 2;
+    }
+
+
+    private static int premultiply( final int _argb ) {
+
+        int a = _argb >>> 24;
+        if( a == 0xFF )
+            return _argb;
+        return (a << 24) | ((((_argb >> 16) & 0xFF) * a + 127) / 255 << 16) | ((((_argb >> 8) & 0xFF) * a + 127) / 255 << 8)
+                | (((_argb & 0xFF) * a + 127) / 255);
+    }
+
+
+    private static int unpremultiply( final int _argb ) {
+
+        int a = _argb >>> 24;
+        if( (a == 0xFF) || (a == 0) )
+            return _argb;
+        return (a << 24) | (Math.min( 255, (((_argb >> 16) & 0xFF) * 255 + a / 2) / a ) << 16)
+                | (Math.min( 255, (((_argb >> 8) & 0xFF) * 255 + a / 2) / a ) << 8) | Math.min( 255, ((_argb & 0xFF) * 255 + a / 2) / a );
+    }
+
+
+    private static int clamp( final float _value ) {
+        return (_value <= 0) ? 0 : (_value >= 255) ? 255 : (int) (_value + 0.5f);
+    }
+
+
+    /*
+     * The Lanczos weights for resampling one dimension from a given size to a given (smaller, or equal) size, precomputed for each output position.
+     */
+    private static class Kernel {
+
+        private final int[][] indices;
+        private final float[][] weights;
+
+
+        private Kernel( final int _srcSize, final int _dstSize ) {
+
+            double scale = Math.max( 1.0, (double) _srcSize / _dstSize );
+            double support = LOBES * scale;
+            indices = new int[_dstSize][];
+            weights = new float[_dstSize][];
+
+            for( int i = 0; i < _dstSize; i++ ) {
+
+                double center = (i + 0.5) * _srcSize / _dstSize - 0.5;
+                int first = (int) Math.ceil( center - support );
+                int last = (int) Math.floor( center + support );
+                int n = last - first + 1;
+                indices[i] = new int[n];
+                weights[i] = new float[n];
+
+                double sum = 0;
+                for( int j = 0; j < n; j++ ) {
+                    double weight = lanczos( (first + j - center) / scale );
+                    indices[i][j] = Math.min( _srcSize - 1, Math.max( 0, first + j ) );
+                    weights[i][j] = (float) weight;
+                    sum += weight;
+                }
+                for( int j = 0; j < n; j++ )
+                    weights[i][j] /= sum;
+            }
+        }
+
+
+        /*
+         * Returns the pixel at the given output position, from the source pixels starting at the given offset and separated by the given stride.
+         */
+        private int apply( final int _position, final int[] _src, final int _offset, final int _stride ) {
+
+            int[] index = indices[_position];
+            float[] weight = weights[_position];
+            float a = 0, r = 0, g = 0, b = 0;
+            for( int j = 0; j < index.length; j++ ) {
+                int p = _src[_offset + index[j] * _stride];
+                float w = weight[j];
+                a += w * (p >>> 24);
+                r += w * ((p >> 16) & 0xFF);
+                g += w * ((p >> 8) & 0xFF);
+                b += w * (p & 0xFF);
+            }
+
+            // keep premultiplied color channels from exceeding alpha, which ringing can cause...
+            int alpha = clamp( a );
+            return (alpha << 24) | (Math.min( alpha, clamp( r ) ) << 16) | (Math.min( alpha, clamp( g ) ) << 8) | Math.min( alpha, clamp( b ) );
+        }
+
+
+        private static double lanczos( final double _x ) {
+
+            if( _x == 0 )
+                return 1;
+            if( (_x <= -LOBES) || (_x >= LOBES) )
+                return 0;
+            double px = Math.PI * _x;
+            return LOBES * Math.sin( px ) * Math.sin( px / LOBES ) / (px * px);
+        }
+    }
+
+
+    private static class Pixels {
+
+        private final int width;
+        private final int height;
+        private final int[] data;
+
+
+        private Pixels( final int _width, final int _height ) {
+            width = _width;
+            height = _height;
+            data = new int[_width * _height];
+        }
+    }
+
+
+    private ImageDownscaler() {
+        // prevent instantiation...
+    }
+}
@@ -0,0 +1,202 @@
+package com.slightlyloony.blog.responders;
+
+import com.google.gson.JsonObject;
+import com.slightlyloony.blog.BlogServer;
+import com.slightlyloony.blog.ServerInit;
+import com.slightlyloony.blog.events.Event;
+import com.slightlyloony.blog.events.EventListener;
+import com.slightlyloony.blog.events.EventType;
+import com.slightlyloony.blog.events.Events;
+import com.slightlyloony.blog.objects.BlogID;
+import com.slightlyloony.blog.objects.BlogObjectMetadata;
+import com.slightlyloony.blog.objects.BlogObjectType;
+import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
+import com.slightlyloony.blog.storage.BlogObjectUseCache;
+import com.slightlyloony.blog.storage.StorageException;
+import com.slightlyloony.blog.util.Json;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.slightlyloony.blog.objects.BlogObjectType.METADATA;
+import static com.slightlyloony.blog.objects.ContentCompressionState.UNCOMPRESSED;
+
+/**
+ * An in-memory projection of the image metadata served by {@link ImageMetadataResponder}: for each image metadata object, just the JSON that
+ * describes it to a client (height, width, size, credit, title, and so on), serialized once.  A gallery page asks for dozens of images at once, and
+ * with this projection the response is just those fragments concatenated - no storage reads, no per-image objects, and no serialization.
+ * <p>
+ * Entries are keyed by the image key clients use: the metadata's blog ID followed by its access requirements code.  An entry is made the first time
+ * an image is asked for (read through {@link com.slightlyloony.blog.storage.CachedStorage}, which verifies the access requirements), and is
+ * replaced whenever the metadata is updated (on {@link EventType#OBJECT_UPDATED}), so that (for instance) dimensions recorded by the
+ * {@link ImageScaler} show up at once.  Only metadata for images is held, and only up to the number of entries set in the server configuration;
+ * past that, fragments are still served, just serialized afresh each time.  Each entry is a single short string, so the projection stays small
+ * even when it's full.
+ * <p>
+ * This class is a singleton.  It is threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ImageMetadataProjection implements EventListener {
+
+    public static final ImageMetadataProjection INSTANCE = new ImageMetadataProjection();
+
+    private final Map<String,String> fragments;  // the JSON for each image, by image key...
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private volatile int maxEntries;
+
+
+    private ImageMetadataProjection() {
+        fragments = new ConcurrentHashMap<>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        maxEntries = 0;
+    }
+
+
+    /**
+     * Reads the projection's size limit from the server configuration, and starts keeping the projection up to date as metadata is updated.
+     */
+    public void init() {
+        maxEntries = ServerInit.getConfig().getImageMetadataEntries();
+        Events.registerListener( this, EventType.OBJECT_UPDATED );
+    }
+
+
+    /**
+     * Returns the JSON describing the image with the given key (a metadata blog ID followed by its access requirements code), reading the metadata
+     * from storage if it isn't in the projection yet.
+     *
+     * @param _key the image key
+     * @return the JSON object describing the image
+     * @throws StorageException if the metadata can't be read
+     */
+    public String get( final String _key ) throws StorageException {
+
+        String fragment = fragments.get( _key );
+        if( fragment != null ) {
+            hits.incrementAndGet();
+            return fragment;
+        }
+
+        misses.incrementAndGet();
+        if( (_key == null) || (_key.length() != 11) )
+            throw new StorageException( "Invalid image key: " + _key );
+        BlogID id = BlogID.create( _key.substring( 0, 10 ) );
+        BlogObjectAccessRequirements ar = BlogObjectAccessRequirements.get( _key.charAt( 10 ) );
+        if( (id == null) || (ar == null) )
+            throw new StorageException( "Invalid image key: " + _key );
+        BlogObjectMetadata metadata = (BlogObjectMetadata) BlogServer.STORAGE.read( id, METADATA, ar, UNCOMPRESSED, true );
+
+        // if we can't hold it, just serve it...
+        fragment = toJSON( metadata );
+        if( !isImage( metadata ) || (fragments.size() >= maxEntries) )
+            return fragment;
+
+        // if the metadata was updated while we were reading it, the update's entry is newer than ours...
+        String existing = fragments.putIfAbsent( getKey( metadata ), fragment );
+        return (existing == null) ? fragment : existing;
+    }
+
+
+    /**
+     * Returns the image key for the given image string from a client (the image key, possibly followed by other characters that are ignored), or
+     * null if the string doesn't start with a valid image key.
+     *
+     * @param _image the image string sent by a client
+     * @return the image key, or null if there isn't a valid one
+     */
+    public static String toKey( final String _image ) {
+
+        if( (_image == null) || (_image.length() < 11) )
+            return null;
+        String key = _image.substring( 0, 11 );
+        return ((BlogID.create( key.substring( 0, 10 ) ) == null) || (BlogObjectAccessRequirements.get( key.charAt( 10 ) ) == null)) ? null : key;
+    }
+
+
+    /**
+     * Replaces the projection of updated metadata.
+     *
+     * @param _event the object update event
+     */
+    @Override
+    public void onEvent( final Event _event ) {
+
+        Object object = _event.getParam( 0 );
+        if( (object instanceof BlogObjectMetadata) && isImage( (BlogObjectMetadata) object ) ) {
+            BlogObjectMetadata metadata = (BlogObjectMetadata) object;
+            if( fragments.size() < maxEntries )
+                fragments.put( getKey( metadata ), toJSON( metadata ) );
+            else
+                fragments.replace( getKey( metadata ), toJSON( metadata ) );
+        }
+    }
+
+
+    /**
+     * Returns the statistics for the projection, as a JSON object.
+     *
+     * @return the statistics
+     */
+    public JsonObject getStats() {
+
+        long chars = 0;
+        for( Map.Entry<String,String> entry : fragments.entrySet() )
+            chars += entry.getKey().length() + entry.getValue().length();
+
+        JsonObject result = new JsonObject();
+        result.addProperty( "entries",    fragments.size() );
+        result.addProperty( "maxEntries", maxEntries       );
+        result.addProperty( "chars",      chars            );
+        result.addProperty( "hits",       hits.get()       );
+        result.addProperty( "misses",     misses.get()     );
+        return result;
+    }
+
+
+    private boolean isImage( final BlogObjectMetadata _metadata ) {
+        BlogObjectType type = _metadata.getContentType();
+        return (type != null) && (type.getCache() == BlogObjectUseCache.IMAGE);
+    }
+
+
+    private String getKey( final BlogObjectMetadata _metadata ) {
+        return _metadata.getBlogID().getID() + _metadata.getAccessRequirements().getCode();
+    }
+
+
+    private String toJSON( final BlogObjectMetadata _metadata ) {
+
+        ImageMetadata im = new ImageMetadata();
+        im.height            = _metadata.getHeight();
+        im.width             = _metadata.getWidth();
+        im.size              = _metadata.getSize();
+        im.source            = _metadata.getSource();
+        im.credit            = _metadata.getCredit();
+        im.description       = _metadata.getDescription();
+        im.title             = _metadata.getTitle();
+        im.where             = _metadata.getWhere();
+        im.when              = _metadata.getWhen();
+        im.cameraSettings    = _metadata.getCameraSettings();
+        im.cameraOrientation = _metadata.getCameraOrientation();
+        return Json.GSON.toJson( im );
+    }
+
+
+    private static class ImageMetadata {
+        private int height;
+        private int width;
+        private int size;
+        private String source;
+        private String credit;
+        private String description;
+        private String title;
+        private String where;
+        private String when;
+        private String cameraSettings;
+        private String cameraOrientation;
+    }
+}
@@ -1,30 +1,27 @@
 package com.slightlyloony.blog.responders;
 
-import com.google.common.collect.Maps;
-import com.google.gson.Gson;
-import com.slightlyloony.blog.BlogServer;
 import com.slightlyloony.blog.events.EventType;
 import com.slightlyloony.blog.events.Events;
 import com.slightlyloony.blog.handlers.BlogRequest;
 import com.slightlyloony.blog.handlers.BlogResponse;
-import com.slightlyloony.blog.objects.BlogID;
 import com.slightlyloony.blog.objects.BlogObjectMetadata;
-import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
 import com.slightlyloony.blog.storage.StorageException;
+import com.slightlyloony.blog.util.Json;
 import com.slightlyloony.blog.util.S;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-import static com.slightlyloony.blog.objects.BlogObjectType.METADATA;
-import static com.slightlyloony.blog.objects.ContentCompressionState.UNCOMPRESSED;
-
 /**
  * Handles the response to an image metadata request.  The request is JSON object with a single property ("images"), which should be an array of
- * image metadata record blog IDs.  The response is always a JSON object with a property named "images" and a value with a property for each image
- * metadata blog ID.  The value of those properties is the metadata for that image (see example in the code comments below).
+ * image keys (image metadata record blog IDs followed by their access requirements code).  The response is always a JSON object with a property
+ * named "images" and a value with a property for each image key, named just as the client sent it.  The value of those properties is the metadata
+ * for that image (see example in the code comments below).  The metadata comes already serialized from the {@link ImageMetadataProjection}, so the
+ * response is built in a single pass.  A request with a missing or invalid image key gets a 400 (bad request) response.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
@@ -48,35 +45,39 @@ public class ImageMetadataResponder implements Responder {
         try {
             // decode the request...
             String json = S.fromUTF8( _request.getPostData() );
-            ImageMetadataRequest req = new Gson().fromJson( json, ImageMetadataRequest.class );
+            ImageMetadataRequest req = Json.GSON.fromJson( json, ImageMetadataRequest.class );
+            if( (req == null) || (req.images == null) ) {
+                badRequest( _request, _response, "Missing images" );
+                return;
+            }
             LOG.info( "Got image metadata request for: " + String.join( ", ", req.images ) );
 
-            // gather our information...
-            ImageMetadataResponse response = new ImageMetadataResponse();
+            // validate the images, mapping each (as the client sent it) to its image key...
+            Map<String,String> keys = new LinkedHashMap<>();
             for( String image : req.images ) {
-                BlogID id = BlogID.create( image.substring( 0, 10 ) );
-                BlogObjectAccessRequirements ar = BlogObjectAccessRequirements.get( image.charAt( 10 ) );
-                BlogObjectMetadata metadata = (BlogObjectMetadata) BlogServer.STORAGE.read( id, METADATA, ar, UNCOMPRESSED, true );
-                ImageMetadata im = new ImageMetadata();
-                im.height            = metadata.getHeight();
-                im.width             = metadata.getWidth();
-                im.size              = metadata.getSize();
-                im.source            = metadata.getSource();
-                im.credit            = metadata.getCredit();
-                im.description       = metadata.getDescription();
-                im.title             = metadata.getTitle();
-                im.where             = metadata.getWhere();
-                im.when              = metadata.getWhen();
-                im.cameraSettings    = metadata.getCameraSettings();
-                im.cameraOrientation = metadata.getCameraOrientation();
-                response.images.put( image, im );
+                String key = ImageMetadataProjection.toKey( image );
+                if( key == null ) {
+                    badRequest( _request, _response, "Invalid image: " + image );
+                    return;
+                }
+                keys.put( image, key );
             }
 
+            // gather our (already serialized) information, once for each image...
+            StringBuilder response = new StringBuilder( 64 + 256 * keys.size() );
+            response.append( "{\"images\":{" );
+            for( Map.Entry<String,String> entry : keys.entrySet() ) {
+                if( response.length() > 11 )
+                    response.append( ',' );
+                response.append( Json.GSON.toJson( entry.getKey() ) ).append( ':' ).append( ImageMetadataProjection.INSTANCE.get( entry.getValue() ) );
+            }
+            response.append( "}}" );
+
             // and return it...
-            _response.sendJSONResponse( new Gson().toJson( response ) );
+            _response.sendJSONResponse( response.toString() );
 
             // fire success event...
-            Events.fire( EventType.IMAGE_META_REQUEST, response.images.size() );
+            Events.fire( EventType.IMAGE_META_REQUEST, keys.size() );
 
             _request.handled();
         }
@@ -85,28 +86,17 @@ public class ImageMetadataResponder implements Responder {
         }
     }
 
-    private static class ImageMetadataRequest {
-        private String[] images;
-    }
-
+    private void badRequest( final BlogRequest _request, final BlogResponse _response, final String _reason ) throws IOException {
 
-    private static class ImageMetadataResponse {
-        private Map<String, ImageMetadata> images = Maps.newHashMap();
+        LOG.info( "Bad image metadata request: " + _reason );
+        _response.setResponseCode( HttpServletResponse.SC_BAD_REQUEST );
+        _response.sendJSONResponse( "{\"success\":false,\"reason\":" + Json.GSON.toJson( _reason ) + "}" );
+        _request.handled();
     }
 
 
-    private static class ImageMetadata {
-        private int height;
-        private int width;
-        private int size;
-        private String source;
-        private String credit;
-        private String description;
-        private String title;
-        private String where;
-        private String when;
-        private String cameraSettings;
-        private String cameraOrientation;
+    private static class ImageMetadataRequest {
+        private String[] images;
     }
 }
 
@@ -114,12 +104,12 @@ public class ImageMetadataResponder implements Responder {
 
  Sample request:
 
-    {"images":["AAAAAAAAAA","AAAAAAAAAB"]}
+    {"images":["AAAAAAAAAAB","AAAAAAAAABB"]}
 
  Sample response:
     {"images": {
-        "AAAAAAAAAA": {"height":1024,"width":2048,"size":140000,"source":"unknown","title":"something","when":"January 2004"},
-        "AAAAAAAAAB": {"height":1024,"width":2048,"size":155500,"source":"oracle","title":"or other","when":"January 2005"}
+        "AAAAAAAAAAB": {"height":1024,"width":2048,"size":140000,"source":"unknown","title":"something","when":"January 2004"},
+        "AAAAAAAAABB": {"height":1024,"width":2048,"size":155500,"source":"oracle","title":"or other","when":"January 2005"}
         }
     }
  */
\ No newline at end of file
@@ -0,0 +1,651 @@
+package com.slightlyloony.blog.responders;
+
+import com.google.common.collect.Maps;
+import com.google.gson.JsonObject;
+import com.slightlyloony.blog.BlogServer;
+import com.slightlyloony.blog.ServerInit;
+import com.slightlyloony.blog.config.ServerConfig;
+import com.slightlyloony.blog.events.Event;
+import com.slightlyloony.blog.events.EventListener;
+import com.slightlyloony.blog.events.EventType;
+import com.slightlyloony.blog.events.Events;
+import com.slightlyloony.blog.handlers.BlogRequest;
+import com.slightlyloony.blog.handlers.RequestMethod;
+import com.slightlyloony.blog.objects.*;
+import com.slightlyloony.blog.objects.BlogObjectMetadata.ScaledImage;
+import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
+import com.slightlyloony.blog.storage.StorageException;
+import com.slightlyloony.common.ExecutionService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * Produces scaled versions of images in the background, so that no request ever waits for an image to be decoded, scaled, encoded, and stored.
+ * A request for a scaled image is answered at once with the best fit we already have, and {@link #submit(BlogObjectMetadata,int)} queues a job to
+ * make a better one for later requests.  Each job stores the new scaled image as a blog object and records it in the image's metadata (also
+ * recording the base image's dimensions, if they weren't yet known).
+ * <p>
+ * Jobs run on a small pool of threads with a bounded queue (see {@link ServerConfig#getImageScalingThreads()} and {@link
+ * ServerConfig#getImageScalingQueueSize()}).  A job for an image and height that's already queued or running isn't queued again, and when the
+ * queue is full new jobs are simply dropped - a later request for the same height will submit it again.  Jobs for the same image are serialized, as
+ * they all rewrite its metadata.
+ * <p>
+ * If a ladder of heights is configured (see {@link ServerConfig#getImageLadder()}), every scalable image is also given a scaled image at each of
+ * those heights, so that scaling at request time is the rare exception.  A ladder job decodes the base image once and scales it to each of the missing
+ * heights in turn.  Ladders are made for image metadata when it's created, and (in the background, at startup) for any existing image whose
+ * ladder is incomplete, as images are usually added to the object store offline.
+ * <p>
+ * Images can also be served in variant types (see {@link ServerConfig#getImageVariantTypes()}) to clients that explicitly accept them.  Variants
+ * are made lazily, one for each height actually served, by the same jobs that make scaled images.  The only variant type we can write is WebP,
+ * with our own lossless encoder (see {@link WebPEncoder}), so only lossless (PNG) images get variants: a lossless copy of a JPEG would be bigger
+ * than the JPEG itself.
+ * <p>
+ * This class is a singleton.  It is threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ImageScaler implements EventListener {
+
+    public static final ImageScaler INSTANCE = new ImageScaler();
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final String LADDER = "ladder";
+
+    private final Set<String> jobs;                  // the keys of jobs queued or running...
+    private final Map<String,ImageLock> locks;
+    private final AtomicLong submitted;
+    private final AtomicLong duplicates;
+    private final AtomicLong rejected;
+    private final AtomicLong completed;
+    private final AtomicLong failed;
+    private final AtomicLong totalJobNanos;
+    private final AtomicInteger nextThread;
+    private volatile long maxJobNanos;
+    private volatile int maxDepth;
+    private volatile int[] ladder;
+    private volatile BlogObjectType[] variantTypes;  // in order of preference...
+    private ThreadPoolExecutor executor;
+
+
+    private ImageScaler() {
+        jobs = ConcurrentHashMap.newKeySet();
+        locks = Maps.newHashMap();
+        submitted = new AtomicLong();
+        duplicates = new AtomicLong();
+        rejected = new AtomicLong();
+        completed = new AtomicLong();
+        failed = new AtomicLong();
+        totalJobNanos = new AtomicLong();
+        nextThread = new AtomicInteger( 1 );
+        ladder = new int[0];
+        variantTypes = new BlogObjectType[0];
+    }
+
+
+    /**
+     * Starts the pool of threads that run scaling jobs.
+     */
+    public synchronized void init() {
+
+        if( executor != null )
+            return;
+
+        ServerConfig config = ServerInit.getConfig();
+        int threads = config.getImageScalingThreads();
+        executor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>( config.getImageScalingQueueSize() ),
+                _runnable -> {
+                    Thread t = new Thread( _runnable, "ImageScaler-" + nextThread.getAndIncrement() );
+                    t.setDaemon( true );
+                    t.setPriority( Thread.NORM_PRIORITY - 1 );
+                    return t;
+                } );
+        LOG.info( msg( "Scaling images on {0} threads, with up to {1} jobs queued", threads, config.getImageScalingQueueSize() ) );
+
+        // if we have a ladder, make it for new images as they're created, and for existing images in the background...
+        ladder = config.getImageLadder();
+        if( ladder.length > 0 ) {
+            Events.registerListener( this, EventType.OBJECT_CREATED );
+            ExecutionService.INSTANCE.schedule( this::fillLadders, 0, TimeUnit.SECONDS );
+            LOG.info( msg( "Making scaled images at heights {0}", Arrays.toString( ladder ) ) );
+        }
+
+        // use whichever of our configured variant types we can actually write...
+        List<BlogObjectType> types = new ArrayList<>();
+        for( String name : config.getImageVariantTypes() ) {
+            if( BlogObjectType.WEBP.name().equals( name ) )
+                types.add( BlogObjectType.WEBP );
+            else
+                LOG.warn( msg( "Can''t write images as {0}; images won''t be served in that type", name ) );
+        }
+        variantTypes = types.toArray( new BlogObjectType[types.size()] );
+        if( variantTypes.length > 0 )
+            LOG.info( msg( "Serving image variants in {0}", types ) );
+    }
+
+
+    /**
+     * Returns the variant type the given request for the image with the given metadata should be answered in: the most preferred of our usable
+     * variant types that the client explicitly accepts, or null if there's none, or the image doesn't get variants (in which case the image is
+     * served in its base type).
+     *
+     * @param _request the request for an image
+     * @param _metadata the metadata of the image
+     * @return the variant type to answer in, or null for none
+     */
+    public BlogObjectType getVariantType( final BlogRequest _request, final BlogObjectMetadata _metadata ) {
+
+        if( !hasVariantTypes( _metadata ) )
+            return null;
+        for( BlogObjectType type : variantTypes )
+            if( _request.acceptsExplicitly( type.getMime() ) )
+                return type;
+        return null;
+    }
+
+
+    /**
+     * Returns true if the image with the given metadata may be served in a variant type, so that responses for it depend on the client's "Accept"
+     * header.
+     *
+     * @param _metadata the metadata of the image
+     * @return true if the image may be served in a variant type
+     */
+    public boolean hasVariantTypes( final BlogObjectMetadata _metadata ) {
+        return (variantTypes.length > 0) && (_metadata.getContentType() == BlogObjectType.PNG);
+    }
+
+
+    /**
+     * Queues a job to scale the image described by the given metadata to the given height, unless the same job is already queued or running, or
+     * the queue is full.  If the base image's dimensions aren't known yet, the job just records them; the next request for the height will decide
+     * whether scaling is worthwhile.
+     *
+     * @param _metadata the metadata of the image to scale
+     * @param _height the height to scale the image to
+     * @return true if the job was queued
+     */
+    public boolean submit( final BlogObjectMetadata _metadata, final int _height ) {
+        return submit( _metadata, _height, null );
+    }
+
+
+    /**
+     * Queues a job to make a version of the image described by the given metadata in the given type at the given height (which, for a variant
+     * type, may be the height of the base image itself), unless the same job is already queued or running, or the queue is full.
+     *
+     * @param _metadata the metadata of the image
+     * @param _height the height of the version to make
+     * @param _type the variant type to make, or null for the base image's type
+     * @return true if the job was queued
+     */
+    public boolean submit( final BlogObjectMetadata _metadata, final int _height, final BlogObjectType _type ) {
+
+        if( executor == null )
+            return false;
+
+        String key = _metadata.getBlogID().getID() + ":" + _height + ((_type == null) ? "" : ":" + _type.getExtension());
+        if( !jobs.add( key ) ) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+
+        BlogID id = _metadata.getBlogID();
+        BlogObjectAccessRequirements accessRequirements = _metadata.getAccessRequirements();
+        ContentCompressionState compressionState = _metadata.getCompressionState();
+        return execute( key, () -> run( key, () -> scale( id, accessRequirements, compressionState, _height, _type ) ) );
+    }
+
+
+    /**
+     * Queues a job to give the image described by the given metadata a scaled image at every height in the configured ladder that it doesn't
+     * already have, unless the same job is already queued or running, or the queue is full.
+     *
+     * @param _metadata the metadata of the image
+     * @return true if the job was queued
+     */
+    public boolean submitLadder( final BlogObjectMetadata _metadata ) {
+
+        if( (executor == null) || (ladder.length == 0) || !isScalable( _metadata ) )
+            return false;
+
+        String key = _metadata.getBlogID().getID() + ":" + LADDER;
+        if( !jobs.add( key ) ) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+
+        BlogID id = _metadata.getBlogID();
+        BlogObjectAccessRequirements accessRequirements = _metadata.getAccessRequirements();
+        ContentCompressionState compressionState = _metadata.getCompressionState();
+        return execute( key, () -> run( key, () -> makeLadder( id, accessRequirements, compressionState ) ) );
+    }
+
+
+    /**
+     * Queues ladder jobs for newly created image metadata.
+     *
+     * @param _event the object creation event
+     */
+    @Override
+    public void onEvent( final Event _event ) {
+
+        Object object = _event.getParam( 0 );
+        if( object instanceof BlogObjectMetadata )
+            submitLadder( (BlogObjectMetadata) object );
+    }
+
+
+    /**
+     * Stops taking new jobs, and waits (briefly) for the jobs already queued to finish.
+     */
+    public void shutdown() {
+
+        ThreadPoolExecutor pool;
+        synchronized( this ) {
+            pool = executor;
+            executor = null;
+        }
+        if( pool == null )
+            return;
+
+        pool.shutdown();
+        try {
+            if( !pool.awaitTermination( 10, TimeUnit.SECONDS ) )
+                LOG.warn( msg( "{0} image scaling jobs abandoned at shutdown", pool.shutdownNow().size() ) );
+        }
+        catch( InterruptedException e ) {
+            pool.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Returns the statistics for the image scaling pool, as a JSON object.
+     *
+     * @return the statistics
+     */
+    public JsonObject getStats() {
+
+        ThreadPoolExecutor pool = executor;
+        long done = completed.get();
+        JsonObject result = new JsonObject();
+        result.addProperty( "depth",        (pool == null) ? 0 : pool.getQueue().size()                    );
+        result.addProperty( "maxDepth",     maxDepth                                                       );
+        result.addProperty( "active",       (pool == null) ? 0 : pool.getActiveCount()                     );
+        result.addProperty( "submitted",    submitted.get()                                                );
+        result.addProperty( "duplicates",   duplicates.get()                                               );
+        result.addProperty( "rejected",     rejected.get()                                                 );
+        result.addProperty( "completed",    done                                                           );
+        result.addProperty( "failed",       failed.get()                                                   );
+        result.addProperty( "maxJobMs",     maxJobNanos / 1000000.0                                        );
+        result.addProperty( "averageJobMs", (done == 0) ? 0 : totalJobNanos.get() / 1000000.0 / done      );
+        return result;
+    }
+
+
+    private boolean execute( final String _key, final Runnable _job ) {
+
+        ThreadPoolExecutor pool = executor;
+        try {
+            if( pool == null )
+                throw new RejectedExecutionException( "Image scaler isn't running" );
+            pool.execute( _job );
+        }
+        catch( RejectedExecutionException e ) {
+            jobs.remove( _key );
+            rejected.incrementAndGet();
+            LOG.debug( msg( "Image scaling queue full; dropped {0}", _key ) );
+            return false;
+        }
+
+        submitted.incrementAndGet();
+        int depth = pool.getQueue().size();
+        if( depth > maxDepth )
+            maxDepth = depth;
+        return true;
+    }
+
+
+    private void run( final String _key, final Job _job ) {
+
+        long start = System.nanoTime();
+        try {
+            _job.run();
+            completed.incrementAndGet();
+        }
+        catch( StorageException | IOException | RuntimeException e ) {
+            failed.incrementAndGet();
+            LOG.error( msg( "Problem scaling image {0}: {1}", _key, e.getMessage() ) );
+        }
+        finally {
+            jobs.remove( _key );
+            long elapsed = System.nanoTime() - start;
+            totalJobNanos.addAndGet( elapsed );
+            maxJobNanos = Math.max( maxJobNanos, elapsed );
+        }
+    }
+
+
+    /*
+     * Scales the image with the given metadata ID to the given height, in the given type (null for the base image's type), stores it, and records
+     * it in the metadata.
+     */
+    private void scale( final BlogID _id, final BlogObjectAccessRequirements _accessRequirements, final ContentCompressionState _compressionState,
+                        final int _height, final BlogObjectType _type ) throws StorageException, IOException {
+
+        // get a lock so two jobs for the same image don't stomp on each other's metadata...
+        getLock( _id );
+        try {
+
+            // read the metadata straight from storage, as we're going to change it (and the cached copy is being used by requests)...
+            BlogObjectMetadata metadata = (BlogObjectMetadata) BlogServer.STORAGE.read( _id, BlogObjectType.METADATA, _accessRequirements,
+                    _compressionState, false );
+
+            // if we don't know our base image's dimensions, all we'll do is record them...
+            if( (metadata.getHeight() == 0) || (metadata.getWidth() == 0) ) {
+                readBaseImage( metadata, _compressionState, 0 );
+                BlogServer.STORAGE.update( metadata );
+                return;
+            }
+
+            // if the scaled image would be no smaller (or, for a variant, bigger), or an earlier job already made it, there's nothing to do...
+            if( (_height > metadata.getHeight()) || ((_type == null) && (_height == metadata.getHeight())) || hasHeight( metadata, _height, _type ) )
+                return;
+
+            // read the base image, scale it, and store the result, timing it all for the cost model...
+            long start = System.nanoTime();
+            BufferedImage bi = readBaseImage( metadata, _compressionState, _height );
+            ScaledImage scaled = store( scale( bi, metadata, _height ), metadata, _type, _compressionState );
+            ImageCostModel.INSTANCE.recordScaling( (long) bi.getWidth() * bi.getHeight(), (long) scaled.width * scaled.height,
+                    System.nanoTime() - start );
+            metadata.add( scaled );
+
+            // write the metadata back out with this new guy in its scaled image data...
+            BlogServer.STORAGE.update( metadata );
+            LOG.info( msg( "Scaled image {0} to height {1} as {2}", _id.getID(), _height, (_type == null) ? metadata.getContentType() : _type ) );
+        }
+        finally {
+            releaseLock( _id );
+        }
+    }
+
+
+    /*
+     * Makes scaled images for the image with the given metadata ID at every height in the ladder that it doesn't already have.
+     */
+    private void makeLadder( final BlogID _id, final BlogObjectAccessRequirements _accessRequirements,
+                             final ContentCompressionState _compressionState ) throws StorageException, IOException {
+
+        getLock( _id );
+        try {
+
+            BlogObjectMetadata metadata = (BlogObjectMetadata) BlogServer.STORAGE.read( _id, BlogObjectType.METADATA, _accessRequirements,
+                    _compressionState, false );
+
+            // we need the base image's dimensions before we can tell which heights are missing...
+            boolean dirty = false;
+            if( (metadata.getHeight() == 0) || (metadata.getWidth() == 0) ) {
+                readBaseImage( metadata, _compressionState, 0 );
+                dirty = true;
+            }
+
+            int[] missing = getMissingRungs( metadata );
+            if( missing.length > 0 ) {
+
+                // decode the base image just once, at a resolution good enough for the biggest height we're missing...
+                BufferedImage base = readBaseImage( metadata, _compressionState, Arrays.stream( missing ).max().getAsInt() );
+
+                // scale to each of the missing heights in turn, keeping whatever succeeds (this job already has a pool thread of its own, and other
+                // images' jobs are running on the others, so there's nothing to gain by spreading the heights over more threads)...
+                int made = 0;
+                for( int height : missing ) {
+                    try {
+                        metadata.add( store( scale( base, metadata, height ), metadata, null, _compressionState ) );
+                        made++;
+                    }
+                    catch( StorageException | IOException | RuntimeException e ) {
+                        LOG.error( msg( "Problem scaling image {0} to height {1}: {2}", _id.getID(), height, e.getMessage() ) );
+                    }
+                }
+
+                dirty |= (made > 0);
+                LOG.info( msg( "Made {0} of {1} missing scaled images for image {2}", made, missing.length, _id.getID() ) );
+            }
+
+            if( dirty )
+                BlogServer.STORAGE.update( metadata );
+        }
+        finally {
+            releaseLock( _id );
+        }
+    }
+
+
+    /*
+     * Submits ladder jobs for every existing image whose ladder is incomplete, waiting for room in the queue as needed.  Runs once, in the
+     * background, at startup.
+     */
+    private void fillLadders() {
+
+        int queued = 0;
+        for( BlogID id : BlogServer.STORAGE.getIndex().getByType( BlogObjectType.METADATA ) ) {
+
+            try {
+                BlogObjectMetadata metadata = (BlogObjectMetadata) BlogServer.STORAGE.read( id, BlogObjectType.METADATA,
+                        BlogServer.STORAGE.getIndex().getAccessRequirements( id ), ContentCompressionState.DO_NOT_COMPRESS, false );
+                if( !isScalable( metadata ) || ((metadata.getHeight() != 0) && (getMissingRungs( metadata ).length == 0)) )
+                    continue;
+
+                // wait for room in the queue, so that the backlog doesn't crowd out request-driven jobs for long...
+                ThreadPoolExecutor pool;
+                while( ((pool = executor) != null) && (pool.getQueue().remainingCapacity() == 0) )
+                    Thread.sleep( 100 );
+                if( pool == null )
+                    return;
+
+                if( submitLadder( metadata ) )
+                    queued++;
+            }
+            catch( StorageException | RuntimeException e ) {
+                LOG.warn( msg( "Can''t check image ladder for {0}: {1}", id, e.getMessage() ) );
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        LOG.info( msg( "Queued {0} images with incomplete ladders", queued ) );
+    }
+
+
+    private int[] getMissingRungs( final BlogObjectMetadata _metadata ) {
+        return Arrays.stream( ladder ).filter( _height -> (_height < _metadata.getHeight()) && !hasHeight( _metadata, _height, null ) ).toArray();
+    }
+
+
+    /*
+     * Returns true if the given metadata describes an image we can scale: one served by this responder, in a raster format we can read and write.
+     */
+    private boolean isScalable( final BlogObjectMetadata _metadata ) {
+
+        BlogObjectType type = _metadata.getContentType();
+        return (_metadata.getContent() != null) && (_metadata.getMethod( RequestMethod.GET ) == ResponderType.IMAGE)
+                && ((type == BlogObjectType.JPG) || (type == BlogObjectType.PNG) || (type == BlogObjectType.GIF));
+    }
+
+
+    /*
+     * Stores the given scaled image in the given type (null for the base image's type) as a new blog object, returning the scaled image record for
+     * it.
+     */
+    private ScaledImage store( final BufferedImage _scaled, final BlogObjectMetadata _metadata, final BlogObjectType _type,
+                               final ContentCompressionState _compressionState ) throws StorageException, IOException {
+
+        BlogObjectType type = (_type == null) ? _metadata.getContentType() : _type;
+        byte[] bytes = encode( _scaled, type );
+        BlogObjectContent boc = new BytesObjectContent( bytes, _compressionState, bytes.length );
+        BlogContentObject obj = new BlogContentObject( BlogIDs.INSTANCE.getNextBlogID(), type, null, boc );
+        BlogServer.STORAGE.create( obj );
+
+        return new ScaledImage( obj.getBlogID(), _scaled.getHeight(), _scaled.getWidth(), _type );
+    }
+
+
+    private byte[] encode( final BufferedImage _image, final BlogObjectType _type ) throws IOException {
+
+        if( _type == BlogObjectType.WEBP )
+            return WebPEncoder.encode( _image );
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream( 1000 );
+        ImageIO.write( _image, _type.name(), baos );
+        return baos.toByteArray();
+    }
+
+
+    private boolean hasHeight( final BlogObjectMetadata _metadata, final int _height, final BlogObjectType _type ) {
+
+        ScaledImage[] scaledImages = _metadata.getScaledImages( _type );
+        if( scaledImages != null )
+            for( ScaledImage scaledImage : scaledImages )
+                if( scaledImage.height == _height )
+                    return true;
+        return false;
+    }
+
+
+    private BufferedImage scale( final BufferedImage _baseImage, final BlogObjectMetadata _metadata, final int _requestedHeight ) {
+
+        // calculate the new width from the base image's proportions (the image we're given may have been decoded at a lower resolution)...
+        int rw = Math.max( 1, (int) Math.floor( 1.0d * _requestedHeight * _metadata.getWidth() / _metadata.getHeight() ) );
+
+        // a variant at full size just needs transcoding...
+        if( (rw == _baseImage.getWidth()) && (_requestedHeight == _baseImage.getHeight()) )
+            return _baseImage;
+
+        return ImageDownscaler.scale( _baseImage, rw, _requestedHeight );
+    }
+
+
+    /*
+     * Reads the base image's dimensions and size into the given metadata, and returns the base image decoded at no more than the resolution needed
+     * to scale it to the given height.  The decoder skips rows and columns (keeping at least twice the target height, so the scaling engine still
+     * has enough to filter), which for a thumbnail of a large JPEG saves most of the decoding.  If the given height is zero, only the dimensions are
+     * read, and null is returned.
+     */
+    private BufferedImage readBaseImage( final BlogObjectMetadata _metadata, final ContentCompressionState _compressionState, final int _height )
+            throws StorageException, IOException {
+
+        BlogContentObject obj = (BlogContentObject)
+                BlogServer.STORAGE.read( _metadata.getContent(), _metadata.getContentType(), null, _compressionState, true );
+
+        try( ImageInputStream iis = ImageIO.createImageInputStream( obj.getStream() ) ) {
+
+            Iterator<ImageReader> readers = (iis == null) ? Collections.emptyIterator() : ImageIO.getImageReaders( iis );
+            if( !readers.hasNext() )
+                throw new IOException( "Unreadable image: " + _metadata.getContent().getID() );
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput( iis, true, true );
+                int height = reader.getHeight( 0 );
+                _metadata.setHeight( height );
+                _metadata.setWidth( reader.getWidth( 0 ) );
+                _metadata.setSize( obj.contentLength() );
+                if( _height <= 0 )
+                    return null;
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = height / (2 * _height);
+                if( subsampling > 1 )
+                    param.setSourceSubsampling( subsampling, subsampling, 0, 0 );
+                return reader.read( 0, param );
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+    }
+
+
+    /*
+     * A scaling job; like a Runnable, but allowed to throw the exceptions scaling can run into.
+     */
+    private interface Job {
+        void run() throws StorageException, IOException;
+    }
+
+
+    /**
+     * Blocks until an exclusive lock is obtained for the given blog ID.
+     *
+     * @param _id the blog ID to obtain a lock for
+     */
+    private void getLock( final BlogID _id ) {
+
+        // get or make our lock, counting ourselves as a user so that it isn't discarded before we get it...
+        ImageLock lock;
+        synchronized( locks ) {
+            lock = locks.get( _id.getID() );
+            if( lock == null ) {
+                lock = new ImageLock();
+                locks.put( _id.getID(), lock );
+            }
+            lock.users++;
+        }
+
+        // block until (and if!) we get a permit...
+        lock.semaphore.acquireUninterruptibly();
+    }
+
+
+    /**
+     * Releases a previously obtained exclusive lock on the given blog ID.
+     *
+     * @param _id the blog ID to release a lock for
+     */
+    private void releaseLock( final BlogID _id ) {
+
+        // get our lock (and we'd better darned well have one!)...
+        synchronized( locks ) {
+            ImageLock lock = locks.get( _id.getID() );
+            if( lock == null ) {
+                LOG.error( "Trying to release a lock on a blog ID that has no lock: " + _id );
+                return;
+            }
+
+            // release our permit and delete the lock if no other threads are waiting on (or about to wait on) it...
+            lock.semaphore.release();
+            if( --lock.users == 0 ) {
+                locks.remove( _id.getID() );
+            }
+        }
+    }
+
+
+    private static class ImageLock {
+
+        private final Semaphore semaphore = new Semaphore( 1 );
+        private int users;  // threads holding or waiting for this lock; guarded by the locks map...
+    }
+}
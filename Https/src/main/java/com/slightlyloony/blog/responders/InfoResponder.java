@@ -1,6 +1,5 @@
 package com.slightlyloony.blog.responders;
 
-import com.google.gson.Gson;
 import com.slightlyloony.blog.BlogServer;
 import com.slightlyloony.blog.events.EventType;
 import com.slightlyloony.blog.events.Events;
@@ -9,6 +8,7 @@ import com.slightlyloony.blog.handlers.BlogResponse;
 import com.slightlyloony.blog.objects.BlogObjectMetadata;
 import com.slightlyloony.blog.objects.Info;
 import com.slightlyloony.blog.storage.StorageException;
+import com.slightlyloony.blog.util.Json;
 import com.slightlyloony.blog.util.S;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -45,7 +45,7 @@ public class InfoResponder implements Responder {
         try {
             // decode the request...
             String json = S.fromUTF8( _request.getPostData() );
-            InfoRequest req = new Gson().fromJson( json, InfoRequest.class );
+            InfoRequest req = Json.GSON.fromJson( json, InfoRequest.class );
             LOG.info( "Got info request for key: " + req.key );
 
             // get our information object...
@@ -55,7 +55,7 @@ public class InfoResponder implements Responder {
             req.info = info.get( req.key );
 
             // and return it...
-            _response.sendJSONResponse( new Gson().toJson( req ) );
+            _response.sendJSONResponse( Json.GSON.toJson( req ) );
 
             // fire success event...
             Events.fire( EventType.INFO_REQUEST, req.key );
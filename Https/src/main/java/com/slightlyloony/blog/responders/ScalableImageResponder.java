@@ -1,36 +1,26 @@
 package com.slightlyloony.blog.responders;
 
-import com.google.common.collect.Maps;
 import com.slightlyloony.blog.BlogServer;
 import com.slightlyloony.blog.handlers.BlogRequest;
 import com.slightlyloony.blog.handlers.BlogResponse;
 import com.slightlyloony.blog.objects.*;
 import com.slightlyloony.blog.objects.BlogObjectMetadata.ScaledImage;
 import com.slightlyloony.blog.storage.StorageException;
-import com.slightlyloony.common.logging.LU;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.Semaphore;
 
 /**
- * Handles the response when the content comes from an image that may be presented in different scales.
+ * Handles the response when the content comes from an image that may be presented in different scales.  A request for a scaled image is always
+ * answered with the best fit among the scaled images we already have; if making a closer fit looks worthwhile, the {@link ImageScaler} is asked
+ * to make one in the background for later requests.  Whether it's worthwhile is decided by the {@link ImageCostModel}, from the measured cost of
+ * scaling on this server and the measured throughput to this class of client; the time taken to send each large image feeds back into the latter.
+ * <p>
+ * If the image gets variants and the client explicitly accepts one of the configured variant types (see {@link
+ * ImageScaler#getVariantType(BlogRequest, BlogObjectMetadata)}), the image is sent in that type when we have it at the height we'd otherwise send,
+ * and the scaler is asked to make it when we don't.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public class ScalableImageResponder implements Responder {
 
-    private static Logger LOG = LogManager.getLogger();
-
-    private static Map<String,Semaphore> locks = Maps.newHashMap();
-
 
     /**
      * Handles the response to a blog object request.
@@ -48,110 +38,74 @@ public class ScalableImageResponder implements Responder {
         BlogID content = _metadata.getContent();
         BlogObjectType contentType = _metadata.getContentType();
         ContentCompressionState compressionState = _metadata.getCompressionState();
-        BlogContentObject obj;
+        ScaledImage bestFit;
 
         // if we have a height parameter, then we have a scaled request...
         int height = _request.getIntParameter( "h" );
         if( height != 0 ) {
 
-            boolean dirty = false;   // gets set true if we change the metadata and need to write it back out...
-
-            // get a lock so two concurrent threads don't stomp on each other...
-            getLock( _metadata.getBlogID() );
-            LOG.info( LU.msg( "Got lock for {0}", _metadata.getBlogID().getID() ) );
-
-            try {
-
-                // re-get the metadata while we're in the lock...
-                BlogObjectMetadata metadata = (BlogObjectMetadata) BlogServer.STORAGE.read( _metadata.getBlogID(), BlogObjectType.METADATA,
-                        _metadata.getAccessRequirements(), compressionState, _isCacheable );
-
-                BufferedImage bi = null;
+            // if we don't know our base image's dimensions, send the base image while the scaler finds them...
+            if( (_metadata.getHeight() == 0) || (_metadata.getWidth() == 0) ) {
+                bestFit = new ScaledImage( content, _metadata.getHeight(), _metadata.getWidth() );
+                ImageScaler.INSTANCE.submit( _metadata, height );
+            }
 
-                // if we don't know our base image's dimensions, then we'd better get them...
-                if( (metadata.getHeight() == 0) || (metadata.getWidth() == 0) ) {
-                    bi = readBaseImage( metadata, compressionState, _isCacheable );
-                    dirty = true;
-                }
+            else {
 
                 // what's the best image we have?
-                ScaledImage bestFit = getBestFit( metadata, height );
-
-                int sendingCostDelta = calcSendingCostDelta( metadata, bestFit, height );
-                int scalingCost = calcScalingCost( metadata, height );
+                bestFit = getBestFit( _metadata, height );
 
-                // if it costs less to send what we have, do so...
-                if( sendingCostDelta < scalingCost ) {
-                    obj = (BlogContentObject) BlogServer.STORAGE.read( bestFit.content, contentType, null, compressionState, _isCacheable );
-                }
+                double sendingCostDelta = calcSendingCostDelta( _metadata, bestFit, height, ImageCostModel.getClientClass( _request ) );
+                double scalingCost = calcScalingCost( _metadata, height );
 
-                // otherwise, let's make a new scaled image, store it, and send that...
-                else {
+                // if it would cost less to make a new scaled image than to keep sending what we have, get one made for next time...
+                if( sendingCostDelta >= scalingCost )
+                    ImageScaler.INSTANCE.submit( _metadata, height );
+            }
+        }
 
-                    // read the base image, if we haven't done so already...
-                    if( bi == null )
-                        bi = readBaseImage( metadata, compressionState, _isCacheable );
+        // otherwise, we just return the raw object...
+        else
+            bestFit = new ScaledImage( content, _metadata.getHeight(), _metadata.getWidth() );
 
-                    // scale it appropriately...
-                    bi = scale( bi, metadata, height );
+        // if the client takes one of our variant types, send the variant of the image we chose if we have it, or get it made for next time...
+        BlogObjectType sendType = contentType;
+        if( ImageScaler.INSTANCE.hasVariantTypes( _metadata ) ) {
 
-                    // write it out to a new file...
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream( 1000 );
-                    ImageIO.write( bi, metadata.getContentType().name(), baos );
-                    byte[] bytes = baos.toByteArray();
-                    BlogObjectContent boc = new BytesObjectContent( bytes, compressionState, bytes.length );
-                    obj = new BlogContentObject( BlogIDs.INSTANCE.getNextBlogID(), contentType, null, boc );
-                    BlogServer.STORAGE.create( obj );
+            _response.setVary( "Accept" );
+            BlogObjectType variantType = ImageScaler.INSTANCE.getVariantType( _request, _metadata );
+            if( (variantType != null) && (bestFit.height != 0) && (_metadata.getHeight() != 0) ) {
 
-                    // add this new guy to our scaled image data...
-                    ScaledImage si = new ScaledImage( obj.getBlogID(), bi.getHeight(), bi.getWidth() );
-                    metadata.add( si );
-                    dirty = true;
+                ScaledImage variant = getVariant( _metadata, variantType, bestFit.height );
+                if( variant != null ) {
+                    bestFit = variant;
+                    sendType = variantType;
                 }
-
-                // if our metadata has been modified, we need to write it back out...
-                if( dirty )
-                    BlogServer.STORAGE.update( metadata );
-            }
-            catch( IOException e ) {
-                throw new StorageException( "Problem reading image data: " + e.getMessage(), e );
+                else
+                    ImageScaler.INSTANCE.submit( _metadata, bestFit.height, variantType );
             }
-            finally {
-                LOG.info( LU.msg( "Releasing lock for {0}", _metadata.getBlogID().getID() ) );
-                releaseLock( _metadata.getBlogID() );
-            }
-        }
-
-        // otherwise, we just return the raw object...
-        else {
-
-            // read the file...
-            obj = (BlogContentObject) BlogServer.STORAGE.read( content, contentType, null, compressionState, _isCacheable );
         }
 
-        _response.setMimeType( _metadata.getContentType() );
+        // send the best we have right now...
+        BlogContentObject obj = (BlogContentObject) BlogServer.STORAGE.read( bestFit.content, sendType, null, compressionState, _isCacheable );
+        _response.setMimeType( sendType );
 
+        // send it, timing how long that takes for the cost model...
+        long start = System.nanoTime();
         obj.getContent().write( _request, _response, _metadata.getCompressionState().mayCompress() );
+        long elapsed = System.nanoTime() - start;
+        if( obj.contentLength() != null )
+            ImageCostModel.INSTANCE.recordSend( ImageCostModel.getClientClass( _request ), obj.contentLength(), elapsed );
         _request.handled();
     }
 
 
-    private BufferedImage scale( final BufferedImage _baseImage, final BlogObjectMetadata _metadata, final int _requestedHeight ) {
-
-        // calculate the scale factor and new height and width...
-        double sf = 1.0d * _requestedHeight / _metadata.getHeight();
-        int rw = (int) Math.floor( sf * _metadata.getWidth() );
-
-        BufferedImage result = new BufferedImage( rw, _requestedHeight, _baseImage.getType() );
-        Graphics2D g = result.createGraphics();
-        AffineTransform at = AffineTransform.getScaleInstance( sf, sf );
-        g.drawRenderedImage( _baseImage, at );
-
-        return result;
-    }
-
-
-    private int calcSendingCostDelta( final BlogObjectMetadata _metadata, final ScaledImage _bestFit, final int _requestedHeight ) {
+    /*
+     * Returns the estimated time (in microseconds) that sending a newly scaled image would save, over sending the given best fit, to a client of
+     * the given class.
+     */
+    private double calcSendingCostDelta( final BlogObjectMetadata _metadata, final ScaledImage _bestFit, final int _requestedHeight,
+                                         final String _clientClass ) {
 
         // estimate number of bytes if we send the best fit...
         double bgBytes = 1.0d * _metadata.getSize() * Math.pow( 1.0d * _bestFit.height / _metadata.getHeight(), 2 );
@@ -159,25 +113,24 @@ public class ScalableImageResponder implements Responder {
         // estimate number of bytes if we scale to meet the request...
         double siBytes = 1.0d * _metadata.getSize() * Math.pow( 1.0d * _requestedHeight / _metadata.getHeight(), 2 );
 
-        // now compute the difference in estimated microseconds (assuming 10 mbps)...
-        return (int) Math.round(bgBytes - siBytes);  // each byte is about 10 bits on the wire, so each byte is a microsecond, more or less...
+        // now convert the difference into microseconds at the throughput we've been seeing for this class of client...
+        return ImageCostModel.INSTANCE.getSendingCost( _clientClass, bgBytes - siBytes );
     }
 
 
-    private int calcScalingCost( final BlogObjectMetadata _metadata, final int _requestedHeight ) {
+    /*
+     * Returns the estimated time (in microseconds) to make a scaled image of the given height.
+     */
+    private double calcScalingCost( final BlogObjectMetadata _metadata, final int _requestedHeight ) {
 
-        // some basic numbers...
-        double r = 1.0d * _metadata.getHeight() / _requestedHeight;  // always >= 1.0
-        double i = Math.floor( r );
-        double f = r - i;
-        int rw = (int) Math.ceil( 1.0d * _requestedHeight * _metadata.getWidth() / _metadata.getHeight() );
-        int t = _requestedHeight * rw;
+        // the scaler decodes the base image with subsampling, keeping at least twice the requested height...
+        int subsampling = Math.max( 1, _metadata.getHeight() / (2 * _requestedHeight) );
+        long decoded = (long) ((_metadata.getWidth() + subsampling - 1) / subsampling) * ((_metadata.getHeight() + subsampling - 1) / subsampling);
 
-        // calculate the number of pixels we have to touch in the source per pixel in the destination...
-        double p = 2*i*f*f + f*f + 2*i*i*f + i*i;
+        // and produces an image of the requested height, in the base image's proportions...
+        long rw = Math.max( 1, (long) Math.floor( 1.0d * _requestedHeight * _metadata.getWidth() / _metadata.getHeight() ) );
 
-        // now total the touched pixels, times a guesstimate of the cost (in microseconds) per pixel touched...
-        return (int) Math.round( p * t * 0.01d );
+        return ImageCostModel.INSTANCE.getScalingCost( decoded, rw * _requestedHeight );
     }
 
 
@@ -189,7 +142,7 @@ public class ScalableImageResponder implements Responder {
 
         // if we don't have any scaled images, the biggest scaled image is too small,
         // or if the requested height is larger than the base image's, return the base image...
-        ScaledImage[] scaledImages = _metadata.getScaledImages();
+        ScaledImage[] scaledImages = _metadata.getScaledImages( null );
         if( (scaledImages == null) || (scaledImages.length == 0) || (scaledImages[scaledImages.length - 1].height < targetHeight)
                 || (_metadata.getHeight() < targetHeight) )
 
@@ -206,63 +159,16 @@ public class ScalableImageResponder implements Responder {
     }
 
 
-    private BufferedImage readBaseImage( final BlogObjectMetadata _metadata, final ContentCompressionState _compressionState,
-                                         final boolean _isCacheable ) throws StorageException, IOException {
-
-        BlogContentObject obj = (BlogContentObject)
-                BlogServer.STORAGE.read( _metadata.getContent(), _metadata.getContentType(), null, _compressionState, _isCacheable );
-
-        BufferedImage bi = ImageIO.read( obj.getStream() );
-        _metadata.setHeight( bi.getHeight() );
-        _metadata.setWidth( bi.getWidth() );
-        _metadata.setSize( obj.contentLength() );
-        return bi;
-    }
-
-
-    /**
-     * Blocks until an exclusive lock is obtained for the given blog ID.
-     *
-     * @param _id the blog ID to obtain a lock for
-     */
-    private void getLock( final BlogID _id ) {
-
-        // get or make our lock...
-        Semaphore semaphore;
-        synchronized( locks ) {
-            semaphore = locks.get( _id.getID() );
-            if( semaphore == null ) {
-                semaphore = new Semaphore( 1 );
-                locks.put( _id.getID(), semaphore );
-            }
-        }
-
-        // block until (and if!) we get a permit...
-        semaphore.acquireUninterruptibly();
-    }
-
-
-    /**
-     * Releases a previously obtained exclusive lock on the given blog ID.
-     *
-     * @param _id the blog ID to release a lock for
+    /*
+     * Returns the variant of the given type at exactly the given height, or null if we don't have it.
      */
-    private void releaseLock( final BlogID _id ) {
-
-        // get our lock (and we'd better darned well have one!)...
-        Semaphore semaphore;
-        synchronized( locks ) {
-            semaphore = locks.get( _id.getID() );
-            if( semaphore == null ) {
-                LOG.error( "Trying to release a lock on a blog ID that has no lock: " + _id );
-                return;
-            }
-
-            // release our permit and delete the lock if no other threads are waiting on it...
-            semaphore.release();
-            if( !semaphore.hasQueuedThreads() ) {
-                locks.remove( _id.getID() );
-            }
-        }
+    private ScaledImage getVariant( final BlogObjectMetadata _metadata, final BlogObjectType _type, final int _height ) {
+
+        ScaledImage[] variants = _metadata.getScaledImages( _type );
+        if( variants != null )
+            for( ScaledImage variant : variants )
+                if( variant.height == _height )
+                    return variant;
+        return null;
     }
 }
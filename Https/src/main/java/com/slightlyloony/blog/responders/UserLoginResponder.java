@@ -1,8 +1,6 @@
 package com.slightlyloony.blog.responders;
 
-import com.google.gson.Gson;
 import com.slightlyloony.blog.Blog;
-import com.slightlyloony.blog.BlogServer;
 import com.slightlyloony.blog.events.EventType;
 import com.slightlyloony.blog.events.Events;
 import com.slightlyloony.blog.handlers.BlogRequest;
@@ -10,13 +8,19 @@ import com.slightlyloony.blog.handlers.BlogResponse;
 import com.slightlyloony.blog.handlers.Constants;
 import com.slightlyloony.blog.handlers.cookies.ResponseCookie;
 import com.slightlyloony.blog.objects.BlogObjectMetadata;
+import com.slightlyloony.blog.security.BlogSession;
 import com.slightlyloony.blog.security.BlogSessionManager;
 import com.slightlyloony.blog.storage.StorageException;
+import com.slightlyloony.blog.users.PasswordVerifier;
+import com.slightlyloony.blog.users.PasswordVerifier.Outcome;
 import com.slightlyloony.blog.users.User;
+import com.slightlyloony.blog.users.UserWriteBehind;
+import com.slightlyloony.blog.util.Json;
 import com.slightlyloony.blog.util.S;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
 import static com.slightlyloony.blog.security.BlogAccessRight.*;
@@ -27,6 +31,9 @@ import static com.slightlyloony.blog.security.BlogAccessRight.*;
  * have a property "success", which is a boolean that is true if the login succeeded.  The other property is present only on failure; it is
  * named "reason", and is a string field describing the reason that the login attempt failed.  If the login succeeded, the user's object is added
  * to the session, and the session gains logged-in user rights.
+ * <p>
+ * Passwords are verified by the {@link PasswordVerifier}, which limits how many logins are checked at once; a login it refuses for that reason is
+ * answered with a 503 status (and a reason), and doesn't count as a login failure.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
@@ -50,12 +57,23 @@ public class UserLoginResponder implements Responder {
         try {
             // decode the request...
             String json = S.fromUTF8( _request.getPostData() );
-            LoginRequest req = new Gson().fromJson( json, LoginRequest.class );
+            LoginRequest req = Json.GSON.fromJson( json, LoginRequest.class );
             LOG.info( "Got user login request for user: " + req.user );
 
-            // retrieve the user and see if the password matches...
+            // retrieve the user and see if the password matches (verified off this thread, and subject to the limits on logins)...
             User user = _request.getBlog().getUsers().getUserFromUsername( req.user );
-            if( (user != null) && user.passwordOK( req.password ) ) {
+            Outcome outcome = (user == null) ? Outcome.MISMATCH : PasswordVerifier.INSTANCE.verify( user, req.password, _request.getRemoteAddress() );
+
+            // if we're too busy with logins to check the password right now, ask the client to try again...
+            if( outcome == Outcome.BUSY ) {
+                _response.setResponseCode( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+                _response.sendJSONResponse( "{\"success\":false,\"reason\":\"Too many logins in progress; please try again in a moment.\"}" );
+            }
+
+            else if( outcome == Outcome.MATCH ) {
+
+                // get our session now (making one if need be), so its cookie goes out with the response...
+                BlogSession session = _request.getSession();
 
                 // send a success response...
                 _response.sendJSONResponse( "{\"success\":true}" );
@@ -64,7 +82,8 @@ public class UserLoginResponder implements Responder {
                 user.addRight( AUTHENTICATED );
                 user.addRight( PUBLIC );
                 user.addRight( SESSION );
-                _request.getSession().putUser( user );
+                if( session != null )
+                    session.putUser( user );
 
                 // if "remember me" was checked, set a user cookie...
                 if( req.rememberMe ) {
@@ -77,10 +96,10 @@ public class UserLoginResponder implements Responder {
                         token = BlogSessionManager.INSTANCE.generateToken();
                         user.setCookie( token );
 
-                        // update the user and the users index...
+                        // update the user and the users index (both are written to storage lazily)...
                         user.updateIfDirty();
                         blog.getUsers().indexUser( user.getBlogID(), user );
-                        BlogServer.STORAGE.update( blog.getUsers() );
+                        UserWriteBehind.INSTANCE.schedule( blog.getUsers() );
                     }
 
                     // set the cookie...
@@ -90,7 +109,7 @@ public class UserLoginResponder implements Responder {
                 }
 
                 // fire success event...
-                Events.fire( EventType.USER_LOGIN, _request.getSession() );
+                Events.fire( EventType.USER_LOGIN, session );
             }
 
             // otherwise, the login attempt failed...
@@ -1,6 +1,5 @@
 package com.slightlyloony.blog.responders;
 
-import com.google.gson.Gson;
 import com.slightlyloony.blog.Blog;
 import com.slightlyloony.blog.handlers.BlogRequest;
 import com.slightlyloony.blog.handlers.BlogResponse;
@@ -8,6 +7,7 @@ import com.slightlyloony.blog.handlers.Constants;
 import com.slightlyloony.blog.handlers.cookies.ResponseCookie;
 import com.slightlyloony.blog.objects.BlogObjectMetadata;
 import com.slightlyloony.blog.storage.StorageException;
+import com.slightlyloony.blog.util.Json;
 import com.slightlyloony.blog.util.S;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -39,7 +39,7 @@ public class UserLogoutResponder implements Responder {
         try {
             // decode the request...
             String json = S.fromUTF8( _request.getPostData() );
-            LogoutRequest req = new Gson().fromJson( json, LogoutRequest.class );
+            LogoutRequest req = Json.GSON.fromJson( json, LogoutRequest.class );
             LOG.info( "Got user logout request" );
 
             // if we got a proper request...
@@ -0,0 +1,624 @@
+package com.slightlyloony.blog.responders;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Static container class for a pure Java lossless WebP encoder, producing the "VP8L" bitstream (see Google's "WebP Lossless Bitstream
+ * Specification").  Neither the JDK nor any of our dependencies can write WebP, so this is our own; it works entirely offline, and makes no use of
+ * native code.
+ * <p>
+ * The encoder uses just two of the format's transforms: "subtract green", then a spatial predictor chosen for each 16x16 block from a handful of
+ * the format's predictors (left, top, the average of those two, and the clamped gradient).  The residuals are then compressed with LZ77 backward
+ * references (found through a hash chain) and a single group of canonical Huffman codes.  There's no color cache, color indexing, or cross-color
+ * transform, so the output is somewhat larger than the best encoders produce - but still usually well smaller than the same image as a PNG.
+ * <p>
+ * Being lossless, this is no use for images that are already lossy (like JPEGs): re-encoding those losslessly makes them bigger, not smaller.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class WebPEncoder {
+
+    private static final int MAX_DIMENSION = 1 << 14;
+    private static final int SIGNATURE = 0x2F;
+    private static final int PREDICTOR_TRANSFORM = 0;
+    private static final int SUBTRACT_GREEN_TRANSFORM = 2;
+    private static final int PREDICTOR_BITS = 4;                     // predictors are chosen for each 16x16 block...
+    private static final int[] PREDICTORS = { 1, 2, 7, 12 };         // left, top, average of left and top, clamped gradient...
+    private static final int NUM_LITERAL_CODES = 256;
+    private static final int NUM_LENGTH_CODES = 24;
+    private static final int NUM_DISTANCE_CODES = 40;
+    private static final int MAX_CODE_LENGTH = 15;
+    private static final int MAX_CODE_LENGTH_CODE_LENGTH = 7;
+    private static final int[] CODE_LENGTH_ORDER = { 17, 18, 0, 1, 2, 3, 4, 5, 16, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 };
+    private static final int PLANE_CODES = 120;                      // distance codes up to this are 2D neighborhood codes, which we don't use...
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 4096;
+    private static final int MAX_DISTANCE = (1 << 20) - PLANE_CODES;
+    private static final int HASH_BITS = 16;
+    private static final int MAX_CHAIN = 16;                         // the most earlier positions checked for each match...
+
+
+    /**
+     * Returns the given image, encoded as a lossless WebP file.
+     *
+     * @param _image the image to encode
+     * @return the bytes of the WebP file
+     * @throws IOException if the image is too big for WebP
+     */
+    public static byte[] encode( final BufferedImage _image ) throws IOException {
+
+        int width = _image.getWidth();
+        int height = _image.getHeight();
+        if( (width > MAX_DIMENSION) || (height > MAX_DIMENSION) )
+            throw new IOException( "Image is too big for WebP: " + width + "x" + height );
+
+        // get the (non-premultiplied) ARGB pixels, and see whether we need alpha at all...
+        int[] argb = _image.getRGB( 0, 0, width, height, null, 0, width );
+        boolean alpha = false;
+        for( int pixel : argb )
+            if( (pixel >>> 24) != 0xFF ) {
+                alpha = true;
+                break;
+            }
+
+        BitWriter out = new BitWriter( argb.length );
+        out.write( SIGNATURE, 8 );
+        out.write( width - 1, 14 );
+        out.write( height - 1, 14 );
+        out.write( alpha ? 1 : 0, 1 );
+        out.write( 0, 3 );  // version...
+
+        // the transforms, in the order we apply them (the decoder undoes them in reverse)...
+        subtractGreen( argb );
+        out.write( 1, 1 );
+        out.write( SUBTRACT_GREEN_TRANSFORM, 2 );
+
+        int[] modes = predict( argb, width, height );
+        out.write( 1, 1 );
+        out.write( PREDICTOR_TRANSFORM, 2 );
+        out.write( PREDICTOR_BITS - 2, 3 );
+        writeImage( out, modes, false );
+
+        out.write( 0, 1 );  // no more transforms...
+
+        writeImage( out, argb, true );
+
+        return riff( out.toByteArray() );
+    }
+
+
+    /*
+     * Subtracts the green component of each pixel from its red and blue components.
+     */
+    private static void subtractGreen( final int[] _argb ) {
+
+        for( int i = 0; i < _argb.length; i++ ) {
+            int pixel = _argb[i];
+            int green = (pixel >>> 8) & 0xFF;
+            int red = (((pixel >>> 16) & 0xFF) - green) & 0xFF;
+            int blue = ((pixel & 0xFF) - green) & 0xFF;
+            _argb[i] = (pixel & 0xFF00FF00) | (red << 16) | blue;
+        }
+    }
+
+
+    /*
+     * Chooses a predictor for each block, replaces each pixel with its residual from its prediction, and returns the predictor sub-image (with
+     * each block's predictor in the green component of its pixel).
+     */
+    private static int[] predict( final int[] _argb, final int _width, final int _height ) {
+
+        int blockSize = 1 << PREDICTOR_BITS;
+        int blocksWide = (_width + blockSize - 1) >> PREDICTOR_BITS;
+        int blocksHigh = (_height + blockSize - 1) >> PREDICTOR_BITS;
+        int[] modes = new int[blocksWide * blocksHigh];
+
+        // predictions must be made from the original pixels, so we work from a copy...
+        int[] original = _argb.clone();
+
+        for( int by = 0; by < blocksHigh; by++ ) {
+            for( int bx = 0; bx < blocksWide; bx++ ) {
+
+                int x0 = bx << PREDICTOR_BITS;
+                int y0 = by << PREDICTOR_BITS;
+                int x1 = Math.min( _width, x0 + blockSize );
+                int y1 = Math.min( _height, y0 + blockSize );
+
+                // pick the predictor that leaves the smallest residuals in this block...
+                int best = PREDICTORS[0];
+                long bestCost = Long.MAX_VALUE;
+                for( int mode : PREDICTORS ) {
+                    long cost = 0;
+                    for( int y = y0; y < y1; y++ )
+                        for( int x = x0; x < x1; x++ )
+                            cost += residualCost( original[y * _width + x], prediction( original, _width, x, y, mode ) );
+                    if( cost < bestCost ) {
+                        bestCost = cost;
+                        best = mode;
+                    }
+                }
+                modes[by * blocksWide + bx] = 0xFF000000 | (best << 8);
+
+                for( int y = y0; y < y1; y++ )
+                    for( int x = x0; x < x1; x++ )
+                        _argb[y * _width + x] = subtract( original[y * _width + x], prediction( original, _width, x, y, best ) );
+            }
+        }
+        return modes;
+    }
+
+
+    /*
+     * Returns the prediction for the pixel at the given position with the given predictor, following the format's rules for the edges (the top
+     * left pixel is predicted as opaque black, the rest of the top row from the left, and the rest of the left column from the top).
+     */
+    private static int prediction( final int[] _argb, final int _width, final int _x, final int _y, final int _mode ) {
+
+        if( _y == 0 )
+            return (_x == 0) ? 0xFF000000 : _argb[_x - 1];
+        int i = _y * _width + _x;
+        if( _x == 0 )
+            return _argb[i - _width];
+
+        int left = _argb[i - 1];
+        int top = _argb[i - _width];
+        switch( _mode ) {
+            case 1:  return left;
+            case 2:  return top;
+            case 7:  return average( left, top );
+            case 12: return clampedGradient( left, top, _argb[i - _width - 1] );
+            default: throw new IllegalStateException( "Unsupported predictor: " + _mode );
+        }
+    }
+
+
+    private static int average( final int _a, final int _b ) {
+        return (((_a ^ _b) & 0xFEFEFEFE) >>> 1) + (_a & _b);
+    }
+
+
+    private static int clampedGradient( final int _left, final int _top, final int _topLeft ) {
+
+        int result = 0;
+        for( int shift = 0; shift < 32; shift += 8 ) {
+            int c = ((_left >>> shift) & 0xFF) + ((_top >>> shift) & 0xFF) - ((_topLeft >>> shift) & 0xFF);
+            result |= Math.max( 0, Math.min( 255, c ) ) << shift;
+        }
+        return result;
+    }
+
+
+    private static int subtract( final int _pixel, final int _prediction ) {
+
+        int result = 0;
+        for( int shift = 0; shift < 32; shift += 8 )
+            result |= ((((_pixel >>> shift) & 0xFF) - ((_prediction >>> shift) & 0xFF)) & 0xFF) << shift;
+        return result;
+    }
+
+
+    /*
+     * A rough measure of how expensive the residual between the given pixel and prediction will be to code: the sum of the magnitudes of the
+     * (wrapped) component differences.
+     */
+    private static int residualCost( final int _pixel, final int _prediction ) {
+
+        int residual = subtract( _pixel, _prediction );
+        int cost = 0;
+        for( int shift = 0; shift < 32; shift += 8 ) {
+            int c = (residual >>> shift) & 0xFF;
+            cost += Math.min( c, 256 - c );
+        }
+        return cost;
+    }
+
+
+    /*
+     * Writes the given pixels as an entropy-coded image: no color cache, (for the main image) no meta prefix codes, one group of five prefix codes,
+     * and then the pixels as literals and backward references.
+     */
+    private static void writeImage( final BitWriter _out, final int[] _argb, final boolean _main ) {
+
+        _out.write( 0, 1 );      // no color cache...
+        if( _main )
+            _out.write( 0, 1 );  // no meta prefix codes...
+
+        // tokenize, and count the symbols in each of our five alphabets...
+        int[] tokens = tokenize( _argb );
+        int[] green = new int[NUM_LITERAL_CODES + NUM_LENGTH_CODES];
+        int[] red = new int[NUM_LITERAL_CODES];
+        int[] blue = new int[NUM_LITERAL_CODES];
+        int[] alpha = new int[NUM_LITERAL_CODES];
+        int[] distance = new int[NUM_DISTANCE_CODES];
+        for( int t = 0; t < tokens.length; t += 2 ) {
+            if( tokens[t] == 0 ) {
+                int pixel = tokens[t + 1];
+                green[(pixel >>> 8) & 0xFF]++;
+                red[(pixel >>> 16) & 0xFF]++;
+                blue[pixel & 0xFF]++;
+                alpha[pixel >>> 24]++;
+            }
+            else {
+                green[NUM_LITERAL_CODES + prefix( tokens[t] )]++;
+                distance[prefix( tokens[t + 1] + PLANE_CODES )]++;
+            }
+        }
+
+        Code greenCode = writeCode( _out, green );
+        Code redCode = writeCode( _out, red );
+        Code blueCode = writeCode( _out, blue );
+        Code alphaCode = writeCode( _out, alpha );
+        Code distanceCode = writeCode( _out, distance );
+
+        for( int t = 0; t < tokens.length; t += 2 ) {
+            if( tokens[t] == 0 ) {
+                int pixel = tokens[t + 1];
+                greenCode.write( _out, (pixel >>> 8) & 0xFF );
+                redCode.write( _out, (pixel >>> 16) & 0xFF );
+                blueCode.write( _out, pixel & 0xFF );
+                alphaCode.write( _out, pixel >>> 24 );
+            }
+            else {
+                int length = tokens[t];
+                int code = tokens[t + 1] + PLANE_CODES;
+                greenCode.write( _out, NUM_LITERAL_CODES + prefix( length ) );
+                writeExtraBits( _out, length );
+                distanceCode.write( _out, prefix( code ) );
+                writeExtraBits( _out, code );
+            }
+        }
+    }
+
+
+    /*
+     * Turns the given pixels into pairs of ints: either zero and a literal pixel, or the length and distance of a backward reference.  Matches are
+     * found greedily, through a hash chain on pairs of pixels.
+     */
+    private static int[] tokenize( final int[] _argb ) {
+
+        int n = _argb.length;
+        int[] head = new int[1 << HASH_BITS];
+        Arrays.fill( head, -1 );
+        int[] previous = new int[n];
+        IntList tokens = new IntList( n / 2 );
+
+        int i = 0;
+        while( i < n ) {
+
+            int bestLength = 0;
+            int bestDistance = 0;
+            if( i + 1 < n ) {
+                int hash = hash( _argb[i], _argb[i + 1] );
+                int max = Math.min( MAX_MATCH, n - i );
+                for( int candidate = head[hash], chain = 0; (candidate >= 0) && (chain < MAX_CHAIN) && (i - candidate <= MAX_DISTANCE);
+                     candidate = previous[candidate], chain++ ) {
+                    int length = 0;
+                    while( (length < max) && (_argb[candidate + length] == _argb[i + length]) )
+                        length++;
+                    if( length > bestLength ) {
+                        bestLength = length;
+                        bestDistance = i - candidate;
+                        if( length == max )
+                            break;
+                    }
+                }
+            }
+
+            int step;
+            if( bestLength >= MIN_MATCH ) {
+                tokens.add( bestLength );
+                tokens.add( bestDistance );
+                step = bestLength;
+            }
+            else {
+                tokens.add( 0 );
+                tokens.add( _argb[i] );
+                step = 1;
+            }
+
+            // remember every position we pass for later matches...
+            for( int end = i + step; i < end; i++ )
+                if( i + 1 < n ) {
+                    int hash = hash( _argb[i], _argb[i + 1] );
+                    previous[i] = head[hash];
+                    head[hash] = i;
+                }
+        }
+        return tokens.toArray();
+    }
+
+
+    private static int hash( final int _a, final int _b ) {
+        return (int) (((_a * 0x9E3779B1L) ^ (_b * 0x85EBCA6BL)) >>> 7) & ((1 << HASH_BITS) - 1);
+    }
+
+
+    /*
+     * Returns the prefix code for the given length or distance code value (which is at least one).
+     */
+    private static int prefix( final int _value ) {
+
+        int d = _value - 1;
+        if( d < 4 )
+            return d;
+        int highest = 31 - Integer.numberOfLeadingZeros( d );
+        return 2 * highest + ((d >>> (highest - 1)) & 1);
+    }
+
+
+    private static void writeExtraBits( final BitWriter _out, final int _value ) {
+
+        int d = _value - 1;
+        if( d < 4 )
+            return;
+        int bits = 30 - Integer.numberOfLeadingZeros( d );
+        _out.write( d & ((1 << bits) - 1), bits );
+    }
+
+
+    /*
+     * Builds a prefix code for the given symbol counts, writes it, and returns it.  Alphabets using at most one symbol (below 256) are written as
+     * "simple" codes, whose symbol takes no bits at all; any other alphabet with just one symbol gets a second, unused one, as a code must have
+     * at least two symbols to take any bits.
+     */
+    private static Code writeCode( final BitWriter _out, final int[] _counts ) {
+
+        int used = 0;
+        int last = 0;
+        for( int s = 0; s < _counts.length; s++ )
+            if( _counts[s] > 0 ) {
+                used++;
+                last = s;
+            }
+
+        if( (used == 0) || ((used == 1) && (last < NUM_LITERAL_CODES)) ) {
+            _out.write( 1, 1 );  // simple...
+            _out.write( 0, 1 );  // one symbol...
+            if( last < 2 ) {
+                _out.write( 0, 1 );
+                _out.write( last, 1 );
+            }
+            else {
+                _out.write( 1, 1 );
+                _out.write( last, 8 );
+            }
+            return new Code( new int[_counts.length] );
+        }
+
+        int[] lengths = codeLengths( withTwoSymbols( _counts ), MAX_CODE_LENGTH );
+        _out.write( 0, 1 );  // normal...
+
+        // run-length code the code lengths: 17 and 18 code runs of zeros, anything else is a literal length...
+        IntList symbols = new IntList( lengths.length );
+        for( int s = 0; s < lengths.length; ) {
+            int run = 1;
+            while( (s + run < lengths.length) && (lengths[s + run] == lengths[s]) )
+                run++;
+            if( (lengths[s] == 0) && (run >= 3) ) {
+                run = Math.min( run, 138 );
+                symbols.add( (run >= 11) ? 18 : 17 );
+                symbols.add( run );
+            }
+            else {
+                run = 1;
+                symbols.add( lengths[s] );
+                symbols.add( 0 );
+            }
+            s += run;
+        }
+        int[] rle = symbols.toArray();
+
+        int[] counts = new int[CODE_LENGTH_ORDER.length];
+        for( int i = 0; i < rle.length; i += 2 )
+            counts[rle[i]]++;
+        Code lengthCode = new Code( codeLengths( withTwoSymbols( counts ), MAX_CODE_LENGTH_CODE_LENGTH ) );
+
+        int numCodes = CODE_LENGTH_ORDER.length;
+        while( (numCodes > 4) && (lengthCode.lengths[CODE_LENGTH_ORDER[numCodes - 1]] == 0) )
+            numCodes--;
+        _out.write( numCodes - 4, 4 );
+        for( int i = 0; i < numCodes; i++ )
+            _out.write( lengthCode.lengths[CODE_LENGTH_ORDER[i]], 3 );
+        _out.write( 0, 1 );  // lengths for the whole alphabet follow...
+
+        for( int i = 0; i < rle.length; i += 2 ) {
+            lengthCode.write( _out, rle[i] );
+            if( rle[i] == 17 )
+                _out.write( rle[i + 1] - 3, 3 );
+            else if( rle[i] == 18 )
+                _out.write( rle[i + 1] - 11, 7 );
+        }
+
+        return new Code( lengths );
+    }
+
+
+    private static int[] withTwoSymbols( final int[] _counts ) {
+
+        int used = 0;
+        for( int count : _counts )
+            if( count > 0 )
+                used++;
+        if( used >= 2 )
+            return _counts;
+
+        int[] result = _counts.clone();
+        result[(result[0] == 0) ? 0 : 1] = 1;
+        return result;
+    }
+
+
+    /*
+     * Returns Huffman code lengths for the given symbol counts (which include at least two non-zero counts), no longer than the given maximum.  If
+     * the optimal code is too long, the smallest counts are raised until it isn't.
+     */
+    private static int[] codeLengths( final int[] _counts, final int _maxLength ) {
+
+        for( int floor = 1; ; floor *= 2 ) {
+
+            int n = _counts.length;
+            long[] weights = new long[2 * n];
+            int[] parents = new int[2 * n];
+            PriorityQueue<Long> queue = new PriorityQueue<>();
+            for( int s = 0; s < n; s++ )
+                if( _counts[s] > 0 ) {
+                    weights[s] = Math.max( _counts[s], floor );
+                    queue.add( (weights[s] << 20) | s );
+                }
+
+            int next = n;
+            while( queue.size() > 1 ) {
+                int a = (int) (queue.poll() & 0xFFFFF);
+                int b = (int) (queue.poll() & 0xFFFFF);
+                weights[next] = weights[a] + weights[b];
+                parents[a] = next;
+                parents[b] = next;
+                queue.add( (weights[next] << 20) | next );
+                next++;
+            }
+            int root = next - 1;
+
+            int[] lengths = new int[n];
+            int longest = 0;
+            for( int s = 0; s < n; s++ )
+                if( _counts[s] > 0 ) {
+                    int length = 0;
+                    for( int node = s; node != root; node = parents[node] )
+                        length++;
+                    lengths[s] = length;
+                    longest = Math.max( longest, length );
+                }
+            if( longest <= _maxLength )
+                return lengths;
+        }
+    }
+
+
+    /*
+     * Wraps the given VP8L bitstream in a RIFF container.
+     */
+    private static byte[] riff( final byte[] _bitstream ) {
+
+        int padded = _bitstream.length + (_bitstream.length & 1);
+        ByteArrayOutputStream result = new ByteArrayOutputStream( padded + 20 );
+        result.write( "RIFF".getBytes( StandardCharsets.US_ASCII ), 0, 4 );
+        writeInt( result, 4 + 8 + padded );
+        result.write( "WEBPVP8L".getBytes( StandardCharsets.US_ASCII ), 0, 8 );
+        writeInt( result, _bitstream.length );
+        result.write( _bitstream, 0, _bitstream.length );
+        if( padded != _bitstream.length )
+            result.write( 0 );
+        return result.toByteArray();
+    }
+
+
+    private static void writeInt( final ByteArrayOutputStream _out, final int _value ) {
+        for( int shift = 0; shift < 32; shift += 8 )
+            _out.write( (_value >>> shift) & 0xFF );
+    }
+
+
+    /*
+     * A canonical prefix code: the length of each symbol's code, and the code itself (bit reversed, as codes are written starting with their
+     * most significant bit into a stream that's filled from the least significant bit).
+     */
+    private static class Code {
+
+        private final int[] lengths;
+        private final int[] codes;
+
+
+        private Code( final int[] _lengths ) {
+
+            lengths = _lengths;
+            codes = new int[_lengths.length];
+
+            int[] lengthCounts = new int[MAX_CODE_LENGTH + 1];
+            for( int length : _lengths )
+                if( length > 0 )
+                    lengthCounts[length]++;
+            int[] nextCode = new int[MAX_CODE_LENGTH + 1];
+            int code = 0;
+            for( int length = 1; length <= MAX_CODE_LENGTH; length++ ) {
+                code = (code + lengthCounts[length - 1]) << 1;
+                nextCode[length] = code;
+            }
+            for( int s = 0; s < _lengths.length; s++ )
+                if( _lengths[s] > 0 )
+                    codes[s] = Integer.reverse( nextCode[_lengths[s]]++ ) >>> (32 - _lengths[s]);
+        }
+
+
+        private void write( final BitWriter _out, final int _symbol ) {
+            _out.write( codes[_symbol], lengths[_symbol] );
+        }
+    }
+
+
+    /*
+     * Writes bits into bytes, starting with the least significant bit of each byte.
+     */
+    private static class BitWriter {
+
+        private byte[] bytes;
+        private int size;
+        private long buffer;
+        private int bits;
+
+
+        private BitWriter( final int _pixels ) {
+            bytes = new byte[Math.max( 1024, _pixels )];
+        }
+
+
+        private void write( final int _value, final int _bits ) {
+
+            buffer |= ((long) _value & ((1L << _bits) - 1)) << bits;
+            bits += _bits;
+            while( bits >= 8 ) {
+                if( size == bytes.length )
+                    bytes = Arrays.copyOf( bytes, 2 * size );
+                bytes[size++] = (byte) buffer;
+                buffer >>>= 8;
+                bits -= 8;
+            }
+        }
+
+
+        private byte[] toByteArray() {
+
+            if( bits > 0 )
+                write( 0, 8 - bits );
+            return Arrays.copyOf( bytes, size );
+        }
+    }
+
+
+    private static class IntList {
+
+        private int[] values;
+        private int size;
+
+
+        private IntList( final int _capacity ) {
+            values = new int[Math.max( 16, _capacity )];
+        }
+
+
+        private void add( final int _value ) {
+            if( size == values.length )
+                values = Arrays.copyOf( values, 2 * size );
+            values[size++] = _value;
+        }
+
+
+        private int[] toArray() {
+            return Arrays.copyOf( values, size );
+        }
+    }
+}
@@ -165,6 +165,16 @@ public class BlogSession {
     }
 
 
+    public synchronized long getLastUsed() {
+        return lastUsed;
+    }
+
+
+    public synchronized BlogSessionState getState() {
+        return state;
+    }
+
+
     public enum BlogSessionState {
 
         ACTIVE,
@@ -1,11 +1,15 @@
 package com.slightlyloony.blog.security;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.BaseEncoding;
+import com.google.gson.JsonObject;
 import com.slightlyloony.blog.ServerInit;
 import com.slightlyloony.blog.events.EventType;
 import com.slightlyloony.blog.events.Events;
 import com.slightlyloony.blog.handlers.HandlerIllegalStateException;
 import com.slightlyloony.blog.util.Timer;
+import com.slightlyloony.blog.util.TimerWheel;
 import com.slightlyloony.common.ExecutionService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,10 +17,11 @@ import org.apache.logging.log4j.Logger;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.slightlyloony.common.logging.LU.msg;
 
@@ -25,9 +30,15 @@ import static com.slightlyloony.common.logging.LU.msg;
  * management at first, but were unhappy with its complexity and opaqueness, as well as with its performance.  It's designed for a far more complex
  * and varied environment than we need for the blog.  Simpler, more transparent, and more performant is what we want ... so we rolled our own.
  * <p>
- * This is a classic session manager that works by using session cookies.  Session cookies are issued with randomly generated tokens, and a simple
- * map keeps track of these.  The tokens timeout after a configurable idle period, and timed-out tokens are tracked for 10x the idle period to
- * ensure they are not accidentally reused.
+ * This is a classic session manager that works by using session cookies.  Session cookies are issued with randomly generated tokens, and a map
+ * keeps track of these.  The tokens timeout after a configurable idle period, and timed-out tokens are tracked (as tombstones, with their data
+ * cleared) for 10x the idle period to ensure they are not accidentally reused.
+ * <p>
+ * The map is split into shards by token, each with its own lock and its own {@link TimerWheel} of expiry times, so that sessions expire without
+ * anything ever scanning all of them.  Each session is on its shard's wheel once, due when it would go idle (or, as a tombstone, when it's to be
+ * removed).  When it comes due, it's either expired, or - if it has been used since it was scheduled - just scheduled again for when it would go
+ * idle now; using a session never touches the wheel.  So expiring sessions costs a small constant amount per session per idle period, however
+ * many sessions there are.
  * <p>
  * This class is a singleton.  It is threadsafe.
  *
@@ -39,26 +50,37 @@ public class BlogSessionManager {
 
     private final static Logger LOG = LogManager.getLogger();
     private final static int TOKEN_FILL_INTERVAL_MS = 1000;
-    private final static int SESSION_SCAVENGE_INTERVAL = 30;  // in multiples of TOKEN_FILL_INTERVAL...
+    private final static int TICK_MS = TOKEN_FILL_INTERVAL_MS;  // the resolution of session expiry times...
     private final static int TOKEN_QUEUE_SIZE = 250;
     private final static int REMOVAL_MULTIPLE = 10; // how long to wait before removing a session, in idle timeout intervals...
+    private final static int SHARDS = 16;           // must be a power of two...
+    private final static long LIVE_MS = 60000;      // sessions used within this long are counted as live, and the others as idle...
 
-    private final ConcurrentHashMap<String,BlogSession> sessions;
+    private final Shard[] shards;
     private final SecureRandom random;
     private final LinkedBlockingQueue<String> newTokens;
     private final long idleTimeout;
-
-    private int tokenFillIntervals;
+    private final AtomicLong created;
+    private final AtomicLong inactivated;
+    private final AtomicLong killed;
+    private final AtomicLong rescheduled;
+    private final AtomicLong tokensGenerated;  // tokens generated on the spot because the inventory was empty...
 
 
     private BlogSessionManager() {
 
         // set up our basic structures...
-        sessions = new ConcurrentHashMap<>();
+        long now = System.currentTimeMillis() / TICK_MS;
+        shards = new Shard[SHARDS];
+        for( int i = 0; i < SHARDS; i++ )
+            shards[i] = new Shard( now );
         newTokens = new LinkedBlockingQueue<>( TOKEN_QUEUE_SIZE );
         idleTimeout = ServerInit.getConfig().getSessionIdleTimeout();
-
-        tokenFillIntervals = 0;
+        created = new AtomicLong();
+        inactivated = new AtomicLong();
+        killed = new AtomicLong();
+        rescheduled = new AtomicLong();
+        tokensGenerated = new AtomicLong();
 
         // make our random number generator using advice from https://www.cigital.com/blog/proper-use-of-javas-securerandom/
         try {
@@ -88,7 +110,11 @@ public class BlogSessionManager {
      */
     public BlogSession claimSession( final String _sessionID ) {
 
-        BlogSession session = sessions.get( _sessionID );
+        Shard shard = getShard( _sessionID );
+        BlogSession session;
+        synchronized( shard ) {
+            session = shard.sessions.get( _sessionID );
+        }
         if( session == null )
             return null;
 
@@ -97,29 +123,34 @@ public class BlogSessionManager {
 
 
     /**
-     * Creates a new blog session and returns it.
+     * Creates a new blog session and returns it.  The session's token comes from our inventory of pre-generated tokens; if that has run dry (as it
+     * can in a burst of new visitors), a token is generated on the spot rather than waiting for the inventory to be refilled.
      *
      * @return the newly created blog session
      */
     public BlogSession create() {
 
-        try {
-            // get a token that hasn't been used yet...
-            String token = null;
-            while( token == null ) {
-                token = newTokens.take();
-                if( sessions.containsKey( token ) )
-                    token = null;
+        // get a token that hasn't been used yet, and make our shiny new blog session with it, due to go idle after the idle timeout...
+        while( true ) {
+
+            String token = newTokens.poll();
+            if( token == null ) {
+                token = generateToken();
+                tokensGenerated.incrementAndGet();
             }
 
-            // we got one, so now make our shiny new blog session and add it to our collection...
-            BlogSession session = new BlogSession( token );
-            sessions.put( token, session );
-            return session;
-        }
-        catch( InterruptedException e ) {
-            LOG.error( "Interrupted while waiting for a token", e );
-            return null;
+            Shard shard = getShard( token );
+            synchronized( shard ) {
+
+                if( shard.sessions.containsKey( token ) )
+                    continue;
+
+                BlogSession session = new BlogSession( token );
+                shard.sessions.put( token, session );
+                shard.expiries.schedule( session, toTick( session.getLastUsed() + 1000 * idleTimeout ) );
+                created.incrementAndGet();
+                return session;
+            }
         }
     }
 
@@ -144,8 +175,11 @@ public class BlogSessionManager {
 
             // if we already have this new token in our sessions, skip it and get another...
             // note that this DOESN'T check to see if we already have this token in our queue...
-            if( sessions.containsKey( token ))
-                continue;
+            Shard shard = getShard( token );
+            synchronized( shard ) {
+                if( shard.sessions.containsKey( token ) )
+                    continue;
+            }
 
             // try to add our shiny new token, but if we fail because the queue is full, just bail out...
             if( !newTokens.offer( token ) )
@@ -156,37 +190,114 @@ public class BlogSessionManager {
 
         t.mark();
 
-        // if it's not time to scavenge, then we're done...
-        tokenFillIntervals++;
-        if( tokenFillIntervals < SESSION_SCAVENGE_INTERVAL ) {
-            if( added > 0 )
-                LOG.info( msg( "Added {1} new session tokens in {0}", t.toString(), added ) );
-            return;
+        // expire whatever sessions have come due on each shard's wheel...
+        long now = System.currentTimeMillis();
+        List<BlogSession> dead = Lists.newArrayList();
+        for( Shard shard : shards ) {
+            synchronized( shard ) {
+                shard.expiries.advance( now / TICK_MS, _session -> expire( shard, _session, now, dead ) );
+            }
         }
 
-        tokenFillIntervals = 0;
+        // tell everyone about the sessions we killed (outside the shard locks)...
+        for( BlogSession session : dead )
+            Events.fire( EventType.SESSION_KILLED, session );
 
-        // see if any of our existing sessions have timed out...
-        long inactivateThreshold = System.currentTimeMillis() - (1000 * idleTimeout);
-        long removalThreshold = System.currentTimeMillis() - (REMOVAL_MULTIPLE * 1000 * idleTimeout);
-        Iterator<BlogSession> it = sessions.values().iterator();
-        int scavenged = 0;
-        while( it.hasNext() ) {
+        t.mark();
+        if( added > 0 )
+            LOG.info( msg( "Added {1} new session tokens in {0}", t.toString( 1 ), added ) );
+        if( !dead.isEmpty() )
+            LOG.info( msg( "Removed {1} dead sessions in {0}", t.toString( 1, 2 ), dead.size() ) );
+    }
+
+
+    /*
+     * Handles a session that has come due on the given shard's wheel: inactivates it if it has been idle for the idle timeout, kills (and removes)
+     * it if it's been inactive for long enough, and otherwise schedules it again for when one of those will be due.
+     */
+    private void expire( final Shard _shard, final BlogSession _session, final long _now, final List<BlogSession> _dead ) {
 
-            BlogSession session = it.next();
-            if( BlogSession.BlogSessionState.DEAD == session.manageLifecycle( inactivateThreshold, removalThreshold ) ) {
-                Events.fire( EventType.SESSION_KILLED, session );
-                it.remove();
-                scavenged++;
+        long idleMs = 1000 * idleTimeout;
+        BlogSession.BlogSessionState before = _session.getState();
+        BlogSession.BlogSessionState after = _session.manageLifecycle( _now - idleMs, _now - REMOVAL_MULTIPLE * idleMs );
+        switch( after ) {
+
+            case ACTIVE:
+                rescheduled.incrementAndGet();
+                _shard.expiries.schedule( _session, toTick( _session.getLastUsed() + idleMs ) );
+                break;
+
+            case INACTIVE:
+                if( before == BlogSession.BlogSessionState.ACTIVE )
+                    inactivated.incrementAndGet();
+                _shard.expiries.schedule( _session, toTick( _session.getLastUsed() + REMOVAL_MULTIPLE * idleMs ) );
+                break;
+
+            case DEAD:
+                killed.incrementAndGet();
+                _shard.sessions.remove( _session.getToken() );
+                _dead.add( _session );
+                break;
+        }
+    }
+
+
+    /**
+     * Returns the statistics for the sessions, as a JSON object: the numbers of live sessions (used in the last minute), idle sessions (active, but
+     * not used in the last minute), and tombstoned sessions (inactivated, and waiting to be removed), along with the counts of sessions created,
+     * inactivated, killed, and rescheduled (found still in use when they came due), and of tokens generated on the spot because the inventory was
+     * empty.  Counting the sessions in each state means looking at each of
+     * them, so this is for the occasional statistics report only.
+     *
+     * @return the statistics
+     */
+    public JsonObject getStats() {
+
+        long liveThreshold = System.currentTimeMillis() - LIVE_MS;
+        int live = 0;
+        int idle = 0;
+        int tombstoned = 0;
+        int scheduled = 0;
+        for( Shard shard : shards ) {
+            synchronized( shard ) {
+                for( BlogSession session : shard.sessions.values() ) {
+                    if( session.getState() != BlogSession.BlogSessionState.ACTIVE )
+                        tombstoned++;
+                    else if( session.getLastUsed() >= liveThreshold )
+                        live++;
+                    else
+                        idle++;
+                }
+                scheduled += shard.expiries.size();
             }
         }
 
-        t.mark();
-        if( added > 0 )
-            LOG.info( msg( "Added {2} new session tokens in {0}, scavenged {3} dead sessions in {1}",
-                    t.toString( 1 ), t.toString( 1, 2 ), added, scavenged ) );
-        else
-            LOG.info( msg( "Scavenged {1} dead sessions in {0}", t.toString( 1, 2 ), scavenged ) );
+        JsonObject result = new JsonObject();
+        result.addProperty( "live",        live                  );
+        result.addProperty( "idle",        idle                  );
+        result.addProperty( "tombstoned",  tombstoned            );
+        result.addProperty( "scheduled",   scheduled             );
+        result.addProperty( "tokens",      newTokens.size()      );
+        result.addProperty( "tokensShort", tokensGenerated.get() );
+        result.addProperty( "created",     created.get()         );
+        result.addProperty( "inactivated", inactivated.get()     );
+        result.addProperty( "killed",      killed.get()          );
+        result.addProperty( "rescheduled", rescheduled.get()     );
+        return result;
+    }
+
+
+    private Shard getShard( final String _token ) {
+        int hash = _token.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (SHARDS - 1)];
+    }
+
+
+    /*
+     * Returns the tick at or after the given time.
+     */
+    private static long toTick( final long _millis ) {
+        return (_millis + TICK_MS - 1) / TICK_MS;
     }
 
 
@@ -203,4 +314,21 @@ public class BlogSessionManager {
         BaseEncoding encoder = BaseEncoding.base64Url();
         return encoder.encode( bytes );
     }
+
+
+    /*
+     * One shard of the sessions: the sessions whose tokens hash to it, and the wheel they're scheduled to expire on.  Both are guarded by the
+     * shard's monitor.
+     */
+    private static class Shard {
+
+        private final Map<String,BlogSession> sessions;
+        private final TimerWheel<BlogSession> expiries;
+
+
+        private Shard( final long _now ) {
+            sessions = Maps.newHashMap();
+            expiries = new TimerWheel<>( _now );
+        }
+    }
 }
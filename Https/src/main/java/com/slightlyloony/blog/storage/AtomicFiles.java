@@ -0,0 +1,102 @@
+package com.slightlyloony.blog.storage;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Static container class for writing object files so that a crash, or a concurrent reader, sees either the old contents of a file or the new
+ * contents, never a mixture.  The new contents are written to a temporary file in the same directory and forced to disk, the temporary file is
+ * atomically renamed over the target, and finally the directory is forced (see {@link DirectorySync}) so the rename itself is durable.
+ * <p>
+ * The temporary file's name is the target's name with a leading dot and a trailing ".tmp", so that one left behind by a crash is ignored by the
+ * integrity check and the object store iterators.  Callers must not write the same target concurrently; {@link Storage} serializes writes to any
+ * one object.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class AtomicFiles {
+
+
+    /**
+     * Replaces the contents of the given file (creating it if necessary) with the given bytes.
+     *
+     * @param _file the file to replace
+     * @param _bytes the new contents of the file
+     * @throws IOException on any problem
+     */
+    public static void replace( final File _file, final byte[] _bytes ) throws IOException {
+
+        Path temp = getTemp( _file );
+        try {
+            try( FileChannel channel = open( temp ) ) {
+                ByteBuffer buffer = ByteBuffer.wrap( _bytes );
+                while( buffer.hasRemaining() )
+                    channel.write( buffer );
+                channel.force( true );
+            }
+            commit( temp, _file );
+        }
+        catch( IOException | RuntimeException e ) {
+            Files.deleteIfExists( temp );
+            throw e;
+        }
+    }
+
+
+    /**
+     * Replaces the contents of the given file (creating it if necessary) with everything that can be read from the given stream.  The stream is not
+     * closed.
+     *
+     * @param _file the file to replace
+     * @param _stream the new contents of the file
+     * @throws IOException on any problem
+     */
+    public static void replace( final File _file, final InputStream _stream ) throws IOException {
+
+        Path temp = getTemp( _file );
+        try {
+            try( FileChannel channel = open( temp ) ) {
+                OutputStream os = Channels.newOutputStream( channel );
+                ByteStreams.copy( _stream, os );
+                channel.force( true );
+            }
+            commit( temp, _file );
+        }
+        catch( IOException | RuntimeException e ) {
+            Files.deleteIfExists( temp );
+            throw e;
+        }
+    }
+
+
+    private static Path getTemp( final File _file ) {
+        return new File( _file.getParentFile(), "." + _file.getName() + ".tmp" ).toPath();
+    }
+
+
+    private static FileChannel open( final Path _temp ) throws IOException {
+        return FileChannel.open( _temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+    }
+
+
+    private static void commit( final Path _temp, final File _file ) throws IOException {
+        Files.move( _temp, _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        DirectorySync.INSTANCE.sync( _file.getParentFile().toPath() );
+    }
+
+
+    private AtomicFiles() {
+        // prevent instantiation...
+    }
+}
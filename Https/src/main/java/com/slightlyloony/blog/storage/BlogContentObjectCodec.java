@@ -42,6 +42,26 @@ public class BlogContentObjectCodec implements StorageCodec {
     }
 
 
+    /**
+     * Uses the given open stream to create a blog object.  The stream is not read by this method; the blog object produced is responsible for that
+     * (and for closing it).
+     *
+     * @param _stream the stream to read the blog object from
+     * @param _length the number of bytes in the stream
+     * @return the blog object created
+     * @throws StorageException on any problem
+     */
+    @Override
+    public BlogObject read( final InputStream _stream, final int _length, final BlogID _id, final BlogObjectType _type,
+                            final BlogObjectAccessRequirements _accessRequirements, final ContentCompressionState _compressionState )
+            throws StorageException {
+
+        StorageInputStream sis = new StorageInputStream( _stream, _length );
+        StreamObjectContent soc = new StreamObjectContent( sis, _type.isCompressible() ? _compressionState : ContentCompressionState.DO_NOT_COMPRESS );
+        return new BlogContentObject( _id, _type, _accessRequirements, soc );
+    }
+
+
     /**
      * Creates a new file to persist the given blog object.
      *
@@ -54,10 +74,8 @@ public class BlogContentObjectCodec implements StorageCodec {
 
         // write the contents out...
         BlogContentObject object = (BlogContentObject) _object;
-        try(
-            InputStream is = object.getStream();
-            OutputStream os = new FileOutputStream( _file ); ) {
-            ByteStreams.copy( is, os );
+        try( InputStream is = object.getStream() ) {
+            AtomicFiles.replace( _file, is );
         }
         catch( IOException e ) {
             String msg = MessageFormat.format( "Blog object file problem: {0}", e.getMessage() );
@@ -91,11 +109,9 @@ public class BlogContentObjectCodec implements StorageCodec {
 
         BlogContentObject object = (BlogContentObject) _object;
 
-        try(
-            // write the contents out...
-            InputStream is = object.getStream();
-            OutputStream os = new FileOutputStream( _file ); ) {
-            ByteStreams.copy( is, os );
+        // write the contents out, atomically replacing the old contents...
+        try( InputStream is = object.getStream() ) {
+            AtomicFiles.replace( _file, is );
         }
         catch( IOException e ) {
             String msg = MessageFormat.format( "Blog object file ({0}) problem: {1}", _file.getAbsolutePath(), e.getMessage() );
@@ -115,4 +131,43 @@ public class BlogContentObjectCodec implements StorageCodec {
             throw new StorageException( msg, e );
         }
     }
+
+
+    /**
+     * Decodes a blog object from the given bytes, as produced by {@link #encode(BlogObject)}.
+     *
+     * @param _bytes the encoded blog object
+     * @return the blog object decoded
+     * @throws StorageException on any problem
+     */
+    @Override
+    public BlogObject decode( final byte[] _bytes, final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
+                              final ContentCompressionState _compressionState ) throws StorageException {
+
+        ContentCompressionState state = _type.isCompressible() ? _compressionState : ContentCompressionState.DO_NOT_COMPRESS;
+        return new BlogContentObject( _id, _type, _accessRequirements, new BytesObjectContent( _bytes, state, _bytes.length ) );
+    }
+
+
+    /**
+     * Encodes the given blog object into the bytes that persist it.
+     *
+     * @param _object the blog object to encode
+     * @return the encoded blog object
+     * @throws StorageException on any problem
+     */
+    @Override
+    public byte[] encode( final BlogObject _object ) throws StorageException {
+
+        BlogContentObject object = (BlogContentObject) _object;
+        try(
+            InputStream is = object.getStream() ) {
+            return ByteStreams.toByteArray( is );
+        }
+        catch( IOException e ) {
+            String msg = MessageFormat.format( "Blog object encoding problem: {0}", e.getMessage() );
+            LOG.error( msg, e );
+            throw new StorageException( msg, e );
+        }
+    }
 }
@@ -1,18 +1,30 @@
 package com.slightlyloony.blog.storage;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import com.slightlyloony.blog.handlers.HandlerIllegalArgumentException;
 import com.slightlyloony.blog.objects.*;
 import com.slightlyloony.blog.templates.TemplateObject;
+import com.slightlyloony.blog.util.MemorySizer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
- * Provides a memory cache for blog objects.  The cache is a simple LRU cache with hashed access via the blog object ID.
+ * Provides a memory cache for blog objects.  The cache is a simple LRU cache with hashed access via the blog object ID.  A cache may be given a
+ * {@link SlabAllocator}, in which case the content of the objects it holds may be moved off-heap (see {@link #moveOffHeap(BlogObject)}); that
+ * off-heap memory is retired when the objects are evicted or removed.
+ * <p>
+ * The cache's maximum size is enforced against the memory its entries actually occupy, measured by {@link MemorySizer} as each entry is added
+ * (plus the size of any off-heap content), rather than against the estimates from {@link BlogObject#size()}.  An object too large to fit in the
+ * cache at all isn't added.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
@@ -25,17 +37,24 @@ public class BlogObjectCache {
     private final static boolean ACCESS_ORDER = true;
     private final static float LOAD_FACTOR = 0.7f;
 
-    private final LinkedHashMap<BlogID,BlogObject> cache;
+    private final LinkedHashMap<BlogID,Entry> cache;
     private final long maxSize;
     private final BlogObjectUseCache useCache;
+    private final SlabAllocator allocator;
 
     private long currentSize;
 
 
     public BlogObjectCache( final BlogObjectUseCache _useCache, final long _maxSize, final long _estAvgSize ) {
+        this( _useCache, _maxSize, _estAvgSize, null );
+    }
+
+
+    public BlogObjectCache( final BlogObjectUseCache _useCache, final long _maxSize, final long _estAvgSize, final SlabAllocator _allocator ) {
 
         maxSize     = _maxSize;
         useCache    = _useCache;
+        allocator   = _allocator;
         currentSize = 0;
 
         long estNumEntries = maxSize / _estAvgSize;
@@ -55,13 +74,31 @@ public class BlogObjectCache {
             }
 
             // return null if there was no entry for this key, otherwise returns the entry and puts it at the head of the list...
-            return cache.get( _id );
+            Entry entry = cache.get( _id );
+            return (entry == null) ? null : entry.object;
         }
     }
 
 
+    /**
+     * Moves the content of the given object (which must already be ready for the cache) off-heap, if this cache has an allocator and the object
+     * has content.  This copies the content, so it should be invoked before the object is added, outside any synchronization on this cache.  If
+     * {@link #add(BlogObject)} then refuses the object as too large, it retires the copy.
+     *
+     * @param _obj the object whose content is to be moved
+     */
+    public void moveOffHeap( final BlogObject _obj ) {
+
+        if( (allocator != null) && (_obj instanceof BlogContentObject) && !(_obj instanceof TemplateObject) )
+            ((BlogContentObject) _obj).moveOffHeap( allocator );
+    }
+
+
     public void add( final BlogObject _obj ) {
 
+        // measure the object before we lock, as that means walking everything it refers to...
+        long bytes = measure( _obj );
+
         synchronized( lock ) {
             if( _obj.getType().getCache() != useCache ) {
                 String msg = MessageFormat.format(
@@ -76,28 +113,46 @@ public class BlogObjectCache {
             if( _obj instanceof BlogContentObject ) {
                 BlogContentObject contentObject = (BlogContentObject) _obj;
                 BlogObjectContent content = contentObject.getContent();
-                if( !(content instanceof BytesObjectContent)  && !(_obj instanceof TemplateObject) ) {
+                if( !(content instanceof BytesObjectContent) && !(content instanceof OffHeapObjectContent) && !(_obj instanceof TemplateObject) ) {
                     LOG.warn( "Attempted to add object {0}.{1} that wasn't resolved to bytes", _obj.getBlogID(), _obj.getType().getCache() );
                     return;
                 }
             }
 
+            // if this very object is already cached, there's nothing more to do...
+            Entry existing = cache.get( _obj.getBlogID() );
+            if( (existing != null) && (existing.object == _obj) )
+                return;
+
+            // if it would never fit, don't evict everything else trying; any off-heap copy made for it won't be needed after its reader is done...
+            if( bytes > maxSize ) {
+                LOG.debug( MessageFormat.format( "Not caching {0}.{1}, as its {2} bytes exceed the cache size", _obj.getBlogID(), _obj.getType(),
+                        bytes ) );
+                release( _obj );
+                return;
+            }
+
             // if we don't have room in the cache, make some by removing the least recently used items until we have enough space...
-            if( maxSize < _obj.size() + currentSize ) {
+            if( maxSize < bytes + currentSize ) {
 
                 // iterate over our least recently used entries, removing them, until we have enough space for the new entry...
-                Iterator<Map.Entry<BlogID,BlogObject>> it = cache.entrySet().iterator();
-                while( it.hasNext() && (maxSize < _obj.size() + currentSize) ) {
+                Iterator<Map.Entry<BlogID,Entry>> it = cache.entrySet().iterator();
+                while( it.hasNext() && (maxSize < bytes + currentSize) ) {
 
-                    BlogObject loser = it.next().getValue();
-                    currentSize -= loser.size();
+                    Entry loser = it.next().getValue();
+                    currentSize -= loser.bytes;
                     it.remove();
+                    release( loser.object );
                 }
             }
 
-            // ok, now we can finally add it...
-            cache.put( _obj.getBlogID(), _obj );
-            currentSize += _obj.size();
+            // ok, now we can finally add it (replacing any entry for the same ID)...
+            Entry old = cache.put( _obj.getBlogID(), new Entry( _obj, bytes ) );
+            if( old != null ) {
+                currentSize -= old.bytes;
+                release( old.object );
+            }
+            currentSize += bytes;
         }
     }
 
@@ -112,11 +167,84 @@ public class BlogObjectCache {
                 throw new HandlerIllegalArgumentException( msg );
             }
 
-            BlogObject obj = cache.remove( _id );
+            Entry entry = cache.remove( _id );
 
             // if we actually removed an entry, update our size...
-            if( obj != null )
-                currentSize -= obj.size();
+            if( entry != null ) {
+                currentSize -= entry.bytes;
+                release( entry.object );
+            }
+        }
+    }
+
+
+    /**
+     * Returns statistics about this cache as a JSON object: the number of entries, the bytes they occupy, the maximum size, and the given number of
+     * largest entries (with their sizes), for diagnosing what's filling the cache.
+     *
+     * @param _largest the number of largest entries to include
+     * @return the statistics
+     */
+    public JsonObject getStats( final int _largest ) {
+
+        List<Entry> entries;
+        JsonObject result = new JsonObject();
+        synchronized( lock ) {
+            entries = new ArrayList<>( cache.values() );
+            result.addProperty( "entries", cache.size() );
+            result.addProperty( "bytes",   currentSize  );
+            result.addProperty( "maxSize", maxSize      );
+        }
+
+        entries.sort( Comparator.comparingLong( (Entry _entry) -> _entry.bytes ).reversed() );
+        JsonArray largest = new JsonArray();
+        for( Entry entry : entries.subList( 0, Math.min( _largest, entries.size() ) ) ) {
+            JsonObject item = new JsonObject();
+            item.addProperty( "id",       entry.object.getBlogID().getID() );
+            item.addProperty( "type",     entry.object.getType().name()    );
+            item.addProperty( "bytes",    entry.bytes                      );
+            item.addProperty( "estimate", entry.object.size()              );
+            largest.add( item );
+        }
+        result.add( "largest", largest );
+        return result;
+    }
+
+
+    /*
+     * Returns the number of bytes the given object occupies: what it retains on the heap, plus any off-heap content.
+     */
+    private long measure( final BlogObject _obj ) {
+
+        long bytes = MemorySizer.sizeOf( _obj );
+        if( _obj instanceof BlogContentObject ) {
+            BlogObjectContent content = ((BlogContentObject) _obj).getContent();
+            if( content instanceof OffHeapObjectContent )
+                bytes += content.contentLength();
+        }
+        return bytes;
+    }
+
+
+    /*
+     * Retires any off-heap memory held by the given object, which has just left this cache (or was refused by it).
+     */
+    private void release( final BlogObject _obj ) {
+
+        if( (allocator != null) && (_obj instanceof BlogContentObject) )
+            ((BlogContentObject) _obj).releaseOffHeap( allocator );
+    }
+
+
+    private static class Entry {
+
+        private final BlogObject object;
+        private final long bytes;      // measured when the entry was added...
+
+
+        private Entry( final BlogObject _object, final long _bytes ) {
+            object = _object;
+            bytes = _bytes;
         }
     }
 }
@@ -0,0 +1,240 @@
+package com.slightlyloony.blog.storage;
+
+import com.slightlyloony.blog.ServerInit;
+import com.slightlyloony.blog.objects.BlogID;
+import com.slightlyloony.blog.storage.BlogObjectIterator.BlogObjectInfo;
+import com.slightlyloony.blog.util.ID;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * A spliterator over all the blog objects stored in the directory tree of the object store, in ID order.  Like {@link BlogObjectIterator}, it makes
+ * no attempt to validate the entries it finds: directories are selected only by their names (two valid ID characters at each of the four directory
+ * levels, and a name starting with a valid ten character ID in the leaf directories), without any further file system calls per entry.  Directories
+ * are listed lazily, as the traversal reaches them.
+ * <p>
+ * Splitting happens at the directory levels: a spliterator hands off the first half of the directories it has yet to visit (expanding a lone
+ * directory into its subdirectories first, if necessary), and within a single leaf directory it hands off the first half of the remaining files.
+ * This makes {@link #stream()} suitable for running in parallel for rebuilds, exports, and other bulk scans of the object store.
+ * <p>
+ * Instances of this class are not threadsafe; as with any spliterator, each split is intended to be traversed by a single thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class BlogObjectSpliterator implements Spliterator<BlogObjectInfo> {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int LEAF_LEVEL = 4;
+    private static final int MIN_LEAF_SPLIT = 16;  // don't bother splitting fewer files than this within a leaf directory...
+
+    private static final DirectoryStream.Filter<Path> DIRS = _path -> {
+        String name = _path.getFileName().toString();
+        return (name.length() == 2) && ID.isValid( name );
+    };
+
+    private static final DirectoryStream.Filter<Path> FILES = _path -> {
+        String name = _path.getFileName().toString();
+        return (name.length() >= 10) && ID.isValid( name.substring( 0, 10 ) );
+    };
+
+    private final ArrayDeque<Dir> pending;  // directories yet to be visited, in ID order...
+    private Path[] files;                   // the files in the leaf directory being visited, in ID order...
+    private int fileIndex;
+    private long estimate;
+
+
+    /**
+     * Creates a new instance of this class that traverses the objects stored in the given objects root directory.
+     *
+     * @param _objectsRoot the root directory of the object store
+     */
+    public BlogObjectSpliterator( final File _objectsRoot ) {
+        pending = new ArrayDeque<>();
+        pending.add( new Dir( _objectsRoot.toPath(), 0 ) );
+        files = null;
+        fileIndex = 0;
+        estimate = Long.MAX_VALUE;
+    }
+
+
+    private BlogObjectSpliterator( final ArrayDeque<Dir> _pending, final Path[] _files, final int _fileIndex, final long _estimate ) {
+        pending = _pending;
+        files = _files;
+        fileIndex = _fileIndex;
+        estimate = _estimate;
+    }
+
+
+    /**
+     * Returns a sequential stream over all the blog objects in the configured object store.  Invoke {@link Stream#parallel()} on it to traverse the
+     * object store in parallel.
+     *
+     * @return the stream of blog objects
+     */
+    public static Stream<BlogObjectInfo> stream() {
+        return stream( new File( ServerInit.getConfig().getContentRoot(), Constants.OBJECTS_ROOT ) );
+    }
+
+
+    /**
+     * Returns a sequential stream over all the blog objects in the given objects root directory, independent of the server configuration (for use by
+     * offline tools).
+     *
+     * @param _objectsRoot the root directory of the object store
+     * @return the stream of blog objects
+     */
+    public static Stream<BlogObjectInfo> stream( final File _objectsRoot ) {
+        return StreamSupport.stream( new BlogObjectSpliterator( _objectsRoot ), false );
+    }
+
+
+    @Override
+    public boolean tryAdvance( final Consumer<? super BlogObjectInfo> _action ) {
+
+        // descend until we have a file to return, or we've run out of directories...
+        while( (files == null) || (fileIndex >= files.length) ) {
+            if( pending.isEmpty() )
+                return false;
+            expand( pending.removeFirst() );
+        }
+
+        Path file = files[fileIndex++];
+        BlogObjectInfo info = new BlogObjectInfo();
+        info.file = file.toFile();
+        info.id = BlogID.create( file.getFileName().toString().substring( 0, 10 ) );
+        _action.accept( info );
+        return true;
+    }
+
+
+    @Override
+    public Spliterator<BlogObjectInfo> trySplit() {
+
+        while( true ) {
+
+            int remaining = (files == null) ? 0 : files.length - fileIndex;
+
+            // if all we have left is a single leaf directory's files, split them in half...
+            if( pending.isEmpty() ) {
+                if( remaining < MIN_LEAF_SPLIT )
+                    return null;
+                int mid = fileIndex + remaining / 2;
+                estimate = remaining - remaining / 2;
+                BlogObjectSpliterator prefix = new BlogObjectSpliterator( new ArrayDeque<>(), Arrays.copyOfRange( files, fileIndex, mid ), 0,
+                        remaining / 2 );
+                fileIndex = mid;
+                return prefix;
+            }
+
+            // if all we have left is a single directory, expand it and try again...
+            if( (remaining == 0) && (pending.size() == 1) ) {
+                expand( pending.removeFirst() );
+                continue;
+            }
+
+            // hand off the files we're part way through and the first half of our directories...
+            ArrayDeque<Dir> prefixPending = new ArrayDeque<>();
+            for( int take = pending.size() / 2; take > 0; take-- )
+                prefixPending.add( pending.removeFirst() );
+            estimate >>>= 1;
+            BlogObjectSpliterator prefix = new BlogObjectSpliterator( prefixPending, files, fileIndex, estimate );
+            files = null;
+            fileIndex = 0;
+            return prefix;
+        }
+    }
+
+
+    /**
+     * Returns an estimate of the number of objects left to traverse.  As the directories are listed lazily the size isn't known, so (as with
+     * {@link java.util.Spliterators.AbstractSpliterator}) the estimate starts out unbounded and is halved at each split; this keeps a parallel
+     * traversal splitting until the work is spread out, even in sparsely populated object stores.
+     *
+     * @return the estimated number of objects left
+     */
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL;
+    }
+
+
+    /*
+     * Visits the given directory: a leaf directory becomes the current list of files, and any other directory's subdirectories are queued (in ID
+     * order) ahead of the directories already pending.
+     */
+    private void expand( final Dir _dir ) {
+
+        if( _dir.level == LEAF_LEVEL ) {
+            files = list( _dir.path, FILES, 10 );
+            fileIndex = 0;
+            return;
+        }
+
+        Path[] dirs = list( _dir.path, DIRS, 2 );
+        for( int i = dirs.length - 1; i >= 0; i-- )
+            pending.addFirst( new Dir( dirs[i], _dir.level + 1 ) );
+    }
+
+
+    /*
+     * Returns the entries in the given directory that the given filter accepts, sorted by the ID characters in the first _idLength characters of
+     * their names.  A missing directory (or something that isn't a directory) has no entries.
+     */
+    private static Path[] list( final Path _dir, final DirectoryStream.Filter<Path> _filter, final int _idLength ) {
+
+        List<Path> entries = new ArrayList<>();
+        try( DirectoryStream<Path> stream = Files.newDirectoryStream( _dir, _filter ) ) {
+            for( Path entry : stream )
+                entries.add( entry );
+        }
+        catch( NoSuchFileException | NotDirectoryException e ) {
+            // nothing here to traverse...
+        }
+        catch( IOException e ) {
+            LOG.warn( msg( "Skipping unreadable object store directory {0}: {1}", _dir, e.getMessage() ) );
+        }
+
+        Path[] result = entries.toArray( new Path[entries.size()] );
+        Arrays.sort( result, ( _path1, _path2 ) -> ID.compare( _path1.getFileName().toString().substring( 0, _idLength ),
+                _path2.getFileName().toString().substring( 0, _idLength ) ) );
+        return result;
+    }
+
+
+    private static class Dir {
+
+        private final Path path;
+        private final int level;
+
+
+        private Dir( final Path _path, final int _level ) {
+            path = _path;
+            level = _level;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.slightlyloony.blog.storage;
 
 /**
+ * The categories of blog object caches, each with its own budget in the server configuration (keyed by name).  A category that isn't configured
+ * isn't cached at all.
+ *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public enum BlogObjectUseCache {
@@ -11,6 +14,7 @@ public enum BlogObjectUseCache {
     BINARY (  3 ),
     SCRIPT (  4 ),
     USER   (  5 ),
+    USERS  (  6 ),
     NONE   ( -1 );
 
 
@@ -1,6 +1,8 @@
 package com.slightlyloony.blog.storage;
 
+import com.google.gson.JsonObject;
 import com.slightlyloony.blog.ServerInit;
+import com.slightlyloony.blog.accesslog.AccessLog;
 import com.slightlyloony.blog.config.ServerConfig;
 import com.slightlyloony.blog.events.EventType;
 import com.slightlyloony.blog.events.Events;
@@ -10,8 +12,6 @@ import com.slightlyloony.blog.objects.BlogObject;
 import com.slightlyloony.blog.objects.BlogObjectType;
 import com.slightlyloony.blog.objects.ContentCompressionState;
 import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
-import com.slightlyloony.blog.util.Timer;
-import com.slightlyloony.common.logging.LU;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -25,9 +25,13 @@ import java.util.Map;
  * <p>
  * Note that several independent caches are used instead of a single cache, with a separate cache for broad categories of item types.  For esample,
  * there is a cache just for metadata objects (which are small and very frequently accessed) and for images (which are generally much larger, and
- * less frequently accessed).  Having several caches also allows multiple threads to access the overall cache, though no more than one thread at
+ * less frequently accessed), and the users indexes have a cache of their own, apart from the user records, so that neither can crowd out the
+ * other.  Having several caches also allows multiple threads to access the overall cache, though no more than one thread at
  * a time can access a single category cache.
  * <p>
+ * The content of objects in caches configured as off-heap (normally just those for images and binaries) is moved to memory from a {@link
+ * SlabAllocator}, shared by all those caches and limited to the configured off-heap cache size.
+ * <p>
  * This class can handle concurrent access by multiple threads; it is internally synchronized.
  *
  * @author Tom Dilatush  tom@dilatush.com
@@ -36,26 +40,33 @@ public class CachedStorage {
 
     private static final Logger LOG = LogManager.getLogger();
 
-    private final Storage storage;
+    private static final int LARGEST_ENTRIES = 10;  // the number of largest entries reported for each cache...
+
+    private final ObjectStore storage;
     private final int maxEntrySize;
     private final BlogObjectCache[] caches;
+    private final ObjectIndex index;
+    private final SlabAllocator allocator;  // null if off-heap caching is disabled...
 
 
-
-    public CachedStorage( final Storage _storage ) {
+    public CachedStorage( final ObjectStore _storage ) {
 
         storage = _storage;
+        index = new ObjectIndex( _storage );
         ServerConfig config = ServerInit.getConfig();
         maxEntrySize = config.getMaxCacheEntrySize();
         Map<String,ServerConfig.Cache> cacheConfigs = config.getCaches();
+        allocator = (config.getOffHeapCacheSize() > 0) ? new SlabAllocator( config.getOffHeapCacheSize() ) : null;
 
-        // build our caches according to what we've configured...
-        caches = new BlogObjectCache[cacheConfigs.size()];
+        // build our caches according to what we've configured; categories that aren't configured just aren't cached (the users indexes always
+        // have a budget, as the configuration supplies a default one)...
+        caches = new BlogObjectCache[BlogObjectUseCache.values().length];
         for( Map.Entry<String,ServerConfig.Cache> cacheEntry : cacheConfigs.entrySet() ) {
             BlogObjectUseCache use = BlogObjectUseCache.valueOf( cacheEntry.getKey() );
             caches[use.getOrdinal()] = new BlogObjectCache( use,
                     cacheEntry.getValue().getMaxCacheSize(),
-                    cacheEntry.getValue().getAvgEntrySize() );
+                    cacheEntry.getValue().getAvgEntrySize(),
+                    cacheEntry.getValue().isOffHeap() ? allocator : null );
         }
     }
 
@@ -77,8 +88,6 @@ public class CachedStorage {
     public BlogObject read( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
                             final ContentCompressionState _compressionState, final boolean _isCacheable ) throws StorageException {
 
-        Timer t = new Timer();
-
         // if this object is cacheable, and we have a cache for this category of object, see if the object is cached...
         int cacheNum = _type.getCache().getOrdinal();
         if( _isCacheable && (cacheNum >= 0) && (cacheNum < caches.length) && (caches[cacheNum] != null) ) {
@@ -88,8 +97,7 @@ public class CachedStorage {
 
             // if it was cached, we're done...
             if( cachedObj != null ) {
-                t.mark();
-                LOG.info( LU.msg( "Read {0} from cache {2} in {1}", _id.getID(), t.toString(), _type.getCache().name() ) );
+                AccessLog.cacheHit();
                 Events.fire( EventType.CACHE_HIT, _type.getCache().name(), cachedObj.size() );
                 return cachedObj;
             }
@@ -97,8 +105,7 @@ public class CachedStorage {
             // it wasn't cached, so first we'll have to read it from storage...
             BlogObject readObj = storage.read( _id, _type, _accessRequirements, _compressionState );
 
-            t.mark();
-            LOG.info( LU.msg( "Read {0} from disk in {1}", _id.getID(), t.toString() ) );
+            AccessLog.cacheMiss();
             Events.fire( EventType.CACHE_MISS, _type.getCache().name(), readObj.size() );
 
             // if the object's size is less than our threshold, we'll try caching it...
@@ -106,6 +113,7 @@ public class CachedStorage {
 
                 // make the blog object cacheable (resolve to bytes and try compressing)...
                 readObj.makeReadyForCache( _type.isCompressible() &&_compressionState.mayCompress() );
+                cache.moveOffHeap( readObj );
 
                 // tell the cache to take it...
                 cache.add( readObj );
@@ -158,7 +166,7 @@ public class CachedStorage {
 
 
     /**
-     * Creates a new file to persist the given blog object.
+     * Creates a new file to persist the given blog object, adds it to the object index, and fires an {@link EventType#OBJECT_CREATED} event.
      *
      * @param _object the object to persist
      * @return the blog object representing the shiny new object
@@ -166,14 +174,17 @@ public class CachedStorage {
      */
     public BlogObject create( final BlogObject _object ) throws StorageException {
 
-        return storage.create( _object );
+        BlogObject object = storage.create( _object );
+        index.index( _object );
+        Events.fire( EventType.OBJECT_CREATED, _object );
+        return object;
     }
 
 
     /**
      * Updates an existing blog object with the new content given blog object.  The returned blog object contains a stream for the updated blog
      * object.  If the updated object was in the cache prior to the invocation of this method, it will be deleted and the new object will be cached
-     * instead (if possible).
+     * instead (if possible).  Fires an {@link EventType#OBJECT_UPDATED} event.
      *
      * @param _object the blog object with updated content
      * @return the blog object representing the shiny new object
@@ -188,8 +199,9 @@ public class CachedStorage {
         BlogID id = _object.getBlogID();
         BlogObjectType type = _object.getType();
 
-        // do the modify operation...
+        // do the modify operation, and update the object index to match...
         BlogObject object = storage.update( _object );
+        index.index( _object );
 
         // if we have a valid object, and a cache for this kind of object...
         int cacheNum = _object.getType().getCache().getOrdinal();
@@ -198,6 +210,7 @@ public class CachedStorage {
             // get as much ready outside the synchronization block as we can...
             BlogObjectCache cache = caches[cacheNum];
             object.makeReadyForCache( type.isCompressible() );
+            cache.moveOffHeap( object );
 
             // synchronize around the invalidate/add pair, so we don't have another thread also trying to fill the cache for this guy...
             synchronized( cache.lock ) {
@@ -210,11 +223,44 @@ public class CachedStorage {
             }
          }
 
+        Events.fire( EventType.OBJECT_UPDATED, _object );
         return object;
     }
 
 
-    public Storage getStorage() {
+    /**
+     * Returns statistics about each cache, including its largest entries (see {@link BlogObjectCache#getStats(int)}).
+     *
+     * @return the cache statistics, by cache name
+     */
+    public JsonObject getCacheStats() {
+
+        JsonObject result = new JsonObject();
+        for( BlogObjectUseCache use : BlogObjectUseCache.values() ) {
+            int cacheNum = use.getOrdinal();
+            if( (cacheNum >= 0) && (cacheNum < caches.length) && (caches[cacheNum] != null) )
+                result.add( use.name(), caches[cacheNum].getStats( LARGEST_ENTRIES ) );
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns statistics about the off-heap memory used by the caches, or null if off-heap caching is disabled.
+     *
+     * @return the off-heap statistics, or null if disabled
+     */
+    public JsonObject getOffHeapStats() {
+        return (allocator == null) ? null : allocator.getStats();
+    }
+
+
+    public ObjectIndex getIndex() {
+        return index;
+    }
+
+
+    public ObjectStore getStorage() {
         return storage;
     }
 }
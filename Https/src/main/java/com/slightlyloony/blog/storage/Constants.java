@@ -9,6 +9,10 @@ public class Constants {
 
 
     public static final String OBJECTS_ROOT = "objects";
+    public static final String PACKED_ROOT = "packed";
+    public static final String INTEGRITY_MANIFEST = "integrity.manifest";
+    public static final String BLOG_ID_RESERVATION = "blogids.reserved";
+    public static final String IMAGE_COST_MODEL = "imagecosts.json";
 
 
     private Constants() {
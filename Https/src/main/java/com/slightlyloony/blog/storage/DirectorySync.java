@@ -0,0 +1,159 @@
+package com.slightlyloony.blog.storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * Forces directories to disk, so that files renamed into them survive a crash.  A rename is a change to the directory, not to the file, so forcing
+ * the file alone doesn't make the rename durable.
+ * <p>
+ * Forcing a directory costs a disk flush, so when a group commit window is configured, concurrent requests are batched: the first thread to ask
+ * waits out the window, then forces every directory requested in the meantime (each just once), and every thread in the batch returns when that's
+ * done.  With no window (the default) each request forces its directory immediately.
+ * <p>
+ * On Windows, which can't open a directory for forcing, this class does nothing.
+ * <p>
+ * This class is a singleton.  It is threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class DirectorySync {
+
+    public static final DirectorySync INSTANCE = new DirectorySync();
+
+    private static final Logger LOG = LogManager.getLogger();
+    private static final boolean WINDOWS = System.getProperty( "os.name", "" ).startsWith( "Windows" );
+
+    private volatile long windowNanos;
+    private volatile boolean supported;
+    private Batch open;  // the batch new requests join, or null if there's none; guarded by this...
+
+
+    private DirectorySync() {
+        windowNanos = 0;
+        supported = true;
+    }
+
+
+    /**
+     * Sets the group commit window: the time the first request in a batch waits for other requests to join it.  Zero disables batching.
+     *
+     * @param _windowMillis the group commit window, in milliseconds
+     */
+    public void setWindow( final long _windowMillis ) {
+        windowNanos = TimeUnit.MILLISECONDS.toNanos( Math.max( 0, _windowMillis ) );
+    }
+
+
+    /**
+     * Forces the given directory to disk, returning when that's done.
+     *
+     * @param _dir the directory to force
+     * @throws IOException on any problem
+     */
+    public void sync( final Path _dir ) throws IOException {
+
+        if( !supported )
+            return;
+
+        if( windowNanos == 0 ) {
+            force( _dir );
+            return;
+        }
+
+        // join the open batch, or open one and lead it...
+        Batch batch;
+        boolean leader;
+        synchronized( this ) {
+            leader = (open == null);
+            if( leader )
+                open = new Batch();
+            batch = open;
+            batch.dirs.add( _dir );
+        }
+
+        // if we're leading, wait for others to join, then close the batch and force all its directories...
+        if( leader ) {
+            LockSupport.parkNanos( windowNanos );
+            synchronized( this ) {
+                open = null;
+            }
+            IOException problem = null;
+            try {
+                for( Path dir : batch.dirs ) {
+                    try {
+                        force( dir );
+                    }
+                    catch( IOException e ) {
+                        problem = e;
+                    }
+                }
+            }
+            catch( RuntimeException e ) {
+                problem = new IOException( "Problem forcing directories: " + e.getMessage(), e );
+                throw e;
+            }
+
+            // however that went, release the batch, so that nobody waits on it forever...
+            finally {
+                batch.problem = problem;
+                batch.done.countDown();
+            }
+        }
+
+        // wait for our batch to be forced...
+        try {
+            batch.done.await();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for directory to be forced" );
+        }
+        if( batch.problem != null )
+            throw batch.problem;
+    }
+
+
+    private void force( final Path _dir ) throws IOException {
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open( _dir, StandardOpenOption.READ );
+        }
+        catch( AccessDeniedException e ) {
+
+            // Windows won't open directories at all, so there's nothing we can do there; anywhere else, it's a real problem...
+            if( !WINDOWS )
+                throw e;
+            supported = false;
+            LOG.warn( msg( "Can''t open directories to force them on this platform ({0}); renames won''t be forced to disk", e.getMessage() ) );
+            return;
+        }
+
+        try( FileChannel dir = channel ) {
+            dir.force( true );
+        }
+    }
+
+
+    private static class Batch {
+
+        private final Set<Path> dirs = new LinkedHashSet<>();  // guarded by the DirectorySync instance until the batch is closed...
+        private final CountDownLatch done = new CountDownLatch( 1 );
+        private volatile IOException problem;
+    }
+}
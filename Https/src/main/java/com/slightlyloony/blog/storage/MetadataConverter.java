@@ -0,0 +1,101 @@
+package com.slightlyloony.blog.storage;
+
+import com.slightlyloony.blog.objects.BlogObjectMetadata;
+import com.slightlyloony.blog.objects.BlogObjectType;
+import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
+import com.slightlyloony.blog.util.S;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Offline tool that converts every metadata file in an object store to either the binary or the JSON encoding.  Because the server reads either
+ * encoding, the conversion may be run in either direction (and interrupted and rerun) without harm.  Usage:
+ * <pre>
+ *     java com.slightlyloony.blog.storage.MetadataConverter [-json] contentRoot
+ * </pre>
+ * By default files are converted to binary; with "-json" they are converted back to JSON.  Files already in the target encoding are left alone.  Each
+ * file is rewritten via a temporary file and a rename, so a crash mid-conversion never leaves a truncated metadata file.  The server should be stopped
+ * while this tool runs.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class MetadataConverter {
+
+    private static final String META_EXTENSION = "." + BlogObjectType.METADATA.getExtension();
+
+
+    public static void main( final String[] _args ) {
+
+        boolean toJSON = (_args.length > 0) && "-json".equals( _args[0] );
+        int first = toJSON ? 1 : 0;
+
+        if( first >= _args.length ) {
+            System.err.println( "Usage: MetadataConverter [-json] contentRoot" );
+            System.exit( 1 );
+        }
+
+        File objectsRoot = new File( _args[first], Constants.OBJECTS_ROOT );
+        if( !objectsRoot.isDirectory() ) {
+            System.err.println( "No object store at: " + objectsRoot.getAbsolutePath() );
+            System.exit( 1 );
+        }
+
+        int converted = 0;
+        int skipped = 0;
+        int failed = 0;
+        BlogObjectIterator it = new BlogObjectIterator( objectsRoot );
+        while( it.hasNext() ) {
+
+            BlogObjectIterator.BlogObjectInfo info = it.next();
+            String name = info.file.getName();
+            if( !name.endsWith( META_EXTENSION ) )
+                continue;
+
+            try {
+                if( convert( info, toJSON ) )
+                    converted++;
+                else
+                    skipped++;
+            }
+            catch( StorageException | IOException e ) {
+                System.err.println( "Problem converting " + name + ": " + e.getMessage() );
+                failed++;
+            }
+        }
+
+        System.out.println( "Converted " + converted + ", already converted " + skipped + ", failed " + failed );
+        if( failed > 0 )
+            System.exit( 2 );
+    }
+
+
+    private static boolean convert( final BlogObjectIterator.BlogObjectInfo _info, final boolean _toJSON ) throws StorageException, IOException {
+
+        byte[] bytes = Files.readAllBytes( _info.file.toPath() );
+        boolean binary = BlogObjectMetadata.isBinary( bytes );
+        if( binary != _toJSON )
+            return false;
+
+        // the access requirements code, if there is one, immediately follows the ten character ID...
+        String name = _info.file.getName();
+        BlogObjectAccessRequirements accessRequirements = (name.charAt( 10 ) == '.') ? null : BlogObjectAccessRequirements.get( name.charAt( 10 ) );
+
+        BlogObjectMetadata metadata = binary
+                ? BlogObjectMetadata.fromBinary( bytes, _info.id, BlogObjectType.METADATA, accessRequirements )
+                : BlogObjectMetadata.fromJSON( S.fromUTF8( bytes ), _info.id, BlogObjectType.METADATA,
+                        accessRequirements );
+
+        byte[] encoded = _toJSON ? S.toUTF8( metadata.toJSON() ) : metadata.toBinary();
+
+        // replace the original atomically (through a dot-prefixed temporary file that the iterators ignore, should we crash)...
+        AtomicFiles.replace( _info.file, encoded );
+        return true;
+    }
+
+
+    private MetadataConverter() {
+        // prevent instantiation...
+    }
+}
@@ -0,0 +1,269 @@
+package com.slightlyloony.blog.storage;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.slightlyloony.blog.objects.BlogID;
+import com.slightlyloony.blog.objects.BlogObject;
+import com.slightlyloony.blog.objects.BlogObjectMetadata;
+import com.slightlyloony.blog.objects.BlogObjectType;
+import com.slightlyloony.blog.objects.ContentCompressionState;
+import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
+import com.slightlyloony.blog.util.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * Maintains in-memory secondary indexes over the objects in an {@link ObjectStore}, so that questions like "which objects are images?", "which
+ * objects require a given access?", or "which metadata objects refer to this content?" can be answered without walking the object store.  There are
+ * three indexes: by blog object type, by access requirements (objects without access requirements aren't in this one), and by referenced content
+ * (mapping each content ID to the IDs of the metadata objects whose content or scaled images refer to it).
+ * <p>
+ * The indexes are built from the object store by {@link #rebuild()} at startup, and kept current by {@link CachedStorage} as objects are created
+ * and updated.  Objects written by other means (such as the offline tools) aren't reflected until the next rebuild.
+ * <p>
+ * This class is threadsafe.  Changes are serialized, but queries never block; each query returns an immutable snapshot.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ObjectIndex {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final BlogID[] NO_REFERENCES = new BlogID[0];
+
+    private final ObjectStore store;
+    private final Map<BlogID,Entry> entries;
+    private final Map<BlogObjectType,Set<BlogID>> byType;
+    private final Map<BlogObjectAccessRequirements,Set<BlogID>> byAccess;
+    private final Map<BlogID,Set<BlogID>> referencedBy;
+
+
+    /**
+     * Creates a new (empty) instance of this class that indexes the given object store.
+     *
+     * @param _store the object store to index
+     */
+    public ObjectIndex( final ObjectStore _store ) {
+
+        store = _store;
+        entries = new ConcurrentHashMap<>();
+        referencedBy = new ConcurrentHashMap<>();
+
+        // the per-type and per-access maps never change after this, so only their sets need to be concurrent...
+        byType = Maps.newEnumMap( BlogObjectType.class );
+        for( BlogObjectType type : BlogObjectType.values() )
+            byType.put( type, ConcurrentHashMap.newKeySet() );
+        byAccess = Maps.newEnumMap( BlogObjectAccessRequirements.class );
+        for( BlogObjectAccessRequirements accessRequirements : BlogObjectAccessRequirements.values() )
+            byAccess.put( accessRequirements, ConcurrentHashMap.newKeySet() );
+    }
+
+
+    /**
+     * Discards the current indexes and rebuilds them from the object store.  The object store is scanned in parallel; every metadata object has to
+     * be read to find the content it refers to.  This should be invoked before the index is used, as the index is incomplete until it finishes.
+     */
+    public void rebuild() {
+
+        Timer t = new Timer();
+
+        clear();
+
+        store.objects().parallel().forEach( _object -> add( _object.id, _object.type, _object.accessRequirements, readReferences( _object ) ) );
+
+        t.mark();
+        LOG.info( msg( "Rebuilt object index ({0} objects, {1} referenced content objects) in {2}", entries.size(), referencedBy.size(),
+                t.toString() ) );
+    }
+
+
+    /**
+     * Indexes the given blog object, which has just been created or updated.
+     *
+     * @param _object the blog object to index
+     */
+    public void index( final BlogObject _object ) {
+
+        if( (_object == null) || (_object.getBlogID() == null) )
+            return;
+
+        BlogID[] references = (_object instanceof BlogObjectMetadata) ? getReferences( (BlogObjectMetadata) _object ) : NO_REFERENCES;
+        add( _object.getBlogID(), _object.getType(), _object.getAccessRequirements(), references );
+    }
+
+
+    /**
+     * Returns the IDs of all the blog objects of the given type.
+     *
+     * @param _type the blog object type
+     * @return the IDs of the objects of that type
+     */
+    public Set<BlogID> getByType( final BlogObjectType _type ) {
+        return ImmutableSet.copyOf( byType.get( _type ) );
+    }
+
+
+    /**
+     * Returns the IDs of all the blog objects with the given access requirements.
+     *
+     * @param _accessRequirements the access requirements
+     * @return the IDs of the objects with those access requirements
+     */
+    public Set<BlogID> getByAccessRequirements( final BlogObjectAccessRequirements _accessRequirements ) {
+        return ImmutableSet.copyOf( byAccess.get( _accessRequirements ) );
+    }
+
+
+    /**
+     * Returns the IDs of all the metadata objects that refer to the given content ID, either as their content or as one of their scaled images.
+     *
+     * @param _content the content ID
+     * @return the IDs of the metadata objects referring to it
+     */
+    public Set<BlogID> getReferencing( final BlogID _content ) {
+        Set<BlogID> referencing = referencedBy.get( _content );
+        return (referencing == null) ? ImmutableSet.of() : ImmutableSet.copyOf( referencing );
+    }
+
+
+    /**
+     * Returns true if any metadata object refers to the given content ID.  Content objects that no metadata refers to (orphaned scaled images, for
+     * instance) can never be served.
+     *
+     * @param _content the content ID
+     * @return true if the content is referred to
+     */
+    public boolean isReferenced( final BlogID _content ) {
+        return referencedBy.containsKey( _content );
+    }
+
+
+    /**
+     * Returns the type of the blog object with the given ID, or null if there is no such object in the index.
+     *
+     * @param _id the blog object ID
+     * @return the type of the object, or null if it isn't indexed
+     */
+    public BlogObjectType getType( final BlogID _id ) {
+        Entry entry = entries.get( _id );
+        return (entry == null) ? null : entry.type;
+    }
+
+
+    /**
+     * Returns the access requirements of the blog object with the given ID, or null if it has none or there is no such object in the index.
+     *
+     * @param _id the blog object ID
+     * @return the access requirements of the object, or null
+     */
+    public BlogObjectAccessRequirements getAccessRequirements( final BlogID _id ) {
+        Entry entry = entries.get( _id );
+        return (entry == null) ? null : entry.accessRequirements;
+    }
+
+
+    /**
+     * Returns the number of objects indexed.
+     *
+     * @return the number of objects indexed
+     */
+    public int size() {
+        return entries.size();
+    }
+
+
+    private synchronized void clear() {
+        entries.clear();
+        referencedBy.clear();
+        byType.values().forEach( Set::clear );
+        byAccess.values().forEach( Set::clear );
+    }
+
+
+    /*
+     * Adds (or replaces) the index entries for the object with the given ID.
+     */
+    private synchronized void add( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
+                                   final BlogID[] _references ) {
+
+        // first get rid of anything we had for this ID, as an update may have changed what it refers to...
+        Entry old = entries.put( _id, new Entry( _type, _accessRequirements, _references ) );
+        if( old != null ) {
+            byType.get( old.type ).remove( _id );
+            if( old.accessRequirements != null )
+                byAccess.get( old.accessRequirements ).remove( _id );
+            for( BlogID content : old.references ) {
+                Set<BlogID> referencing = referencedBy.get( content );
+                if( (referencing != null) && referencing.remove( _id ) && referencing.isEmpty() )
+                    referencedBy.remove( content );
+            }
+        }
+
+        // then add the new entries...
+        byType.get( _type ).add( _id );
+        if( _accessRequirements != null )
+            byAccess.get( _accessRequirements ).add( _id );
+        for( BlogID content : _references )
+            referencedBy.computeIfAbsent( content, _content -> ConcurrentHashMap.newKeySet() ).add( _id );
+    }
+
+
+    /*
+     * Returns the content IDs referred to by the given stored object, which is only ever non-empty for metadata.
+     */
+    private BlogID[] readReferences( final StoredObject _object ) {
+
+        if( _object.type != BlogObjectType.METADATA )
+            return NO_REFERENCES;
+
+        try {
+            BlogObject object = store.read( _object.id, _object.type, _object.accessRequirements, ContentCompressionState.DO_NOT_COMPRESS );
+            return getReferences( (BlogObjectMetadata) object );
+        }
+        catch( StorageException | RuntimeException e ) {
+            LOG.warn( msg( "Can''t read metadata {0} to index its references: {1}", _object.id, e.getMessage() ) );
+            return NO_REFERENCES;
+        }
+    }
+
+
+    private BlogID[] getReferences( final BlogObjectMetadata _metadata ) {
+
+        BlogObjectMetadata.ScaledImage[] scaledImages = _metadata.getScaledImages();
+        int scaled = (scaledImages == null) ? 0 : scaledImages.length;
+        BlogID[] references = new BlogID[scaled + 1];
+        int n = 0;
+        if( _metadata.getContent() != null )
+            references[n++] = _metadata.getContent();
+        for( int i = 0; i < scaled; i++ )
+            if( scaledImages[i].content != null )
+                references[n++] = scaledImages[i].content;
+
+        return (n == references.length) ? references : Arrays.copyOf( references, n );
+    }
+
+
+    /*
+     * What the index knows about one object, kept so that its entries can be removed when it's updated.
+     */
+    private static class Entry {
+
+        private final BlogObjectType type;
+        private final BlogObjectAccessRequirements accessRequirements;
+        private final BlogID[] references;
+
+
+        private Entry( final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements, final BlogID[] _references ) {
+            type = _type;
+            accessRequirements = _accessRequirements;
+            references = _references;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.slightlyloony.blog.storage;
+
+import com.slightlyloony.blog.objects.BlogID;
+import com.slightlyloony.blog.objects.BlogObject;
+import com.slightlyloony.blog.objects.BlogObjectType;
+import com.slightlyloony.blog.objects.ContentCompressionState;
+import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
+
+import java.util.stream.Stream;
+
+/**
+ * Implemented by the storage backends that persist blog objects.  {@link Storage} keeps each object in its own file; {@link PackedStorage} appends
+ * objects to large segment files.  Which one the server uses is selected in the server configuration; {@link CachedStorage} works on top of either.
+ * Implementations must be threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public interface ObjectStore {
+
+
+    /**
+     * Reads the blog object with the given ID, type, and access requirements.  The ID and type are required.  The access requirements are optional;
+     * if missing (null) then this is an internal request.
+     *
+     * @param _id the blog object ID for the desired object
+     * @param _type the blog object type for the desired object
+     * @param _accessRequirements the optional access requirements (for external requests only)
+     * @param _compressionState the compression state of this object
+     * @return the blog object read
+     * @throws StorageException on any problem
+     */
+    BlogObject read( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
+                     final ContentCompressionState _compressionState ) throws StorageException;
+
+
+    /**
+     * Persists the given (new) blog object.
+     *
+     * @param _object the object to be persisted
+     * @return the blog object representing the shiny new object
+     * @throws StorageException on any problem
+     */
+    BlogObject create( final BlogObject _object ) throws StorageException;
+
+
+    /**
+     * Updates an existing blog object with the content of the given blog object.
+     *
+     * @param _object the blog object with updated content
+     * @return the blog object representing the updated object
+     * @throws StorageException on any problem
+     */
+    BlogObject update( final BlogObject _object ) throws StorageException;
+
+
+    /**
+     * Returns a stream identifying every blog object in this store, for rebuilding indexes and other bulk scans.  The stream may be run in parallel,
+     * and may or may not reflect objects created while it is being consumed.
+     *
+     * @return the stream of stored objects
+     */
+    Stream<StoredObject> objects();
+}
@@ -0,0 +1,708 @@
+package com.slightlyloony.blog.storage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.slightlyloony.blog.handlers.HandlerIllegalArgumentException;
+import com.slightlyloony.blog.handlers.HandlerIllegalStateException;
+import com.slightlyloony.blog.objects.*;
+import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
+import com.slightlyloony.blog.util.ID;
+import com.slightlyloony.blog.util.Timer;
+import com.slightlyloony.common.ExecutionService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * A storage backend that appends blog objects to large segment files instead of keeping each object in its own file.  This avoids the per-object
+ * disk block (a 200 byte metadata file still occupies a 4k block) and the path building and {@code exists()}/{@code isFile()}/{@code canRead()}
+ * system calls that the file-per-object {@link Storage} makes on every read.  An in-memory index maps each blog ID to the location of the current
+ * version of its object; a read is an index lookup and a single positional read.
+ * <p>
+ * Each object is written as a self-describing record, so the segment files are the only persistent state - there's no separate index file that
+ * could disagree with them.  The index is rebuilt on startup by scanning the segments in order (later records for the same ID supersede earlier
+ * ones).  Each record is laid out as follows (big-endian):
+ * <pre>
+ *   offset size  contents
+ *      0     4   magic number ("BOBJ")
+ *      4     8   blog ID (as its long value)
+ *     12     8   blog object type (file extension, US-ASCII, zero padded)
+ *     20     1   access requirements code (or 0 if none)
+ *     21     3   reserved (zero)
+ *     24     4   payload length
+ *     28     4   CRC32 of bytes 0-27 and the payload
+ *     32     n   payload (exactly what the type's codec would write to a file)
+ * </pre>
+ * A record with a bad magic number, impossible length, or bad CRC ends the scan of its segment; in the last (active) segment this is a torn write
+ * from a crash, and the segment is truncated there.
+ * <p>
+ * Updates append a new record and leave the old one as garbage.  Periodically, {@link #compact()} copies the live records out of any sealed
+ * segment that is mostly garbage, then deletes that segment.  The copies land in a higher numbered segment, so a crash during compaction leaves
+ * both copies, and the rebuild picks the (identical) newer one.
+ * <p>
+ * This class is threadsafe.  Reads run concurrently; appends are serialized.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class PackedStorage implements ObjectStore {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int RECORD_MAGIC = 0x424F424A;  // "BOBJ"...
+    private static final int HEADER_SIZE = 32;
+    private static final int TYPE_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final double COMPACTION_THRESHOLD = 0.5;  // compact sealed segments that are at least this fraction garbage...
+
+    private final File root;
+    private final long maxSegmentSize;
+    private final Map<Long,Entry> index;
+    private final Map<Integer,Segment> segments;
+    private final Object writeLock;
+
+    private Segment active;
+    private volatile long highestID;
+
+
+    /**
+     * Creates a new instance of this class that stores segment files in the packed store directory under the given content root, creating it if
+     * necessary, and rebuilds the index from any segment files already there.
+     *
+     * @param _rootPath the path to the content root directory
+     * @param _maxSegmentSize the size (in bytes) at which a segment is sealed and a new one started
+     */
+    public PackedStorage( final String _rootPath, final long _maxSegmentSize ) {
+
+        if( _rootPath == null )
+            throw new HandlerIllegalArgumentException( "Missing path information" );
+
+        root = new File( _rootPath, Constants.PACKED_ROOT );
+        maxSegmentSize = _maxSegmentSize;
+        index = new ConcurrentHashMap<>( 1 << 16 );
+        segments = new ConcurrentHashMap<>();
+        writeLock = new Object();
+        highestID = 0;
+
+        if( !root.exists() && !root.mkdirs() )
+            throw new HandlerIllegalStateException( "Could not create packed storage directory: " + root.getAbsolutePath() );
+
+        rebuild();
+    }
+
+
+    /**
+     * Schedules the periodic compaction of this store.
+     */
+    public void startCompaction() {
+        ExecutionService.INSTANCE.scheduleWithFixedDelay( this::compact, 1, 1, TimeUnit.HOURS );
+    }
+
+
+    /**
+     * Returns the highest blog ID (as its long value) of any object in this store, or zero if the store is empty.
+     *
+     * @return the highest blog ID in this store
+     */
+    public long getHighestID() {
+        return highestID;
+    }
+
+
+    /**
+     * Reads the blog object with the given ID, type, and access requirements.  The ID and type are required.  The access requirements are optional;
+     * if missing (null) then this is an internal request.  As with {@link Storage}, the type and access requirements must match those the object
+     * was stored with.
+     *
+     * @param _id the blog object ID for the desired object
+     * @param _type the blog object type for the desired object
+     * @param _accessRequirements the optional access requirements (for external requests only)
+     * @param _compressionState the compression state of this object
+     * @return the blog object read
+     * @throws StorageException on any problem
+     */
+    @Override
+    public BlogObject read( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
+                            final ContentCompressionState _compressionState ) throws StorageException {
+
+        if( (_id == null) || (_type == null) )
+            throw new HandlerIllegalArgumentException( "Missing ID or type" );
+
+        byte[] payload = readPayload( _id, _type, _accessRequirements );
+        return _type.getCodec().decode( payload, _id, _type, _accessRequirements, _compressionState );
+    }
+
+
+    /**
+     * Persists the given (new) blog object.  This object's blog ID should have been created just before this method is invoked.
+     *
+     * @param _object the object to be persisted
+     * @return the blog object representing the shiny new object
+     * @throws StorageException on any problem
+     */
+    @Override
+    public BlogObject create( final BlogObject _object ) throws StorageException {
+
+        if( _object == null )
+            throw new HandlerIllegalArgumentException( "Missing blog object to create" );
+
+        return write( _object, false );
+    }
+
+
+    /**
+     * Updates an existing blog object with the content of the given blog object.
+     *
+     * @param _object the blog object with updated content
+     * @return the blog object representing the updated object
+     * @throws StorageException on any problem
+     */
+    @Override
+    public BlogObject update( final BlogObject _object ) throws StorageException {
+
+        if( _object == null )
+            throw new HandlerIllegalArgumentException( "Missing blog object to modify" );
+
+        return write( _object, true );
+    }
+
+
+    /**
+     * Copies the live records out of every sealed segment that is mostly garbage, then deletes those segments.  The copies are forced to disk before
+     * any segment is deleted, so a crash can't lose the only copy of a live record.  This is invoked periodically once
+     * {@link #startCompaction()} has been called, but may also be invoked directly.
+     */
+    public void compact() {
+
+        // find the segments worth compacting, and the IDs whose current versions live in them...
+        Segment current;
+        synchronized( writeLock ) {
+            current = active;
+        }
+        Map<Segment,List<Long>> candidates = Maps.newHashMap();
+        for( Segment segment : segments.values() )
+            if( (segment != current) && (segment.garbage.get() >= segment.size * COMPACTION_THRESHOLD) )
+                candidates.put( segment, Lists.newArrayList() );
+        if( candidates.isEmpty() )
+            return;
+        for( Map.Entry<Long,Entry> entry : index.entrySet() ) {
+            List<Long> ids = candidates.get( entry.getValue().segment );
+            if( ids != null )
+                ids.add( entry.getKey() );
+        }
+
+        Timer t = new Timer();
+        int moved = 0;
+        for( Map.Entry<Segment,List<Long>> candidate : candidates.entrySet() ) {
+
+            Segment segment = candidate.getKey();
+            Set<Segment> written = Sets.newHashSet();  // the segments the copies went to...
+            try {
+                for( Long id : candidate.getValue() ) {
+
+                    Entry entry = index.get( id );
+                    if( (entry == null) || (entry.segment != segment) )
+                        continue;
+
+                    byte[] payload = segment.read( entry.offset, entry.length );
+
+                    // move it, unless someone updated it while we were reading...
+                    synchronized( writeLock ) {
+                        if( index.get( id ) == entry ) {
+                            append( id, entry.type, entry.accessCode, payload );
+                            written.add( active );
+                            moved++;
+                        }
+                    }
+                }
+
+                // make sure the copies are on disk before we delete the originals...
+                for( Segment copy : written )
+                    copy.force( copy.size );
+
+                // everything live has been copied, so the segment can go...
+                segments.remove( segment.number );
+                segment.close();
+                if( !segment.file.delete() )
+                    LOG.error( msg( "Could not delete compacted segment {0}", segment.file.getName() ) );
+            }
+            catch( IOException e ) {
+                LOG.error( msg( "Problem compacting segment {0}: {1}", segment.file.getName(), e.getMessage() ) );
+            }
+        }
+
+        t.mark();
+        LOG.info( msg( "Compacted {0} segments, moving {1} objects, in {2}", candidates.size(), moved, t.toString() ) );
+    }
+
+
+    /**
+     * Appends the given already-encoded object directly to this store, replacing any existing object with the same ID.  Used to import objects from a
+     * file-per-object store.  Imported objects aren't forced to disk one by one; they're all forced when the store is closed (see {@link #close()}).
+     *
+     * @param _id the blog ID of the object
+     * @param _type the blog object type
+     * @param _accessRequirements the access requirements, or null if none
+     * @param _payload the encoded object (the contents of its file)
+     * @throws StorageException on any problem
+     */
+    void importObject( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
+                       final byte[] _payload ) throws StorageException {
+
+        try {
+            synchronized( writeLock ) {
+                append( _id.asLong(), _type, code( _accessRequirements ), _payload );
+            }
+        }
+        catch( IOException e ) {
+            throw new StorageException( "Problem importing blog object " + _id + ": " + e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * Returns a stream identifying every blog object in this store, straight from the in-memory index.
+     *
+     * @return the stream of stored objects
+     */
+    @Override
+    public Stream<StoredObject> objects() {
+        return index.entrySet().stream().map( _entry -> new StoredObject( BlogID.create( ID.encode( _entry.getKey() ) ), _entry.getValue().type,
+                (_entry.getValue().accessCode == 0) ? null : BlogObjectAccessRequirements.get( (char) _entry.getValue().accessCode ) ) );
+    }
+
+
+    /**
+     * Forces all the segment files to disk and closes them.  The instance may not be used afterwards.
+     */
+    public void close() {
+        synchronized( writeLock ) {
+            for( Segment segment : segments.values() ) {
+                try {
+                    segment.force( segment.size );
+                }
+                catch( IOException e ) {
+                    LOG.error( msg( "Problem forcing segment {0}: {1}", segment.file.getName(), e.getMessage() ) );
+                }
+                segment.close();
+            }
+        }
+    }
+
+
+    /*
+     * Writes the given object, which must already exist (for an update) or must not (for a create).  The payload is encoded before taking the write
+     * lock, but the existence check is made while holding it, so two racing creates of the same ID can't both succeed.
+     */
+    private BlogObject write( final BlogObject _object, final boolean _mustExist ) throws StorageException {
+
+        BlogObjectType type = _object.getType();
+        byte[] payload = type.getCodec().encode( _object );
+
+        try {
+            Entry entry;
+            synchronized( writeLock ) {
+
+                if( index.containsKey( _object.getBlogID().asLong() ) != _mustExist ) {
+                    String msg = MessageFormat.format( _mustExist ? "Blog object {0} doesn''t exist" : "Blog object {0} already exists",
+                            _object.getBlogID() );
+                    LOG.warn( msg );
+                    throw new StorageException( msg );
+                }
+
+                entry = append( _object.getBlogID().asLong(), type, code( _object.getAccessRequirements() ), payload );
+            }
+
+            // make sure the record is on disk before we say it's written (outside the write lock, so concurrent writers can share a flush)...
+            try {
+                entry.segment.force( entry.offset + entry.length );
+            }
+            catch( ClosedChannelException e ) {
+                // compaction moved the record (and forced the copy) before we got to it...
+            }
+        }
+        catch( IOException e ) {
+            String msg = MessageFormat.format( "Problem writing blog object {0}: {1}", _object.getBlogID(), e.getMessage() );
+            LOG.error( msg, e );
+            throw new StorageException( msg, e );
+        }
+
+        // as with the file codecs, content objects get a fresh instance (their stream has been consumed); others are returned as is...
+        if( _object instanceof BlogContentObject ) {
+            ContentCompressionState state = ((BlogContentObject) _object).getContent().getCompressionState();
+            return type.getCodec().decode( payload, _object.getBlogID(), type, _object.getAccessRequirements(), state );
+        }
+        return _object;
+    }
+
+
+    private byte[] readPayload( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements )
+            throws StorageException {
+
+        // we try twice, in case compaction moved the object between our index lookup and our read...
+        for( int attempt = 0; ; attempt++ ) {
+
+            Entry entry = index.get( _id.asLong() );
+            if( (entry == null) || (entry.type != _type) || (entry.accessCode != code( _accessRequirements )) ) {
+                String msg = MessageFormat.format( "Blog object {0} ({1}) doesn''t exist", _id, _type );
+                LOG.warn( msg );
+                throw new StorageException( msg );
+            }
+
+            try {
+                return entry.segment.read( entry.offset, entry.length );
+            }
+            catch( ClosedChannelException e ) {
+                if( attempt > 0 )
+                    throw new StorageException( "Blog object " + _id + " moved twice while reading", e );
+            }
+            catch( IOException e ) {
+                String msg = MessageFormat.format( "Problem reading blog object {0}: {1}", _id, e.getMessage() );
+                LOG.error( msg, e );
+                throw new StorageException( msg, e );
+            }
+        }
+    }
+
+
+    /*
+     * Appends a record to the active segment, points the index at it, and returns its index entry.  The record isn't forced to disk.  Must be
+     * called while holding the write lock.
+     */
+    private Entry append( final long _id, final BlogObjectType _type, final byte _accessCode, final byte[] _payload ) throws IOException {
+
+        if( (active.size > 0) && (active.size + HEADER_SIZE + _payload.length > maxSegmentSize) )
+            roll();
+
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        header.putInt( RECORD_MAGIC );
+        header.putLong( _id );
+        byte[] ext = _type.getExtension().getBytes( StandardCharsets.US_ASCII );
+        header.put( Arrays.copyOf( ext, TYPE_SIZE ) );
+        header.put( _accessCode );
+        header.put( new byte[3] );
+        header.putInt( _payload.length );
+        header.putInt( crc( header.array(), _payload ) );
+        header.flip();
+
+        long position = active.size;
+        active.write( header, position );
+        active.write( ByteBuffer.wrap( _payload ), position + HEADER_SIZE );
+        active.size = position + HEADER_SIZE + _payload.length;
+
+        Entry entry = new Entry( active, position + HEADER_SIZE, _payload.length, _type, _accessCode );
+        Entry old = index.put( _id, entry );
+        if( old != null )
+            old.segment.garbage.addAndGet( HEADER_SIZE + old.length );
+        if( _id > highestID )
+            highestID = _id;
+        return entry;
+    }
+
+
+    /*
+     * Seals the active segment and starts a new one, making sure the new segment's file will survive a crash.  Must be called while holding the
+     * write lock.
+     */
+    private void roll() throws IOException {
+        active = openSegment( active.number + 1 );
+        DirectorySync.INSTANCE.sync( root.toPath() );
+        LOG.info( msg( "Started new segment {0}", active.file.getName() ) );
+    }
+
+
+    private Segment openSegment( final int _number ) throws IOException {
+        File file = new File( root, String.format( "%s%08d%s", SEGMENT_PREFIX, _number, SEGMENT_SUFFIX ) );
+        Segment segment = new Segment( _number, file );
+        segments.put( _number, segment );
+        return segment;
+    }
+
+
+    /*
+     * Rebuilds the index by scanning every segment, in order.
+     */
+    private void rebuild() {
+
+        Timer t = new Timer();
+
+        File[] files = root.listFiles( ( _dir, _name ) -> _name.startsWith( SEGMENT_PREFIX ) && _name.endsWith( SEGMENT_SUFFIX ) );
+        if( files == null )
+            throw new HandlerIllegalStateException( "Could not list packed storage directory: " + root.getAbsolutePath() );
+        Arrays.sort( files, ( _file1, _file2 ) -> _file1.getName().compareTo( _file2.getName() ) );
+
+        try {
+            for( int i = 0; i < files.length; i++ ) {
+                String name = files[i].getName();
+                int number = Integer.parseInt( name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ) );
+                active = openSegment( number );
+                scan( active, i == files.length - 1 );
+            }
+
+            if( active == null )
+                active = openSegment( 1 );
+        }
+        catch( IOException | NumberFormatException e ) {
+            throw new HandlerIllegalStateException( "Problem rebuilding packed storage index: " + e.getMessage(), e );
+        }
+
+        t.mark();
+        LOG.info( msg( "Rebuilt packed storage index ({0} objects in {1} segments) in {2}", index.size(), segments.size(), t.toString() ) );
+    }
+
+
+    private void scan( final Segment _segment, final boolean _isLast ) throws IOException {
+
+        long length = _segment.channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+
+        while( position + HEADER_SIZE <= length ) {
+
+            // read and check the header...
+            header.clear();
+            _segment.readFully( header, position );
+            header.flip();
+            int magic = header.getInt();
+            long id = header.getLong();
+            byte[] ext = new byte[TYPE_SIZE];
+            header.get( ext );
+            byte accessCode = header.get();
+            header.position( header.position() + 3 );
+            int payloadLength = header.getInt();
+            int storedCRC = header.getInt();
+            if( (magic != RECORD_MAGIC) || (payloadLength < 0) || (position + HEADER_SIZE + payloadLength > length) )
+                break;
+
+            // read and check the payload...
+            byte[] payload = _segment.read( position + HEADER_SIZE, payloadLength );
+            if( crc( header.array(), payload ) != storedCRC )
+                break;
+
+            BlogObjectType type = BlogObjectType.fromExtension( new String( ext, StandardCharsets.US_ASCII ).trim() );
+            if( type == null ) {
+                LOG.error( msg( "Unknown type in record at {0} in {1}; skipping", position, _segment.file.getName() ) );
+                _segment.garbage.addAndGet( HEADER_SIZE + payloadLength );
+            }
+            else {
+                Entry old = index.put( id, new Entry( _segment, position + HEADER_SIZE, payloadLength, type, accessCode ) );
+                if( old != null )
+                    old.segment.garbage.addAndGet( HEADER_SIZE + old.length );
+                if( id > highestID )
+                    highestID = id;
+            }
+
+            position += HEADER_SIZE + payloadLength;
+        }
+
+        // if we stopped short of the end, we either have a torn write (last segment) or corruption...
+        if( position < length ) {
+            if( _isLast ) {
+                LOG.warn( msg( "Truncating torn write at {0} in {1}", position, _segment.file.getName() ) );
+                _segment.channel.truncate( position );
+            }
+            else {
+                LOG.error( msg( "Corrupt record at {0} in {1}; ignoring the rest of the segment", position, _segment.file.getName() ) );
+                _segment.garbage.addAndGet( length - position );
+            }
+        }
+        _segment.size = _isLast ? position : length;
+    }
+
+
+    private static int crc( final byte[] _header, final byte[] _payload ) {
+        CRC32 crc = new CRC32();
+        crc.update( _header, 0, HEADER_SIZE - 4 );
+        crc.update( _payload );
+        return (int) crc.getValue();
+    }
+
+
+    private static byte code( final BlogObjectAccessRequirements _accessRequirements ) {
+        return (_accessRequirements == null) ? 0 : (byte) _accessRequirements.getCode();
+    }
+
+
+    /*
+     * The location and identity of the current version of one blog object.  Immutable, so readers never see a partially updated entry.
+     */
+    private static class Entry {
+
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final BlogObjectType type;
+        private final byte accessCode;
+
+
+        private Entry( final Segment _segment, final long _offset, final int _length, final BlogObjectType _type, final byte _accessCode ) {
+            segment = _segment;
+            offset = _offset;
+            length = _length;
+            type = _type;
+            accessCode = _accessCode;
+        }
+    }
+
+
+    /*
+     * One segment file.  Every thread shares its channel, and an interrupt delivered to any thread while it's using a FileChannel closes the channel
+     * for all of them.  So every channel operation goes through {@link #onChannel(ChannelOperation)}, which reopens a channel closed that way.  Only
+     * {@link #close()} closes a segment for good.
+     */
+    private static class Segment {
+
+        private final int number;
+        private final File file;
+        private final AtomicLong garbage;  // bytes of superseded records in this segment...
+        private final Object channelLock;  // guards replacing and closing the channel...
+        private volatile FileChannel channel;
+        private volatile boolean closed;
+        private volatile long size;
+        private volatile long forced;      // the size of this segment when it was last forced to disk...
+
+
+        private Segment( final int _number, final File _file ) throws IOException {
+            number = _number;
+            file = _file;
+            channelLock = new Object();
+            channel = open();
+            garbage = new AtomicLong( 0 );
+            size = channel.size();
+        }
+
+
+        private byte[] read( final long _position, final int _length ) throws IOException {
+            byte[] result = new byte[_length];
+            readFully( ByteBuffer.wrap( result ), _position );
+            return result;
+        }
+
+
+        private void readFully( final ByteBuffer _buffer, final long _position ) throws IOException {
+            int start = _buffer.position();
+            onChannel( _channel -> {
+                _buffer.position( start );
+                long position = _position;
+                while( _buffer.hasRemaining() ) {
+                    int n = _channel.read( _buffer, position );
+                    if( n < 0 )
+                        throw new IOException( "Unexpected end of segment " + file.getName() );
+                    position += n;
+                }
+            } );
+        }
+
+
+        private void write( final ByteBuffer _buffer, final long _position ) throws IOException {
+            int start = _buffer.position();
+            onChannel( _channel -> {
+                _buffer.position( start );
+                long position = _position;
+                while( _buffer.hasRemaining() )
+                    position += _channel.write( _buffer, position );
+            } );
+        }
+
+
+        /*
+         * Forces this segment to disk, unless everything through the given position already is.  Threads that arrive while another is forcing wait
+         * for it, and usually find that their records were forced along with its, so concurrent writers share a single flush.
+         */
+        private void force( final long _through ) throws IOException {
+
+            if( forced >= _through )
+                return;
+
+            synchronized( this ) {
+                if( forced >= _through )
+                    return;
+                long through = size;
+                onChannel( _channel -> _channel.force( true ) );
+                forced = through;
+            }
+        }
+
+
+        /*
+         * Runs the given operation on this segment's channel.  If the channel was closed by an interrupt rather than by {@link #close()}, it's
+         * reopened; the interrupted thread then gets an InterruptedIOException, and any other thread whose operation was cut short by the close runs
+         * it again on the fresh channel.  If the segment was closed for good, the ClosedChannelException is passed along to the caller.
+         */
+        private void onChannel( final ChannelOperation _operation ) throws IOException {
+
+            while( true ) {
+                FileChannel current = channel;
+                try {
+                    _operation.run( current );
+                    return;
+                }
+                catch( ClosedChannelException e ) {
+                    if( closed )
+                        throw e;
+                    reopen( current );
+                    if( e instanceof ClosedByInterruptException )
+                        throw new InterruptedIOException( "Interrupted while using segment " + file.getName() );
+                }
+            }
+        }
+
+
+        /*
+         * Replaces the given (closed) channel with a fresh one, unless another thread already has, or the segment has been closed for good.
+         */
+        private void reopen( final FileChannel _closed ) throws IOException {
+            synchronized( channelLock ) {
+                if( closed || (channel != _closed) )
+                    return;
+                channel = open();
+                LOG.warn( msg( "Reopened segment {0} after an interrupt closed it", file.getName() ) );
+            }
+        }
+
+
+        private FileChannel open() throws IOException {
+            return FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        }
+
+
+        private void close() {
+            synchronized( channelLock ) {
+                closed = true;
+                try {
+                    channel.close();
+                }
+                catch( IOException e ) {
+                    LOG.error( msg( "Problem closing segment {0}: {1}", file.getName(), e.getMessage() ) );
+                }
+            }
+        }
+    }
+
+
+    private interface ChannelOperation {
+        void run( final FileChannel _channel ) throws IOException;
+    }
+}
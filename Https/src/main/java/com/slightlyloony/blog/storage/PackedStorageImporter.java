@@ -0,0 +1,79 @@
+package com.slightlyloony.blog.storage;
+
+import com.slightlyloony.blog.objects.BlogObjectType;
+import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Offline tool that copies every object in a file-per-object store into a packed store (see {@link PackedStorage}) under the same content root.
+ * Usage:
+ * <pre>
+ *     java com.slightlyloony.blog.storage.PackedStorageImporter contentRoot [segmentSize]
+ * </pre>
+ * Each object's file contents are copied verbatim, as they're already in the encoding the packed store holds.  The file-per-object store is left
+ * untouched, so the server can be switched back to it.  Running the import again appends fresh copies, superseding the earlier ones.  The server
+ * should be stopped while this tool runs.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class PackedStorageImporter {
+
+
+    public static void main( final String[] _args ) {
+
+        if( _args.length < 1 ) {
+            System.err.println( "Usage: PackedStorageImporter contentRoot [segmentSize]" );
+            System.exit( 1 );
+        }
+
+        File objectsRoot = new File( _args[0], Constants.OBJECTS_ROOT );
+        if( !objectsRoot.isDirectory() ) {
+            System.err.println( "No object store at: " + objectsRoot.getAbsolutePath() );
+            System.exit( 1 );
+        }
+
+        long segmentSize = (_args.length > 1) ? Long.parseLong( _args[1] ) : 256L * 1024 * 1024;
+        PackedStorage packed = new PackedStorage( _args[0], segmentSize );
+
+        int imported = 0;
+        int failed = 0;
+        BlogObjectIterator it = new BlogObjectIterator( objectsRoot );
+        while( it.hasNext() ) {
+
+            BlogObjectIterator.BlogObjectInfo info = it.next();
+            String name = info.file.getName();
+
+            // the file name is the ID, an optional access requirements code, and the type's extension...
+            int dot = name.indexOf( '.' );
+            BlogObjectType type = (dot < 0) ? null : BlogObjectType.fromExtension( name.substring( dot + 1 ) );
+            BlogObjectAccessRequirements accessRequirements = (dot == 11) ? BlogObjectAccessRequirements.get( name.charAt( 10 ) ) : null;
+            if( (type == null) || ((dot != 10) && (accessRequirements == null)) ) {
+                System.err.println( "Skipping unrecognized file: " + name );
+                failed++;
+                continue;
+            }
+
+            try {
+                packed.importObject( info.id, type, accessRequirements, Files.readAllBytes( info.file.toPath() ) );
+                imported++;
+            }
+            catch( StorageException | IOException e ) {
+                System.err.println( "Problem importing " + name + ": " + e.getMessage() );
+                failed++;
+            }
+        }
+
+        packed.close();
+        System.out.println( "Imported " + imported + ", failed " + failed + "; highest ID is " + packed.getHighestID() );
+        if( failed > 0 )
+            System.exit( 2 );
+    }
+
+
+    private PackedStorageImporter() {
+        // prevent instantiation...
+    }
+}
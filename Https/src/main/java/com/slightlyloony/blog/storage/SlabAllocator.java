@@ -0,0 +1,264 @@
+package com.slightlyloony.blog.storage;
+
+import com.google.gson.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * Allocates blocks of memory outside the Java heap, for the bodies of cached content objects.  Keeping large cached content (images, in particular)
+ * off the heap means the garbage collector never has to copy or scan it.
+ * <p>
+ * Memory is reserved from the operating system in slabs of {@link #SLAB_SIZE} bytes, each dedicated to one size class (powers of two from 4k to the
+ * slab size) and divided into slots of that size.  A request is served from the smallest size class that fits it.  Requests larger than a slab get
+ * a direct buffer of their own.  Slabs are never returned to the operating system; freed slots are reused by later requests of the same size class.
+ * The total reserved is limited to the capacity given at construction; when that's reached, allocation fails and the caller keeps its content on
+ * the heap.
+ * <p>
+ * A content object may be in the middle of being written to a response when the cache evicts it, so freeing is two-step.  Eviction {@link
+ * #retire(Block) retires} the block; it's actually freed only after a grace period has passed <i>and</i> no writer holds it (see {@link
+ * Block#retain()}).  Writers retain a block for the duration of a write, so they never see its slot reused.
+ * <p>
+ * This class is threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class SlabAllocator {
+
+    public static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int MIN_SHIFT = 12;                  // the smallest size class is 4k...
+    private static final int MAX_SHIFT = 22;                  // the largest size class is the slab size...
+    private static final long GRACE_NANOS = TimeUnit.SECONDS.toNanos( 30 );
+
+    private final long capacity;
+    private final ArrayDeque<ByteBuffer>[] free;              // free slots, by size class...
+    private final int[] slabs;                                // number of slabs, by size class...
+    private final ArrayDeque<Block> retired;                  // blocks waiting out their grace period, oldest first...
+
+    private long reserved;                                    // bytes reserved from the operating system (slabs and large blocks)...
+    private long slotBytes;                                   // bytes in allocated slots (including large blocks)...
+    private long usedBytes;                                   // bytes actually requested in allocated slots...
+    private long allocations;
+    private long failures;
+
+
+    /**
+     * Creates a new instance of this class that will reserve no more than the given number of bytes.
+     *
+     * @param _capacity the maximum number of bytes to reserve
+     */
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    public SlabAllocator( final long _capacity ) {
+
+        capacity = _capacity;
+        free = new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+        for( int i = 0; i < free.length; i++ )
+            free[i] = new ArrayDeque<>();
+        slabs = new int[free.length];
+        retired = new ArrayDeque<>();
+    }
+
+
+    /**
+     * Allocates a block of at least the given length, or returns null if that would exceed this allocator's capacity.  The returned block is held
+     * once, by the caller.
+     *
+     * @param _length the number of bytes needed
+     * @return the block allocated, or null if there's no room
+     */
+    public synchronized Block allocate( final int _length ) {
+
+        reclaim();
+
+        // large requests get their own buffer...
+        if( _length > SLAB_SIZE ) {
+            if( reserved + _length > capacity ) {
+                failures++;
+                return null;
+            }
+            reserved += _length;
+            return allocated( ByteBuffer.allocateDirect( _length ), _length, -1 );
+        }
+
+        // otherwise, find the size class and take a free slot, adding a new slab if we have to...
+        int sizeClass = Math.max( 0, 32 - Integer.numberOfLeadingZeros( Math.max( 1, _length ) - 1 ) - MIN_SHIFT );
+        if( free[sizeClass].isEmpty() ) {
+            if( reserved + SLAB_SIZE > capacity ) {
+                failures++;
+                return null;
+            }
+            addSlab( sizeClass );
+        }
+        return allocated( free[sizeClass].pop(), _length, sizeClass );
+    }
+
+
+    /**
+     * Retires the given block, releasing its owner's hold on it.  The block is freed once the grace period has passed and no writer holds it.
+     * Retiring a block that's already retired does nothing.
+     *
+     * @param _block the block to retire
+     */
+    public synchronized void retire( final Block _block ) {
+        if( _block.retired )
+            return;
+        _block.retired = true;
+        _block.retiredAt = System.nanoTime();
+        _block.release();
+        retired.add( _block );
+    }
+
+
+    /**
+     * Returns statistics about this allocator's memory use, as a JSON object.  Internal fragmentation is the fraction of allocated slot bytes that
+     * aren't used (because requests are rounded up to a size class); free slab bytes are reserved but not in any allocated slot.
+     *
+     * @return the statistics
+     */
+    public synchronized JsonObject getStats() {
+
+        reclaim();
+
+        JsonObject result = new JsonObject();
+        result.addProperty( "capacity",              capacity                                                    );
+        result.addProperty( "reserved",              reserved                                                    );
+        result.addProperty( "allocatedSlotBytes",    slotBytes                                                   );
+        result.addProperty( "usedBytes",             usedBytes                                                   );
+        result.addProperty( "freeSlabBytes",         reserved - slotBytes                                        );
+        result.addProperty( "internalFragmentation", (slotBytes == 0) ? 0 : 1.0 - (double) usedBytes / slotBytes );
+        result.addProperty( "retiredBlocks",         retired.size()                                              );
+        result.addProperty( "allocations",           allocations                                                 );
+        result.addProperty( "failedAllocations",     failures                                                    );
+
+        JsonObject classes = new JsonObject();
+        for( int i = 0; i < free.length; i++ )
+            if( slabs[i] > 0 )
+                classes.addProperty( Integer.toString( 1 << (i + MIN_SHIFT) ), slabs[i] + " slabs, " + free[i].size() + " free slots" );
+        result.add( "sizeClasses", classes );
+        return result;
+    }
+
+
+    private Block allocated( final ByteBuffer _slot, final int _length, final int _sizeClass ) {
+        allocations++;
+        slotBytes += _slot.capacity();
+        usedBytes += _length;
+        _slot.clear();
+        _slot.limit( _length );
+        return new Block( _slot.slice(), _slot, _length, _sizeClass );
+    }
+
+
+    private void addSlab( final int _sizeClass ) {
+
+        ByteBuffer slab = ByteBuffer.allocateDirect( SLAB_SIZE );
+        reserved += SLAB_SIZE;
+        slabs[_sizeClass]++;
+
+        int slotSize = 1 << (_sizeClass + MIN_SHIFT);
+        for( int offset = 0; offset < SLAB_SIZE; offset += slotSize ) {
+            slab.limit( offset + slotSize );
+            slab.position( offset );
+            free[_sizeClass].add( slab.slice() );
+        }
+        LOG.debug( msg( "Added off-heap slab for {0} byte slots", slotSize ) );
+    }
+
+
+    /*
+     * Frees every retired block whose grace period has passed and that no writer holds.
+     */
+    private void reclaim() {
+
+        long now = System.nanoTime();
+        Iterator<Block> it = retired.iterator();
+        while( it.hasNext() ) {
+            Block block = it.next();
+            if( now - block.retiredAt < GRACE_NANOS )
+                break;
+            if( !block.refs.compareAndSet( 0, -1 ) )
+                continue;
+            it.remove();
+            slotBytes -= block.slot.capacity();
+            usedBytes -= block.length;
+            if( block.sizeClass < 0 )
+                reserved -= block.length;
+            else
+                free[block.sizeClass].push( block.slot );
+        }
+    }
+
+
+    /**
+     * A block of off-heap memory.  The block is held by its owner from allocation until it's retired, and by each writer while it's being written.
+     */
+    public static class Block {
+
+        private final ByteBuffer buffer;
+        private final ByteBuffer slot;
+        private final int length;
+        private final int sizeClass;
+        private final AtomicInteger refs;    // holders of this block, or -1 once it has been freed...
+        private boolean retired;
+        private long retiredAt;
+
+
+        private Block( final ByteBuffer _buffer, final ByteBuffer _slot, final int _length, final int _sizeClass ) {
+            buffer = _buffer;
+            slot = _slot;
+            length = _length;
+            sizeClass = _sizeClass;
+            refs = new AtomicInteger( 1 );
+        }
+
+
+        /**
+         * Holds this block, so that it can't be freed until {@link #release()} is invoked.  Fails only if the block has already been freed, which
+         * can happen only if it was retired more than the grace period ago.
+         *
+         * @return true if this block is now held, false if it has already been freed
+         */
+        public boolean retain() {
+            while( true ) {
+                int current = refs.get();
+                if( current < 0 )
+                    return false;
+                if( refs.compareAndSet( current, current + 1 ) )
+                    return true;
+            }
+        }
+
+
+        /**
+         * Releases a hold on this block.
+         */
+        public void release() {
+            refs.decrementAndGet();
+        }
+
+
+        /**
+         * Returns a new buffer (with its own position and limit) over this block's bytes.  The block must be held while the buffer is used.
+         *
+         * @return a buffer over this block's bytes
+         */
+        public ByteBuffer getBuffer() {
+            return buffer.duplicate();
+        }
+
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
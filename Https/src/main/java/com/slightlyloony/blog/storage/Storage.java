@@ -13,20 +13,29 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.MessageFormat;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
 
 /**
- * Provides access to the storage system (disk) for the blog.
+ * Provides access to the storage system (disk) for the blog, keeping each blog object in its own file.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
-public class Storage {
+public class Storage implements ObjectStore {
 
     private static final Logger LOG = LogManager.getLogger();
 
+    private static final ThreadLocal<char[]> PATH_BUFFER = ThreadLocal.withInitial( () -> new char[64] );
+
     private final File objectsRoot;
+    private final Path objectsRootPath;
     private final Map<String,Semaphore> locks;
 
 
@@ -41,6 +50,7 @@ public class Storage {
             throw new HandlerIllegalArgumentException( "Missing path information" );
 
         objectsRoot = new File( _rootPath, Constants.OBJECTS_ROOT );
+        objectsRootPath = objectsRoot.toPath();
         locks = Maps.newHashMap();
 
         // do a little sanity checking, to make sure that we actually HAVE this directory and that we can write into it...
@@ -61,6 +71,7 @@ public class Storage {
      * @return the blog object read
      * @throws StorageException on any problem
      */
+    @Override
     public BlogObject read( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
                             final ContentCompressionState _compressionState ) throws StorageException {
 
@@ -71,19 +82,38 @@ public class Storage {
         getLock( _id );
 
         try {
-            // get the file...
-            File file = getObjectFile( _id, _type, _accessRequirements );
-
-            // make sure it exists and we can read it...
-            if( (!file.exists()) || (!file.isFile()) || (!file.canRead()) ) {
-                String msg = MessageFormat.format( "Blog object file ({0}) problem: doesn''t exist, isn''t a file, or can''t read",
-                        file.getAbsolutePath() );
+            // open the file; trying to open it is also how we find out whether it exists...
+            Path path = objectsRootPath.resolve( getObjectPath( _id, _type, _accessRequirements ) );
+            FileChannel channel;
+            try {
+                channel = FileChannel.open( path, StandardOpenOption.READ );
+            }
+            catch( NoSuchFileException e ) {
+                String msg = MessageFormat.format( "Blog object file ({0}) problem: doesn''t exist", path );
                 LOG.warn( msg );
                 throw new StorageException( msg );
             }
+            catch( IOException e ) {
+                String msg = MessageFormat.format( "Blog object file ({0}) problem: can''t open: {1}", path, e.getMessage() );
+                LOG.warn( msg );
+                throw new StorageException( msg, e );
+            }
 
-            // create our blog object and return it...
-            return _type.getCodec().read( file, _id, _type, _accessRequirements, _compressionState );
+            // create our blog object from the open file and return it; the codec takes ownership of the channel, unless something goes wrong...
+            try {
+                return _type.getCodec().read( Channels.newInputStream( channel ), (int) channel.size(), _id, _type, _accessRequirements,
+                        _compressionState );
+            }
+            catch( IOException e ) {
+                closeQuietly( channel );
+                String msg = MessageFormat.format( "Blog object file ({0}) problem: {1}", path, e.getMessage() );
+                LOG.warn( msg );
+                throw new StorageException( msg, e );
+            }
+            catch( StorageException | RuntimeException e ) {
+                closeQuietly( channel );
+                throw e;
+            }
         }
 
         // now release our lock...
@@ -103,6 +133,7 @@ public class Storage {
      * @return the blog object representing the shiny new object
      * @throws StorageException on any problem
      */
+    @Override
     public BlogObject create( final BlogObject _object ) throws StorageException {
 
         if( _object == null )
@@ -148,6 +179,7 @@ public class Storage {
      * @return the blog object representing the shiny new object
      * @throws StorageException on any problem
      */
+    @Override
     public BlogObject update( final BlogObject _object ) throws StorageException {
 
         if( _object == null )
@@ -226,22 +258,75 @@ public class Storage {
 
     private File getObjectFile( final BlogID _id,
                                 final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements  ) {
-
-        String fileName = _id.getID() + ((_accessRequirements == null) ? "" : _accessRequirements.getCode() ) + "." + _type.getExtension();
-        return new File( getObjectDir( _id ), fileName );
+        return new File( objectsRoot, getObjectPath( _id, _type, _accessRequirements ) );
     }
 
 
-    private File getObjectDir( final BlogID _id ) {
+    /*
+     * Returns the path of the given object's file, relative to the objects root: the first four pairs of ID characters as directories, then the ID,
+     * access requirements code (if any), and extension as the file name.  This is built in a per-thread buffer, with a single string allocation.
+     */
+    private String getObjectPath( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements ) {
+
+        char[] buffer = PATH_BUFFER.get();
+        String id = _id.getID();
+        int n = 0;
+        for( int i = 0; i < 8; i += 2 ) {
+            buffer[n++] = id.charAt( i );
+            buffer[n++] = id.charAt( i + 1 );
+            buffer[n++] = File.separatorChar;
+        }
+        id.getChars( 0, 10, buffer, n );
+        n += 10;
+        if( _accessRequirements != null )
+            buffer[n++] = _accessRequirements.getCode();
+        buffer[n++] = '.';
+        String extension = _type.getExtension();
+        extension.getChars( 0, extension.length(), buffer, n );
+        n += extension.length();
+        return new String( buffer, 0, n );
+    }
+
 
-        // get the path to the containing directory...
-        File path = objectsRoot;
-        for( int i = 0; i < 4; i++ ) {
-            int initialChar = i << 1;
-            String element = _id.getID().substring( initialChar, initialChar + 2 );
-            path = new File( path, element );
+    private void closeQuietly( final FileChannel _channel ) {
+        try {
+            _channel.close();
+        }
+        catch( IOException e ) {
+            LOG.warn( "Problem closing blog object file: " + e.getMessage() );
         }
-        return path;
+    }
+
+
+    /**
+     * Returns a stream identifying every blog object in this store, as determined by the names of the files in the object directory tree.  Files
+     * whose names don't have a known extension or access requirements code are skipped.
+     *
+     * @return the stream of stored objects
+     */
+    @Override
+    public Stream<StoredObject> objects() {
+        return BlogObjectSpliterator.stream( objectsRoot ).map( this::toStoredObject ).filter( _object -> _object != null );
+    }
+
+
+    /*
+     * Returns the stored object identified by the given file's name (ID, optional access requirements code, and extension), or null if the name
+     * isn't one this class would have created.
+     */
+    private StoredObject toStoredObject( final BlogObjectIterator.BlogObjectInfo _info ) {
+
+        String name = _info.file.getName();
+        int dot = name.indexOf( '.', 10 );
+        if( (dot < 10) || (dot > 11) )
+            return null;
+
+        BlogObjectType type = BlogObjectType.fromExtension( name.substring( dot + 1 ) );
+        BlogObjectAccessRequirements accessRequirements = (dot == 11) ? BlogObjectAccessRequirements.get( name.charAt( 10 ) ) : null;
+        if( (type == null) || ((dot == 11) && (accessRequirements == null)) || (_info.id == null) )
+            return null;
+
+        return new StoredObject( _info.id, type, accessRequirements );
     }
 
 
@@ -4,9 +4,12 @@ import com.slightlyloony.blog.objects.*;
 import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
 
 import java.io.File;
+import java.io.InputStream;
 
 /**
- * Implemented by classes that can read blog objects from a file and write blog objects to a file.
+ * Implemented by classes that can read blog objects from a file and write blog objects to a file.  Codecs can also convert blog objects to and from
+ * their persisted bytes directly, for storage backends (such as {@link PackedStorage}) that don't keep each object in its own file.  The bytes
+ * produced by {@link #encode(BlogObject)} are exactly what {@link #create(BlogObject,File)} writes to a file.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
@@ -29,6 +32,23 @@ public interface StorageCodec {
                      final ContentCompressionState _compressionState ) throws StorageException;
 
 
+    /**
+     * Uses the given open stream, which holds exactly the given number of bytes of the blog object's persisted form, to create a blog object.  The
+     * codec takes ownership of the stream: it either closes it before returning, or hands it to the blog object produced.
+     *
+     * @param _stream the stream to read the blog object from
+     * @param _length the number of bytes in the stream
+     * @param _id the blog ID for the blog object being read
+     * @param _type the blog object type
+     * @param _accessRequirements the blog object's access requirements
+     * @param _compressionState the blog object's compression state
+     * @return the blog object created
+     * @throws StorageException on any problem
+     */
+    BlogObject read( final InputStream _stream, final int _length, final BlogID _id, final BlogObjectType _type,
+                     final BlogObjectAccessRequirements _accessRequirements, final ContentCompressionState _compressionState ) throws StorageException;
+
+
     /**
      * Creates a new file to persist the given blog object.
      *
@@ -49,4 +69,29 @@ public interface StorageCodec {
      * @throws StorageException on any problem
      */
     BlogObject update( final BlogObject _object, final File _file ) throws StorageException;
+
+
+    /**
+     * Decodes a blog object from the given bytes, as produced by {@link #encode(BlogObject)}.
+     *
+     * @param _bytes the encoded blog object
+     * @param _id the blog ID for the blog object being read
+     * @param _type the blog object type
+     * @param _accessRequirements the blog object's access requirements
+     * @param _compressionState the blog object's compression state
+     * @return the blog object decoded
+     * @throws StorageException on any problem
+     */
+    BlogObject decode( final byte[] _bytes, final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
+                       final ContentCompressionState _compressionState ) throws StorageException;
+
+
+    /**
+     * Encodes the given blog object into the bytes that persist it.
+     *
+     * @param _object the blog object to encode
+     * @return the encoded blog object
+     * @throws StorageException on any problem
+     */
+    byte[] encode( final BlogObject _object ) throws StorageException;
 }
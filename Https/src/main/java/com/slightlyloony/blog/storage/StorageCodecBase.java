@@ -1,6 +1,11 @@
 package com.slightlyloony.blog.storage;
 
 import com.google.common.io.ByteStreams;
+import com.slightlyloony.blog.objects.BlogID;
+import com.slightlyloony.blog.objects.BlogObject;
+import com.slightlyloony.blog.objects.BlogObjectType;
+import com.slightlyloony.blog.objects.ContentCompressionState;
+import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
 import com.slightlyloony.blog.util.S;
 import com.slightlyloony.common.logging.LU;
 import org.apache.logging.log4j.LogManager;
@@ -9,15 +14,46 @@ import org.apache.logging.log4j.Logger;
 import java.io.*;
 
 /**
- * Provides methods shared between codec implementations.
+ * Provides methods shared between codec implementations, including a stream reader for codecs whose objects are decoded from all their bytes
+ * at once.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
-public abstract class StorageCodecBase {
+public abstract class StorageCodecBase implements StorageCodec {
 
     private static final Logger LOG = LogManager.getLogger();
 
 
+    /**
+     * Reads all the bytes in the given stream, closes it, and decodes them into a blog object.
+     *
+     * @param _stream the stream to read the blog object from
+     * @param _length the number of bytes in the stream
+     * @param _id the blog ID for the blog object being read
+     * @param _type the blog object type
+     * @param _accessRequirements the blog object's access requirements
+     * @param _compressionState the blog object's compression state
+     * @return the blog object created
+     * @throws StorageException on any problem
+     */
+    @Override
+    public BlogObject read( final InputStream _stream, final int _length, final BlogID _id, final BlogObjectType _type,
+                            final BlogObjectAccessRequirements _accessRequirements, final ContentCompressionState _compressionState )
+            throws StorageException {
+
+        byte[] bytes = new byte[_length];
+        try(
+            InputStream is = _stream ) {
+            ByteStreams.readFully( is, bytes );
+        }
+        catch( IOException e ) {
+            LOG.error( LU.msg( "Problem reading blog object {0}: {1}", _id, e.getMessage() ) );
+            throw new StorageException( "Problem reading blog object: " + _id );
+        }
+        return decode( bytes, _id, _type, _accessRequirements, _compressionState );
+    }
+
+
     /**
      * Reads the given file (which is assumed to be encoded in UTF-8) and returns it as a string.  This is normally used for reading JSON.
      *
@@ -26,10 +62,22 @@ public abstract class StorageCodecBase {
      * @throws StorageException on any problem
      */
     protected String getFileAsString( final File _file ) throws StorageException {
+        return S.fromUTF8( getFileAsBytes( _file ) );
+    }
+
+
+    /**
+     * Reads the given file and returns its entire contents as an array of bytes.
+     *
+     * @param _file the file to read
+     * @return the bytes read from the file
+     * @throws StorageException on any problem
+     */
+    protected byte[] getFileAsBytes( final File _file ) throws StorageException {
 
         try(
             InputStream is = new FileInputStream( _file ) ) {
-            return S.fromUTF8( ByteStreams.toByteArray( is ) );
+            return ByteStreams.toByteArray( is );
         }
         catch( IOException e ) {
             LOG.error( LU.msg( "Problem reading file {0}: {1}", _file.getName(), e.getMessage() ) );
@@ -46,10 +94,21 @@ public abstract class StorageCodecBase {
      * @throws StorageException on any problem
      */
     protected void writeStringToFile( final String _string, final File _file ) throws StorageException {
+        writeBytesToFile( S.toUTF8( _string ), _file );
+    }
 
-        try(
-            OutputStream os = new FileOutputStream( _file ) ) {
-            os.write( S.toUTF8( _string ) );
+
+    /**
+     * Writes the given bytes to the given file, atomically replacing any previous contents (see {@link AtomicFiles}).
+     *
+     * @param _bytes the bytes to write to the file
+     * @param _file the file to write the bytes to
+     * @throws StorageException on any problem
+     */
+    protected void writeBytesToFile( final byte[] _bytes, final File _file ) throws StorageException {
+
+        try {
+            AtomicFiles.replace( _file, _bytes );
         }
         catch( IOException e ) {
             LOG.error( LU.msg( "Problem writing file {0}: {1}", _file.getName(), e.getMessage() ) );
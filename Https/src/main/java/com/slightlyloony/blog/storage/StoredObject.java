@@ -0,0 +1,25 @@
+package com.slightlyloony.blog.storage;
+
+import com.slightlyloony.blog.objects.BlogID;
+import com.slightlyloony.blog.objects.BlogObjectType;
+import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
+
+/**
+ * Identifies one blog object held by an {@link ObjectStore}: its ID, type, and access requirements (null for objects that are only used internally).
+ * Together these are everything needed to read the object.  Instances of this class are immutable.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class StoredObject {
+
+    public final BlogID id;
+    public final BlogObjectType type;
+    public final BlogObjectAccessRequirements accessRequirements;
+
+
+    public StoredObject( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements ) {
+        id = _id;
+        type = _type;
+        accessRequirements = _accessRequirements;
+    }
+}
@@ -1,17 +1,25 @@
 package com.slightlyloony.blog.templates.sources;
 
 import com.google.common.collect.Lists;
+import com.slightlyloony.blog.handlers.HandlerIllegalStateException;
 import com.slightlyloony.blog.storage.StorageException;
 import com.slightlyloony.blog.users.User;
 import com.slightlyloony.blog.users.Users;
 
+import java.util.AbstractList;
 import java.util.List;
 
 /**
+ * Implements a list source for all the users of a blog.  The users aren't read up front: the list is fixed at the users in the index when this
+ * instance is made, and they're read a page at a time as the template walks through them, with just the current page held (see
+ * {@link Users#getUsers(int, int)}).
+ *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public class UsersSource extends ListSource {
 
+    private static final int PAGE_SIZE = 50;
+
 
     /**
      * Creates a new instance of this class.  See the class comments for more details.
@@ -19,15 +27,55 @@ public class UsersSource extends ListSource {
      * @param _users the users index object
      */
     public UsersSource( final Users _users ) throws StorageException {
-        super( getUsers( _users ) );
+        super( new UserPages( _users ) );
     }
 
 
-    private static List<Source> getUsers( final Users _users ) throws StorageException {
+    /*
+     * A read-only list of user sources, reading the users one page at a time.
+     */
+    private static class UserPages extends AbstractList<Source> {
+
+        private final Users users;
+        private final int size;
+        private int pageStart;
+        private List<Source> page;
+
+
+        private UserPages( final Users _users ) {
+            users = _users;
+            size = _users.getUserCount();
+        }
+
+
+        @Override
+        public Source get( final int _index ) {
+
+            if( (_index < 0) || (_index >= size) )
+                throw new IndexOutOfBoundsException( "User index out of range: " + _index );
+
+            // if the user isn't on the page we have, read the page it's on...
+            if( (page == null) || (_index < pageStart) || (_index >= pageStart + page.size()) ) {
+                int start = _index - (_index % PAGE_SIZE);
+                try {
+                    List<Source> sources = Lists.newArrayListWithCapacity( PAGE_SIZE );
+                    for( User user : users.getUsers( start, PAGE_SIZE ) )
+                        sources.add( new UserSource( user ) );
+                    page = sources;
+                    pageStart = start;
+                }
+                catch( StorageException e ) {
+                    throw new HandlerIllegalStateException( "Problem reading users", e );
+                }
+            }
+
+            return page.get( _index - pageStart );
+        }
+
 
-        List<Source> result = Lists.newArrayList();
-        for( User user : _users.getUsers() )
-            result.add( new UserSource( user ) );
-        return result;
+        @Override
+        public int size() {
+            return size;
+        }
     }
 }
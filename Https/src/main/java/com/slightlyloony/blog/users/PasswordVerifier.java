@@ -0,0 +1,365 @@
+package com.slightlyloony.blog.users;
+
+import com.google.common.collect.Maps;
+import com.google.gson.JsonObject;
+import com.slightlyloony.blog.ServerInit;
+import com.slightlyloony.blog.config.ServerConfig;
+import com.slightlyloony.blog.storage.StorageException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mindrot.jbcrypt.BCrypt;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * Verifies login passwords on a small pool of threads of its own, so that bcrypt (which is deliberately slow, and entirely CPU bound) can't take
+ * over the threads serving pages.  A burst of logins, or someone trying a list of stolen passwords, is throttled here while everything else carries
+ * on at its usual pace:
+ * <ul>
+ *     <li>only a few verifications run at once, on threads at slightly lower priority than the request threads;</li>
+ *     <li>verifications wait for a thread in a bounded, first-come first-served queue, and if one waits too long for a thread, or the queue is
+ *     full, the login is told to try again;</li>
+ *     <li>only a few verifications may be in progress (waiting or running) for any one client IP address, or for any one username, so that no
+ *     single client can fill the queue, and no single account can be hammered in parallel.</li>
+ * </ul>
+ * The limits are all configured (see {@link ServerConfig#getLoginThreads()} and its neighbors).
+ * <p>
+ * This class also decides how much work bcrypt does for each password (its cost), so that verifying a password takes about the configured target
+ * time on the hardware we're actually running on: at startup it times bcrypt here (taking the median of several runs, so one slow run doesn't skew
+ * it), and picks the highest cost that stays within the target (but never less than the configured minimum).  New passwords are hashed at that
+ * cost, and when a user logs in with a password stored at a lower cost, it's rehashed at ours and the user is written back as usual - so stored
+ * passwords get stronger as the hardware gets faster, one login at a time.  Passwords stored at a higher cost are left alone; rehashing them would
+ * only weaken them.
+ * <p>
+ * This class is a singleton.  It is threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class PasswordVerifier {
+
+    public static final PasswordVerifier INSTANCE = new PasswordVerifier();
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int MAX_COST = 31;  // the most bcrypt allows...
+    private static final int BENCHMARK_SAMPLES = 5;  // timed hashes at startup, of which we take the median...
+
+    /**
+     * The possible outcomes of verifying a password.
+     */
+    public enum Outcome {
+        MATCH,     // the password is correct...
+        MISMATCH,  // the password is incorrect...
+        BUSY       // the password wasn't checked, because of the limits on logins; the client should try again later...
+    }
+
+    private final Limiter byIP;
+    private final Limiter byUsername;
+    private final AtomicLong matched;
+    private final AtomicLong mismatched;
+    private final AtomicLong throttled;
+    private final AtomicLong rejected;
+    private final AtomicLong timedOut;
+    private final AtomicLong rehashed;
+    private final AtomicInteger nextThread;
+    private volatile long maxNanos;
+    private volatile int cost;
+    private ThreadPoolExecutor executor;
+
+
+    private PasswordVerifier() {
+        byIP = new Limiter();
+        byUsername = new Limiter();
+        matched = new AtomicLong();
+        mismatched = new AtomicLong();
+        throttled = new AtomicLong();
+        rejected = new AtomicLong();
+        timedOut = new AtomicLong();
+        rehashed = new AtomicLong();
+        nextThread = new AtomicInteger( 1 );
+        cost = 10;  // bcrypt's own default, until we've timed it...
+    }
+
+
+    /**
+     * Picks the bcrypt cost for this machine, and starts the pool of threads that verify passwords.
+     */
+    public synchronized void init() {
+
+        if( executor != null )
+            return;
+
+        ServerConfig config = ServerInit.getConfig();
+        cost = benchmark( config.getPasswordHashTarget(), config.getPasswordHashMinCost() );
+
+        int threads = config.getLoginThreads();
+        executor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>( config.getLoginQueueSize() ),
+                _runnable -> {
+                    Thread t = new Thread( _runnable, "PasswordVerifier-" + nextThread.getAndIncrement() );
+                    t.setDaemon( true );
+                    t.setPriority( Thread.NORM_PRIORITY - 1 );
+                    return t;
+                } );
+        LOG.info( msg( "Verifying passwords on {0} threads, with up to {1} waiting, {2} per IP address, and {3} per username", threads,
+                config.getLoginQueueSize(), config.getLoginsPerIP(), config.getLoginsPerUsername() ) );
+    }
+
+
+    /**
+     * Stops verifying passwords; any logins still waiting are told to try again.
+     */
+    public void shutdown() {
+
+        ThreadPoolExecutor pool;
+        synchronized( this ) {
+            pool = executor;
+            executor = null;
+        }
+        if( pool != null )
+            pool.shutdownNow();
+    }
+
+
+    /**
+     * Verifies the given password for the given user, on behalf of a client at the given IP address.  The calling thread waits for the result,
+     * though no longer than the configured queue timeout for the verification to get a thread.
+     *
+     * @param _user the user logging in
+     * @param _password the password to check (in plaintext)
+     * @param _ip the IP address of the client logging in
+     * @return the outcome of the verification
+     */
+    public Outcome verify( final User _user, final String _password, final String _ip ) {
+
+        ServerConfig config = ServerInit.getConfig();
+        String ip = (_ip == null) ? "unknown" : _ip;
+        String username = _user.getUsername();
+
+        if( !byIP.acquire( ip, config.getLoginsPerIP() ) ) {
+            throttled.incrementAndGet();
+            LOG.info( msg( "Too many logins in progress from {0}; login for {1} refused", ip, username ) );
+            return Outcome.BUSY;
+        }
+        try {
+            if( !byUsername.acquire( username, config.getLoginsPerUsername() ) ) {
+                throttled.incrementAndGet();
+                LOG.info( msg( "Too many logins in progress for {0}; login from {1} refused", username, ip ) );
+                return Outcome.BUSY;
+            }
+            try {
+                return run( _user, _password, config.getLoginQueueTimeout() );
+            }
+            finally {
+                byUsername.release( username );
+            }
+        }
+        finally {
+            byIP.release( ip );
+        }
+    }
+
+
+    /**
+     * Returns the given password hashed and salted at the current cost, ready to be stored in a user.
+     *
+     * @param _password the password to hash (in plaintext)
+     * @return the hashed and salted password
+     */
+    public String hash( final String _password ) {
+        return BCrypt.hashpw( _password, BCrypt.gensalt( cost ) );
+    }
+
+
+    /**
+     * Returns the statistics for the password verifier, as a JSON object.
+     *
+     * @return the statistics
+     */
+    public JsonObject getStats() {
+
+        ThreadPoolExecutor pool = executor;
+        JsonObject result = new JsonObject();
+        result.addProperty( "depth",      (pool == null) ? 0 : pool.getQueue().size() );
+        result.addProperty( "active",     (pool == null) ? 0 : pool.getActiveCount()  );
+        result.addProperty( "matched",    matched.get()                               );
+        result.addProperty( "mismatched", mismatched.get()                            );
+        result.addProperty( "throttled",  throttled.get()                             );
+        result.addProperty( "rejected",   rejected.get()                              );
+        result.addProperty( "timedOut",   timedOut.get()                              );
+        result.addProperty( "maxMs",      maxNanos / 1000000.0                        );
+        result.addProperty( "cost",       cost                                        );
+        result.addProperty( "rehashed",   rehashed.get()                              );
+        return result;
+    }
+
+
+    private Outcome run( final User _user, final String _password, final int _timeout ) {
+
+        // queue up the verification, unless the queue is full; whichever of the verifying thread and this one claims it first decides whether it
+        // runs or is abandoned...
+        long start = System.nanoTime();
+        AtomicBoolean claimed = new AtomicBoolean();
+        Future<Boolean> future;
+        ThreadPoolExecutor pool = executor;
+        try {
+            if( pool == null )
+                throw new RejectedExecutionException( "Password verifier isn't running" );
+            future = pool.submit( () -> claimed.compareAndSet( false, true ) && check( _user, _password ) );
+        }
+        catch( RejectedExecutionException e ) {
+            rejected.incrementAndGet();
+            LOG.info( msg( "Password verification queue full; login for {0} refused", _user.getUsername() ) );
+            return Outcome.BUSY;
+        }
+
+        // then wait for it to get a thread (and finish); once it's running, we wait for it to finish regardless of the timeout...
+        try {
+            boolean ok;
+            try {
+                ok = future.get( _timeout, TimeUnit.MILLISECONDS );
+            }
+            catch( TimeoutException e ) {
+                if( claimed.compareAndSet( false, true ) ) {
+                    future.cancel( false );
+                    timedOut.incrementAndGet();
+                    LOG.info( msg( "Password verification waited too long; login for {0} refused", _user.getUsername() ) );
+                    return Outcome.BUSY;
+                }
+                ok = future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            if( elapsed > maxNanos )
+                maxNanos = elapsed;
+            (ok ? matched : mismatched).incrementAndGet();
+            return ok ? Outcome.MATCH : Outcome.MISMATCH;
+        }
+        catch( InterruptedException e ) {
+            future.cancel( false );
+            Thread.currentThread().interrupt();
+            return Outcome.BUSY;
+        }
+        catch( ExecutionException e ) {
+
+            // bcrypt throws on a malformed stored hash, which can never match...
+            mismatched.incrementAndGet();
+            LOG.error( msg( "Problem verifying password for {0}: {1}", _user.getUsername(), e.getCause().getMessage() ) );
+            return Outcome.MISMATCH;
+        }
+    }
+
+
+    /*
+     * Returns true if the given password is the given user's; if it is, and it's stored at a lower cost than ours, rehashes it at ours.
+     */
+    private boolean check( final User _user, final String _password ) {
+
+        if( !_user.passwordOK( _password ) )
+            return false;
+
+        int current = cost;
+        int stored = getCost( _user.getPasswordHashedAndSalted() );
+        if( stored < current ) {
+            try {
+                _user.setPasswordHashedAndSalted( BCrypt.hashpw( _password, BCrypt.gensalt( current ) ) );
+                _user.updateIfDirty();
+                rehashed.incrementAndGet();
+                LOG.info( msg( "Rehashed password for {0} from cost {1} to {2}", _user.getUsername(), stored, current ) );
+            }
+            catch( StorageException | RuntimeException e ) {
+                LOG.error( msg( "Problem rehashing password for {0}: {1}", _user.getUsername(), e.getMessage() ) );
+            }
+        }
+        return true;
+    }
+
+
+    /*
+     * Returns the cost recorded in the given bcrypt hash (which looks like "$2a$10$..."), or -1 if it doesn't have one.
+     */
+    private static int getCost( final String _hash ) {
+
+        if( (_hash == null) || (_hash.length() < 7) || (_hash.charAt( 0 ) != '$') )
+            return -1;
+        int end = _hash.indexOf( '$', 1 );
+        if( (end < 0) || (_hash.length() < end + 4) || (_hash.charAt( end + 3 ) != '$') )
+            return -1;
+        try {
+            return Integer.parseInt( _hash.substring( end + 1, end + 3 ) );
+        }
+        catch( NumberFormatException e ) {
+            return -1;
+        }
+    }
+
+
+    /*
+     * Returns the highest bcrypt cost (but at least the given minimum) at which hashing takes no more than the given target time on this machine.
+     * Each step up in cost doubles the time, so we just time the minimum cost (the median of several runs) and work up from there.
+     */
+    private int benchmark( final int _targetMs, final int _minCost ) {
+
+        int result = Math.min( MAX_COST, Math.max( 4, _minCost ) );
+        time( result );  // the first time around includes class loading and JIT warmup...
+        double[] samples = new double[BENCHMARK_SAMPLES];
+        for( int i = 0; i < samples.length; i++ )
+            samples[i] = time( result );
+        Arrays.sort( samples );
+        double ms = samples[samples.length / 2];
+        while( (result < MAX_COST) && (ms * 2 <= _targetMs) ) {
+            result++;
+            ms *= 2;
+        }
+        LOG.info( msg( "Hashing passwords at bcrypt cost {0}, taking about {1} ms each (target is {2} ms)", result, Math.round( ms ), _targetMs ) );
+        return result;
+    }
+
+
+    private static double time( final int _cost ) {
+
+        long start = System.nanoTime();
+        BCrypt.hashpw( "benchmark", BCrypt.gensalt( _cost ) );
+        return (System.nanoTime() - start) / 1000000.0;
+    }
+
+
+    /*
+     * Counts the verifications in progress for each key (an IP address or a username), up to a limit.
+     */
+    private static class Limiter {
+
+        private final Map<String,Integer> counts = Maps.newHashMap();
+
+
+        private synchronized boolean acquire( final String _key, final int _limit ) {
+
+            int count = counts.getOrDefault( _key, 0 );
+            if( count >= _limit )
+                return false;
+            counts.put( _key, count + 1 );
+            return true;
+        }
+
+
+        private synchronized void release( final String _key ) {
+
+            int count = counts.getOrDefault( _key, 1 ) - 1;
+            if( count <= 0 )
+                counts.remove( _key );
+            else
+                counts.put( _key, count );
+        }
+    }
+}
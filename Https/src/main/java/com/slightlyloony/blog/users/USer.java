@@ -24,6 +24,10 @@ public class User extends BlogObjectObject {
 
     private static final Logger LOG = LogManager.getLogger();
 
+    // Gson instances are threadsafe and expensive to build, so we build ours just once...
+    private static final Gson READER = new GsonBuilder().registerTypeAdapter( BlogUserRights.class, new BlogUserRights.Deserializer() ).create();
+    private static final Gson WRITER = new GsonBuilder().registerTypeAdapter( BlogUserRights.class, new BlogUserRights.Serializer()   ).create();
+
     private String username;
     private String passwordHashedAndSalted;
     private String blog;
@@ -446,12 +450,17 @@ public class User extends BlogObjectObject {
     }
 
 
+    /**
+     * If this user has changed, queues it to be written to storage (see {@link UserWriteBehind}).
+     *
+     * @throws StorageException on any problem
+     */
     public void updateIfDirty() throws StorageException {
 
         if( !dirty )
             return;
 
-        BlogServer.STORAGE.update( this );
+        UserWriteBehind.INSTANCE.schedule( this );
         dirty = false;
     }
 
@@ -459,11 +468,18 @@ public class User extends BlogObjectObject {
     public static User fromJSON( final String _json, final BlogID _id, final BlogObjectType _type,
                                  final BlogObjectAccessRequirements _accessRequirements ) throws StorageException {
         try {
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter( BlogUserRights.class, new BlogUserRights.Deserializer()                   );
-            gsonBuilder.registerTypeAdapter( User.class,           new Deserializer( _id, _type, _accessRequirements ) );
-            Gson gson = gsonBuilder.create();
-            return gson.fromJson( _json, User.class );
+            User result = READER.fromJson( _json, User.class );
+
+            // empty (or blank) JSON parses to nothing at all...
+            if( result == null )
+                throw new StorageException( "Problem deserializing User from JSON: empty object " + _id );
+
+            // then we set the fields from our file name...
+            result.type = _type;
+            result.blogID = _id;
+            result.accessRequirements = _accessRequirements;
+
+            return result;
         }
         catch( JsonSyntaxException e ) {
             throw new StorageException( "Problem deserializing User from JSON", e );
@@ -473,63 +489,13 @@ public class User extends BlogObjectObject {
 
     public String toJSON() throws StorageException {
         try {
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter( User.class, new Serializer() );
-            Gson gson = gsonBuilder.create();
-            return gson.toJson( this, getClass() );
+            JsonObject obj = (JsonObject) WRITER.toJsonTree( this );
+            stripFields( obj );
+            obj.remove( "dirty" );
+            return WRITER.toJson( obj );
         }
         catch( Exception e ) {
             throw new StorageException( "Problem serializing User to JSON", e );
         }
     }
-
-
-    private static class Deserializer implements JsonDeserializer<User> {
-
-        private final BlogID id;
-        private final BlogObjectType type;
-        private final BlogObjectAccessRequirements accessRequirements;
-
-
-        public Deserializer( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements ) {
-            id = _id;
-            type = _type;
-            accessRequirements = _accessRequirements;
-        }
-
-        @Override
-        public User deserialize( final JsonElement _jsonElement, final Type _type, final JsonDeserializationContext _jsonDeserializationContext )
-                throws JsonParseException {
-
-            // first we deserialize it...
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter( BlogUserRights.class, new BlogUserRights.Deserializer()                   );
-            Gson gson = gsonBuilder.create();
-            User result = gson.fromJson( _jsonElement, User.class );
-
-            // then we set the fields from our file name...
-            result.type = type;
-            result.blogID = id;
-            result.accessRequirements = accessRequirements;
-
-            return result;
-        }
-    }
-
-
-    private static class Serializer implements JsonSerializer<User> {
-
-        @Override
-        public JsonElement serialize( final User _user, final Type _type, final JsonSerializationContext _jsonSerializationContext ) {
-
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter( BlogUserRights.class, new BlogUserRights.Serializer()                   );
-            Gson gson = gsonBuilder.create();
-            JsonObject obj = (JsonObject) gson.toJsonTree( _user );
-
-            _user.stripFields( obj );
-            obj.remove( "dirty" );
-            return obj;
-        }
-    }
 }
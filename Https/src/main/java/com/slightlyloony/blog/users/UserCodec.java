@@ -8,6 +8,7 @@ import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
 import com.slightlyloony.blog.storage.StorageCodec;
 import com.slightlyloony.blog.storage.StorageCodecBase;
 import com.slightlyloony.blog.storage.StorageException;
+import com.slightlyloony.blog.util.S;
 
 import java.io.File;
 
@@ -31,7 +32,7 @@ public class UserCodec extends StorageCodecBase implements StorageCodec {
     public BlogObject read( final File _file, final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
                             final ContentCompressionState _compressionState ) throws StorageException {
 
-        return User.fromJSON( getFileAsString( _file ), _id, _type, _accessRequirements );
+        return decode( getFileAsBytes( _file ), _id, _type, _accessRequirements, _compressionState );
     }
 
 
@@ -46,13 +47,8 @@ public class UserCodec extends StorageCodecBase implements StorageCodec {
     @Override
     public BlogObject create( final BlogObject _object, final File _file ) throws StorageException {
 
-        if( _object instanceof User ) {
-            User user = (User) _object;
-            writeStringToFile( user.toJSON(), _file );
-            return _object;
-        }
-        else
-            throw new StorageException( "Expected User object, got: " + _object.getClass().getSimpleName() );
+        writeBytesToFile( encode( _object ), _file );
+        return _object;
     }
 
 
@@ -67,4 +63,42 @@ public class UserCodec extends StorageCodecBase implements StorageCodec {
     public BlogObject update( final BlogObject _object, final File _file ) throws StorageException {
         return create( _object, _file );
     }
+
+
+    /**
+     * Decodes a blog object from the given bytes, as produced by {@link #encode(BlogObject)}.
+     *
+     * @param _bytes              the encoded blog object
+     * @param _id                 the blog ID for the blog object being read
+     * @param _type               the blog object type
+     * @param _accessRequirements the blog object's access requirements
+     * @param _compressionState   the blog object's compression state
+     * @return the blog object decoded
+     * @throws StorageException on any problem
+     */
+    @Override
+    public BlogObject decode( final byte[] _bytes, final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements,
+                              final ContentCompressionState _compressionState ) throws StorageException {
+
+        return User.fromJSON( S.fromUTF8( _bytes ), _id, _type, _accessRequirements );
+    }
+
+
+    /**
+     * Encodes the given blog object into the bytes that persist it.
+     *
+     * @param _object the blog object to encode
+     * @return the encoded blog object
+     * @throws StorageException on any problem
+     */
+    @Override
+    public byte[] encode( final BlogObject _object ) throws StorageException {
+
+        if( _object instanceof User ) {
+            User user = (User) _object;
+            return S.toUTF8( user.toJSON() );
+        }
+        else
+            throw new StorageException( "Expected User object, got: " + _object.getClass().getSimpleName() );
+    }
 }
@@ -0,0 +1,195 @@
+package com.slightlyloony.blog.users;
+
+import com.google.gson.JsonObject;
+import com.slightlyloony.blog.BlogServer;
+import com.slightlyloony.blog.ServerInit;
+import com.slightlyloony.blog.objects.BlogID;
+import com.slightlyloony.blog.objects.BlogObject;
+import com.slightlyloony.blog.storage.StorageException;
+import com.slightlyloony.common.ExecutionService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * Lazily writes changed users and users indexes to persistent storage.  Request threads queue an object with {@link #schedule(BlogObject)} and
+ * carry on; a background task writes everything queued every few seconds (see {@link com.slightlyloony.blog.config.ServerConfig#getUserWriteDelay()}),
+ * and once more at shutdown.  An object queued several times before it's written is written just once, with its latest state - so issuing a burst of
+ * "remember me" tokens rewrites the users index once rather than once per login.
+ * <p>
+ * Until an object has been written, {@link #getPending(BlogID)} returns it, so that readers never see the older version still in storage.  If a
+ * write fails, the object stays queued and is retried on the next flush (unless it has been queued again in the meantime).
+ * <p>
+ * This class is a singleton.  It is threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class UserWriteBehind {
+
+    public static final UserWriteBehind INSTANCE = new UserWriteBehind();
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private final Map<BlogID,Pending> pending;
+    private final AtomicLong queued;
+    private final AtomicLong written;
+    private final AtomicLong failed;
+    private volatile int maxDepth;
+    private volatile long flushes;
+    private volatile long lastFlushNanos;
+    private volatile long maxFlushNanos;
+    private volatile long totalFlushNanos;
+    private ScheduledFuture<?> flusher;
+
+
+    private UserWriteBehind() {
+        pending = new ConcurrentHashMap<>();
+        queued = new AtomicLong();
+        written = new AtomicLong();
+        failed = new AtomicLong();
+    }
+
+
+    /**
+     * Starts the background task that periodically flushes queued objects to storage.
+     */
+    public synchronized void init() {
+
+        if( flusher != null )
+            return;
+
+        int delay = ServerInit.getConfig().getUserWriteDelay();
+        flusher = ExecutionService.INSTANCE.scheduleWithFixedDelay( this::flush, delay, delay, TimeUnit.SECONDS );
+        LOG.info( msg( "Writing changed users every {0} seconds", delay ) );
+    }
+
+
+    /**
+     * Queues the given object (a user or a users index) to be written to storage.  If it's already queued, it will still be written just once.
+     *
+     * @param _object the object to write
+     */
+    public void schedule( final BlogObject _object ) {
+
+        pending.put( _object.getBlogID(), new Pending( _object ) );
+        queued.incrementAndGet();
+
+        int depth = pending.size();
+        if( depth > maxDepth )
+            maxDepth = depth;
+    }
+
+
+    /**
+     * Returns the queued object with the given ID, or null if there is none.
+     *
+     * @param _id the blog ID of the object
+     * @return the queued object, or null if there is none
+     */
+    public BlogObject getPending( final BlogID _id ) {
+        Pending queuedObject = pending.get( _id );
+        return (queuedObject == null) ? null : queuedObject.object;
+    }
+
+
+    /**
+     * Writes every queued object to storage.  Invoked periodically by the background task, and at shutdown.
+     */
+    public synchronized void flush() {
+
+        if( pending.isEmpty() )
+            return;
+
+        long start = System.nanoTime();
+        int count = 0;
+        for( BlogID id : pending.keySet() ) {
+
+            Pending queuedObject = pending.get( id );
+            if( queuedObject == null )
+                continue;
+
+            try {
+                // the object's own lock keeps a users index from changing while it's being serialized...
+                synchronized( queuedObject.object ) {
+                    BlogServer.STORAGE.update( queuedObject.object );
+                }
+
+                // if it was queued again while we were writing it (even as the same instance), leave it queued...
+                pending.remove( id, queuedObject );
+                written.incrementAndGet();
+                count++;
+            }
+            catch( StorageException | RuntimeException e ) {
+                failed.incrementAndGet();
+                LOG.error( msg( "Problem writing user object {0}; will retry: {1}", id, e.getMessage() ) );
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        lastFlushNanos = elapsed;
+        maxFlushNanos = Math.max( maxFlushNanos, elapsed );
+        totalFlushNanos += elapsed;
+        flushes++;
+        LOG.debug( msg( "Wrote {0} user objects in {1} ms", count, elapsed / 1000000.0 ) );
+    }
+
+
+    /**
+     * Stops the background task and writes everything still queued.
+     */
+    public void shutdown() {
+
+        synchronized( this ) {
+            if( flusher != null )
+                flusher.cancel( false );
+            flusher = null;
+        }
+        flush();
+
+        if( !pending.isEmpty() )
+            LOG.error( msg( "{0} user objects could not be written at shutdown", pending.size() ) );
+    }
+
+
+    /**
+     * Returns the statistics for this write-behind queue, as a JSON object.
+     *
+     * @return the statistics
+     */
+    public JsonObject getStats() {
+
+        JsonObject result = new JsonObject();
+        result.addProperty( "depth",           pending.size()                                         );
+        result.addProperty( "maxDepth",        maxDepth                                               );
+        result.addProperty( "queued",          queued.get()                                           );
+        result.addProperty( "written",         written.get()                                          );
+        result.addProperty( "failed",          failed.get()                                           );
+        result.addProperty( "flushes",         flushes                                                );
+        result.addProperty( "lastFlushMs",     lastFlushNanos / 1000000.0                             );
+        result.addProperty( "maxFlushMs",      maxFlushNanos / 1000000.0                              );
+        result.addProperty( "averageFlushMs",  (flushes == 0) ? 0 : totalFlushNanos / 1000000.0 / flushes );
+        return result;
+    }
+
+
+    /*
+     * One queuing of an object.  Each invocation of schedule() makes a new instance, so that a flush can tell whether the object it just wrote has
+     * been queued again since - users are mutable, so the object itself is usually the same instance.
+     */
+    private static class Pending {
+
+        private final BlogObject object;
+
+
+        private Pending( final BlogObject _object ) {
+            object = _object;
+        }
+    }
+}
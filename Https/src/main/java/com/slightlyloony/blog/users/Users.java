@@ -3,27 +3,30 @@ package com.slightlyloony.blog.users;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.slightlyloony.blog.BlogServer;
 import com.slightlyloony.blog.config.BlogConfig;
 import com.slightlyloony.blog.handlers.HandlerIllegalArgumentException;
 import com.slightlyloony.blog.objects.*;
 import com.slightlyloony.blog.security.BlogObjectAccessRequirements;
-import com.slightlyloony.blog.storage.BlogObjectIterator;
-import com.slightlyloony.blog.storage.BlogObjectIterator.BlogObjectInfo;
 import com.slightlyloony.blog.storage.StorageException;
+import com.slightlyloony.blog.util.Constants;
 import com.slightlyloony.blog.util.ID;
+import com.slightlyloony.blog.util.MemorySizer;
 import com.slightlyloony.blog.util.Timer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.mindrot.jbcrypt.BCrypt;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
 
 import static com.slightlyloony.blog.security.BlogAccessRight.*;
-import static com.slightlyloony.blog.util.S.fromUTF8;
 import static com.slightlyloony.blog.util.S.toUTF8;
 import static com.slightlyloony.common.logging.LU.msg;
 
@@ -31,6 +34,10 @@ import static com.slightlyloony.common.logging.LU.msg;
  * Index for the users of a blog.  There are actually three indexes: two forward indexes (one by username, the other by user cookie value for
  * persistent logins) and one reverse (needed in order to maintain the index).  If this class is instantiated for a blog with NO users, a default
  * manager user is created automagically.
+ * <p>
+ * The indexes are held in an immutable {@link Snapshot}, which is replaced as a whole (copy-on-write) whenever a user is indexed.  Lookups, which
+ * happen on every request carrying a persistent login cookie, just read the current snapshot: they never lock, and never wait on an update.  Updates
+ * (logins and user changes) are rare by comparison, and are serialized.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
@@ -38,38 +45,42 @@ public class Users extends BlogObjectObject {
 
     private static final Logger LOG = LogManager.getLogger();
 
-    /*
-     * These three structures use byte[] instances to hold the UTF-8 encoded string values that would otherwise be in String instances.  By encoding
-     * them into byte arrays we (roughly) cut the memory consumed by 50%.
-     */
-    private final Map<Bytes,Bytes> byUsername;
-    private final Map<Bytes,Bytes> byCookie;
-    private final Map<Bytes,Keys> reverse;
+    // Gson instances are threadsafe and expensive to build, so we build ours just once...
+    private static final Gson GSON = new GsonBuilder().registerTypeAdapter( Users.class, new Adapter() ).create();
+
+    private volatile Snapshot snapshot;
 
 
     private Users( final BlogID _id ) {
         super( _id, BlogObjectType.USERINDEX, null );
-
-        byUsername = Maps.newHashMap();
-        byCookie = Maps.newHashMap();
-        reverse = Maps.newHashMap();
+        snapshot = Snapshot.EMPTY;
     }
 
 
     private Users() {
         super();
-        byUsername = Maps.newHashMap();
-        byCookie = Maps.newHashMap();
-        reverse = Maps.newHashMap();
+        snapshot = Snapshot.EMPTY;
     }
 
 
     @Override
     public int size() {
-        int result = baseSize();
-        result += reverse.size() * (40 + 10) + 1000;
-        result += byCookie.size() * (20 + 10) + 1000;
-        result += byUsername.size() * (20 + 10) + 1000;
+        return baseSize() + (int) MemorySizer.sizeOf( snapshot );
+    }
+
+
+    /**
+     * Returns statistics for this index, as a JSON object: the number of users, and the bytes of memory the index occupies.
+     *
+     * @return the statistics
+     */
+    public JsonObject getStats() {
+
+        Snapshot current = snapshot;
+        JsonObject result = new JsonObject();
+        result.addProperty( "users",     current.count                    );
+        result.addProperty( "keyBytes",  current.keys.length              );
+        result.addProperty( "heapBytes", MemorySizer.sizeOf( current )    );
         return result;
     }
 
@@ -110,84 +121,100 @@ public class Users extends BlogObjectObject {
         if( (_id == null) || (_user == null) )
             throw new HandlerIllegalArgumentException( "Blog ID or user missing" );
 
-        Bytes blogID      = new Bytes( toUTF8( _id.getID() ) );
-        Bytes username    = new Bytes( toUTF8( _user.getUsername() ) );
-        Bytes cookieValue = new Bytes( toUTF8( _user.getCookie() ) );
-
-        // first we get the keys to any existing entries for this user, as both the username and session cookie values might have changed...
-        // we use the blog ID (which is invariant for any given user) to look up the keys for the other two maps...
-        Keys keys = reverse.get( blogID );
-
-        // if we got no entry for the keys, then we've never indexed this user before - just add him...
-        if( keys == null ) {
-            keys = new Keys( username, cookieValue );
-            reverse.put( blogID, keys );
-            if( keys.username != null )
-                byUsername.put( keys.username, blogID );
-            if( keys.cookieValue != null )
-                byCookie.put( keys.cookieValue, blogID );
-        }
+        long id = _id.asLong();
+        byte[] username = toUTF8( _user.getUsername() );
+        byte[] cookie = toUTF8( _user.getCookie() );
 
-        // if both keys are unchanged, we've got nothing to do here...
-        if( username.equals( keys.username ) && keys.cookieValue.equals( cookieValue ) )
+        // if we've indexed this user before, and both keys are unchanged, we've got nothing to do here...
+        Snapshot current = snapshot;
+        int entry = current.findID( id );
+        if( (entry >= 0) && current.matches( current.usernames[entry], username ) && current.matches( current.cookies[entry], cookie ) )
             return;
 
-        // if the username has changed, update it...
-        if( keys.username != null )
-            blogID = byUsername.remove( keys.username );  // this updates blogID to the original instance stored...
-        keys.username = username;
-        byUsername.put( username, blogID );
-
-        // if the cookie value has changed, update it...
-        if( keys.cookieValue != null )
-            blogID = byCookie.remove( keys.cookieValue );  // this updates blogID to the original instance stored...
-        keys.cookieValue = cookieValue;
-        byCookie.put( cookieValue, blogID );
+        snapshot = current.with( entry, id, username, cookie );
     }
 
 
-    public synchronized User getUserFromUsername( final String _username ) throws StorageException {
+    public User getUserFromUsername( final String _username ) throws StorageException {
 
         if( _username == null )
             throw new HandlerIllegalArgumentException( "Missing username" );
 
-        return readUser( byUsername.get( new Bytes( toUTF8( _username ) ) ) );
+        Snapshot current = snapshot;
+        return readUser( current, current.find( current.byUsername, current.usernames, toUTF8( _username ) ) );
     }
 
 
-    public synchronized User getUserFromCookie( final String _cookieValue ) throws StorageException {
+    public User getUserFromCookie( final String _cookieValue ) throws StorageException {
 
         if( _cookieValue == null )
             throw new HandlerIllegalArgumentException( "Missing cookie value" );
 
-        return readUser( byCookie.get( new Bytes( toUTF8( _cookieValue ) ) ) );
+        Snapshot current = snapshot;
+        return readUser( current, current.find( current.byCookie, current.cookies, toUTF8( _cookieValue ) ) );
     }
 
 
     /**
-     * Returns a list of all users in the index...
+     * Returns the number of users in the index.
      *
-     * @return a list of all users in the index
+     * @return the number of users in the index
      */
-    public synchronized List<User> getUsers() throws StorageException {
+    public int getUserCount() {
+        return snapshot.count;
+    }
+
 
-        List<User> result = Lists.newArrayList();
-        for( Bytes userID : byUsername.values() )
-            result.add( readUser( userID ) );
+    /**
+     * Returns up to the given number of users, starting at the given position in the index.  Users are only ever added to the index or replaced
+     * in place, so a position always refers to the same user, and the users can be read a page at a time while the index changes.
+     * <p>
+     * This is meant for walking through all the users (as when listing them), so it leaves the user cache alone: users already in the cache are
+     * taken from it, but the others are read from storage without being cached, so that a walk doesn't push out the users that are active.
+     *
+     * @param _from the position of the first user to return
+     * @param _count the maximum number of users to return
+     * @return the users
+     * @throws StorageException on any problem reading a user
+     */
+    public List<User> getUsers( final int _from, final int _count ) throws StorageException {
+
+        Snapshot current = snapshot;
+        int end = Math.min( current.count, _from + _count );
+        List<User> result = Lists.newArrayListWithCapacity( Math.max( 0, end - _from ) );
+        for( int entry = Math.max( 0, _from ); entry < end; entry++ )
+            result.add( readUser( current, entry, false ) );
         return result;
     }
 
 
-    private User readUser( final Bytes _userIDBytes ) throws StorageException {
+    private User readUser( final Snapshot _snapshot, final int _entry ) throws StorageException {
+        return readUser( _snapshot, _entry, true );
+    }
+
+
+    private User readUser( final Snapshot _snapshot, final int _entry, final boolean _isCacheable ) throws StorageException {
 
-        if( _userIDBytes == null )
+        if( _entry < 0 )
             return null;
 
-        BlogID userID = BlogID.create( fromUTF8( _userIDBytes.bytes ) );
+        BlogID userID = BlogID.create( ID.encode( _snapshot.ids[_entry] ) );
         if( userID == null )
             return null;
 
-        return (User) BlogServer.STORAGE.read( userID, BlogObjectType.USERDATA, null, ContentCompressionState.UNCOMPRESSED, true );
+        // if this user has changes that haven't been written yet, the queued instance is the current one...
+        BlogObject queued = UserWriteBehind.INSTANCE.getPending( userID );
+        if( queued != null )
+            return (User) queued;
+
+        // if we're not to disturb the cache, still use it if the user is already there...
+        if( !_isCacheable ) {
+            BlogObject cached = BlogServer.STORAGE.readCached( userID, BlogObjectType.USERDATA );
+            if( cached != null )
+                return (User) cached;
+        }
+
+        return (User) BlogServer.STORAGE.read( userID, BlogObjectType.USERDATA, null, ContentCompressionState.UNCOMPRESSED, _isCacheable );
     }
 
 
@@ -199,7 +226,7 @@ public class Users extends BlogObjectObject {
     private static void makeDefaultUserFile( final String _blogName ) throws StorageException {
 
         // make our synthetic user...
-        User user = User.create( "manager", _blogName, BCrypt.hashpw( "blog", BCrypt.gensalt() ) );
+        User user = User.create( "manager", _blogName, PasswordVerifier.INSTANCE.hash( "blog" ) );
         user.addRight( MANAGER );
         user.addRight( AUTHOR );
         user.addRight( ADULT );
@@ -210,7 +237,7 @@ public class Users extends BlogObjectObject {
 
     /**
      * This method is invoked when there's a failure (for whatever reason) to read the users index file.  It will initialize the users instance by
-     * iterating over <i>all</i> the files in the blog (potentially a lengthy process).  Once that's complete, it will serialize the instance back
+     * scanning <i>all</i> the objects in the storage backend (potentially a lengthy process) for user data.  Once that's complete, it will serialize the instance back
      * to the users index file, to recreate it.
      *
      * @return the newly created users instance
@@ -218,109 +245,289 @@ public class Users extends BlogObjectObject {
     private static Users initializeFromUserFiles( final BlogConfig _blogConfig ) throws StorageException {
 
         Timer t = new Timer();
-        LOG.info( "Creating Users instance the hard way: reading all blog files" );
+        LOG.info( "Creating Users instance the hard way: reading all user data objects" );
 
         // ensure that we have an ID...
         BlogID oldUsersID = BlogID.create( _blogConfig.getUsers() );
         BlogID usersID = (oldUsersID == null) ? BlogIDs.INSTANCE.getNextBlogID() : oldUsersID;
 
-        Users result = new Users( usersID );
+        Users index = new Users( usersID );
 
-        // iterate over all the blog object files...
-        BlogObjectIterator it = new BlogObjectIterator();
-        while( it.hasNext() ) {
+        // read all the user data objects in parallel (from whichever storage backend we're using), gathering the ones that belong to this blog,
+        // then index them all at once...
+        Map<BlogID,User> users = new ConcurrentHashMap<>();
+        BlogServer.STORAGE.getStorage().objects().parallel()
+                .filter( _object -> _object.type == BlogObjectType.USERDATA )
+                .forEach( _object -> readUser( users, _object.id, _blogConfig ) );
 
-            BlogObjectInfo info = it.next();
-
-            // if we don't have a user data file, just skip it...
-            if( !info.file.getName().endsWith( ".user" ) )
-                continue;
-
-            // read the user data in and instantiate it...
-            User user;
-            try {
-                user = (User) BlogServer.STORAGE.read( info.id, BlogObjectType.USERDATA, null, ContentCompressionState.UNCOMPRESSED, true );
-            }
-            catch( StorageException e ) {
-                LOG.error( "Can't read user: ID " + info.id );
-                continue;
-            }
-
-            // if this user doesn't belong to this blog, skip it...
-            if( !user.getBlog().equals( _blogConfig.getDomain() ))
-                continue;
-
-            // index this user...
-            result.indexUser( info.id, user );
-        }
+        Snapshot.Builder builder = new Snapshot.Builder( users.size() );
+        for( Map.Entry<BlogID,User> entry : users.entrySet() )
+            builder.add( entry.getKey().asLong(), toUTF8( entry.getValue().getUsername() ), toUTF8( entry.getValue().getCookie() ) );
+        index.snapshot = builder.build();
 
         // now write the users out to disk...
-        if( oldUsersID == null )
-            result = (Users) BlogServer.STORAGE.create( result );
-        else
-            result = result.update();
+        Users result = (oldUsersID == null) ? (Users) BlogServer.STORAGE.create( index ) : index.update();
 
         _blogConfig.setUsers( result.getBlogID().getID() );
         _blogConfig.serialize();
 
         t.mark();
-        LOG.info( msg( "Completed creating Users instance by reading file system in {0}", t.toString() ) );
+        LOG.info( msg( "Completed creating Users instance by reading user data in {0}", t.toString() ) );
 
         return result;
     }
 
 
+    /*
+     * Reads the user data object with the given ID and, if the user belongs to the given blog, adds it to the given map.
+     */
+    private static void readUser( final Map<BlogID,User> _users, final BlogID _id, final BlogConfig _blogConfig ) {
+
+        try {
+            User user = (User) BlogServer.STORAGE.read( _id, BlogObjectType.USERDATA, null, ContentCompressionState.UNCOMPRESSED, true );
+
+            // if this user doesn't belong to this blog, skip it...
+            if( !user.getBlog().equals( _blogConfig.getDomain() ) )
+                return;
+
+            _users.put( _id, user );
+        }
+        catch( StorageException e ) {
+            LOG.error( "Can't read user: ID " + _id );
+        }
+    }
+
+
     public Users update() throws StorageException {
         return (Users) BlogServer.STORAGE.update( this );
     }
 
 
-    private static class Keys {
-        private Bytes username;
-        private Bytes cookieValue;
+    /**
+     * An immutable snapshot of the three indexes.  The usernames and cookie values of all the users are packed, UTF-8 encoded, into a single byte
+     * array, which each entry refers into with an offset and length (packed into a long); blog IDs are held as their long values.  Each index is an
+     * open addressing hash table (linear probing, never more than half full) holding entry numbers plus one, with zero marking an empty slot.  So
+     * the whole index is eight arrays, however many users there are, and a lookup allocates nothing beyond the encoded key.
+     */
+    private static final class Snapshot {
+
+        private static final long NONE = -1;  // the key reference for a missing key (a user without a cookie)...
+        private static final Snapshot EMPTY = new Builder( 0 ).build();
+
+        private final int count;
+        private final long[] ids;
+        private final long[] usernames;  // (offset << 32) | length, into keys...
+        private final long[] cookies;    // (offset << 32) | length, into keys, or NONE...
+        private final byte[] keys;
+        private final int[] byID;
+        private final int[] byUsername;
+        private final int[] byCookie;
+
+
+        private Snapshot( final int _count, final long[] _ids, final long[] _usernames, final long[] _cookies, final byte[] _keys ) {
+
+            count = _count;
+            ids = _ids;
+            usernames = _usernames;
+            cookies = _cookies;
+            keys = _keys;
+
+            int capacity = 16;
+            while( capacity < 2 * count )
+                capacity <<= 1;
+            byID = new int[capacity];
+            byUsername = new int[capacity];
+            byCookie = new int[capacity];
+
+            // later entries win, just as later puts into a map would...
+            for( int entry = 0; entry < count; entry++ ) {
+                byID[slot( byID, hash( ids[entry] ), _other -> false )] = entry + 1;  // the builder made the IDs unique...
+                put( byUsername, usernames, entry );
+                put( byCookie, cookies, entry );
+            }
+        }
 
 
-        public Keys( final Bytes _username, final Bytes _cookieValue ) {
-            username = _username;
-            cookieValue = _cookieValue;
+        /*
+         * Returns the entry number for the given blog ID, or -1 if there isn't one.
+         */
+        private int findID( final long _id ) {
+            return byID[slot( byID, hash( _id ), _entry -> ids[_entry] == _id )] - 1;
         }
-    }
 
 
-    /**
-     * Provides a byte array with a real equals method.
-     */
-    private static class Bytes {
+        /*
+         * Returns the entry number for the given key in the given table (whose keys are given by the given references), or -1 if there isn't one.
+         */
+        private int find( final int[] _table, final long[] _refs, final byte[] _key ) {
+
+            if( _key == null )
+                return -1;
+            return _table[slot( _table, hash( _key, 0, _key.length ), _entry -> matches( _refs[_entry], _key ) )] - 1;
+        }
 
-        private byte[] bytes;
 
-        private Bytes( final byte[] _bytes ) {
-            bytes = _bytes;
+        /*
+         * Returns a new snapshot with the given entry (or, if it's negative, a new entry) set to the given ID and keys.
+         */
+        private Snapshot with( final int _entry, final long _id, final byte[] _username, final byte[] _cookie ) {
+
+            Builder builder = new Builder( count + 1 );
+            for( int entry = 0; entry < count; entry++ ) {
+                if( entry == _entry )
+                    builder.add( _id, _username, _cookie );
+                else
+                    builder.add( ids[entry], bytes( usernames[entry] ), bytes( cookies[entry] ) );
+            }
+            if( _entry < 0 )
+                builder.add( _id, _username, _cookie );
+            return builder.build();
         }
 
 
-        @Override
-        public boolean equals( final Object o ) {
-            if( this == o ) return true;
-            if( o == null || getClass() != o.getClass() ) return false;
-            Bytes bytes1 = (Bytes) o;
-            return Arrays.equals( bytes, bytes1.bytes );
+        private boolean matches( final long _ref, final byte[] _key ) {
+
+            if( (_ref == NONE) || (_key == null) )
+                return (_ref == NONE) && (_key == null);
+
+            int offset = (int) (_ref >>> 32);
+            int length = (int) _ref;
+            if( length != _key.length )
+                return false;
+            for( int i = 0; i < length; i++ )
+                if( keys[offset + i] != _key[i] )
+                    return false;
+            return true;
         }
 
 
-        @Override
-        public int hashCode() {
-            return Arrays.hashCode( bytes );
+        private byte[] bytes( final long _ref ) {
+            return (_ref == NONE) ? null : Arrays.copyOfRange( keys, (int) (_ref >>> 32), (int) (_ref >>> 32) + (int) _ref );
+        }
+
+
+        private String string( final long _ref ) {
+            return (_ref == NONE) ? null : new String( keys, (int) (_ref >>> 32), (int) _ref, Constants.UTF8 );
+        }
+
+
+        private void put( final int[] _table, final long[] _refs, final int _entry ) {
+
+            long ref = _refs[_entry];
+            if( ref == NONE )
+                return;
+            byte[] key = bytes( ref );
+            _table[slot( _table, hash( key, 0, key.length ), _other -> matches( _refs[_other], key ) )] = _entry + 1;
+        }
+
+
+        /*
+         * Returns the slot in the given table holding the entry the given test accepts, or the empty slot where it would go.
+         */
+        private static int slot( final int[] _table, final int _hash, final IntPredicate _isMatch ) {
+
+            int mask = _table.length - 1;
+            for( int slot = _hash & mask; ; slot = (slot + 1) & mask )
+                if( (_table[slot] == 0) || _isMatch.test( _table[slot] - 1 ) )
+                    return slot;
+        }
+
+
+        private static int hash( final byte[] _bytes, final int _offset, final int _length ) {
+
+            int h = 0;
+            for( int i = _offset; i < _offset + _length; i++ )
+                h = 31 * h + _bytes[i];
+            return h ^ (h >>> 16);
+        }
+
+
+        private static int hash( final long _id ) {
+            int h = (int) (_id ^ (_id >>> 32)) * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+
+        /*
+         * Gathers entries for a new snapshot.  If an ID is added more than once, the last one added wins.
+         */
+        private static final class Builder {
+
+            private long[] ids;
+            private byte[][] usernames;
+            private byte[][] cookies;
+            private int count;
+
+
+            private Builder( final int _capacity ) {
+                ids = new long[Math.max( 1, _capacity )];
+                usernames = new byte[ids.length][];
+                cookies = new byte[ids.length][];
+            }
+
+
+            private void add( final long _id, final byte[] _username, final byte[] _cookie ) {
+
+                if( count == ids.length ) {
+                    ids = Arrays.copyOf( ids, 2 * count );
+                    usernames = Arrays.copyOf( usernames, 2 * count );
+                    cookies = Arrays.copyOf( cookies, 2 * count );
+                }
+                ids[count] = _id;
+                usernames[count] = _username;
+                cookies[count] = _cookie;
+                count++;
+            }
+
+
+            private Snapshot build() {
+
+                // find the last entry for each ID...
+                Map<Long,Integer> last = Maps.newHashMapWithExpectedSize( count );
+                for( int i = 0; i < count; i++ )
+                    last.put( ids[i], i );
+
+                // then pack the surviving entries' keys into one array...
+                int n = last.size();
+                long[] packedIDs = new long[n];
+                long[] usernameRefs = new long[n];
+                long[] cookieRefs = new long[n];
+                int size = 0;
+                for( int i = 0; i < count; i++ )
+                    if( last.get( ids[i] ) == i )
+                        size += ((usernames[i] == null) ? 0 : usernames[i].length) + ((cookies[i] == null) ? 0 : cookies[i].length);
+
+                byte[] keys = new byte[size];
+                int offset = 0;
+                int entry = 0;
+                for( int i = 0; i < count; i++ ) {
+                    if( last.get( ids[i] ) != i )
+                        continue;
+                    packedIDs[entry] = ids[i];
+                    usernameRefs[entry] = pack( usernames[i], keys, offset );
+                    offset += (usernames[i] == null) ? 0 : usernames[i].length;
+                    cookieRefs[entry] = pack( cookies[i], keys, offset );
+                    offset += (cookies[i] == null) ? 0 : cookies[i].length;
+                    entry++;
+                }
+                return new Snapshot( n, packedIDs, usernameRefs, cookieRefs, keys );
+            }
+
+
+            private static long pack( final byte[] _key, final byte[] _keys, final int _offset ) {
+
+                if( _key == null )
+                    return NONE;
+                System.arraycopy( _key, 0, _keys, _offset, _key.length );
+                return ((long) _offset << 32) | _key.length;
+            }
         }
     }
 
 
     public String toJSON() throws StorageException {
         try {
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter( Users.class, new Serializer()   );
-            Gson gson = gsonBuilder.create();
-            return gson.toJson( this, getClass() );
+            return GSON.toJson( this, getClass() );
         }
         catch( Exception e ) {
             throw new StorageException( "Problem serializing Users to JSON", e );
@@ -331,12 +538,20 @@ public class Users extends BlogObjectObject {
     public static Users fromJSON( final String _json, final BlogID _id, final BlogObjectType _type,
                                   final BlogObjectAccessRequirements _accessRequirements ) throws StorageException {
         try {
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter( Users.class, new Deserializer( _id, _type, _accessRequirements )   );
-            Gson gson = gsonBuilder.create();
-            return gson.fromJson( _json, Users.class );
+            Users result = GSON.fromJson( _json, Users.class );
+
+            // empty (or blank) JSON parses to nothing at all...
+            if( result == null )
+                throw new StorageException( "Problem deserializing Users from JSON: empty object " + _id );
+
+            // handle the fields we got from our file name...
+            result.type = _type;
+            result.blogID = _id;
+            result.accessRequirements = _accessRequirements;
+
+            return result;
         }
-        catch( JsonSyntaxException e ) {
+        catch( JsonParseException | IllegalStateException e ) {
             throw new StorageException( "Problem deserializing Users from JSON", e );
         }
     }
@@ -358,100 +573,83 @@ public class Users extends BlogObjectObject {
      */
 
 
-    private static class Deserializer implements JsonDeserializer<Users> {
-
-        private final BlogID id;
-        private final BlogObjectType type;
-        private final BlogObjectAccessRequirements accessRequirements;
-
-
-        public Deserializer( final BlogID _id, final BlogObjectType _type, final BlogObjectAccessRequirements _accessRequirements ) {
-            id = _id;
-            type = _type;
-            accessRequirements = _accessRequirements;
-        }
+    /**
+     * Streaming adapter that reads and writes the index directly, without building an intermediate JSON tree.  It holds no state, so a single
+     * instance is shared by all readers and writers; the fields that come from the file name are set by {@link #fromJSON(String,BlogID,
+     * BlogObjectType,BlogObjectAccessRequirements)}.
+     */
+    private static class Adapter extends TypeAdapter<Users> {
 
         @Override
-        public Users deserialize( final JsonElement _jsonElement,
-                                  final Type _type,
-                                  final JsonDeserializationContext _jsonDeserializationContext ) throws JsonParseException {
-
-            Users result = new Users();
-
-            if( !_jsonElement.isJsonObject() )
-                throw new JsonParseException( "Expected object start" );
-
-            JsonObject object = _jsonElement.getAsJsonObject();
-
-            // handle the fields we got from our file name...
-            result.type = type;
-            result.blogID = id;
-            result.accessRequirements = accessRequirements;
-
-            // iterate over all the users in the JSON file...
-            JsonElement usersElement = object.get( "users" );
-
-            if( !usersElement.isJsonArray() )
-                throw new JsonParseException( "Expected array start" );
-
-            JsonArray usersArray = usersElement.getAsJsonArray();
-            for( final JsonElement element : usersArray ) {
-
-                // make sure we got a three-element array...
-                if( !element.isJsonArray() )
-                    throw new JsonParseException( "Expected array start for user entry" );
-
-                JsonArray userArray = element.getAsJsonArray();
-                if( userArray.size() != 3 )
-                    throw new JsonParseException( "Expected 3 elements in array for user entry" );
-
-                // extract the index elements for one user...
-                String id = userArray.get( 0 ).getAsString();
-                String username = userArray.get( 1 ).getAsString();
-                String cookie = userArray.get( 2 ).isJsonNull() ? null : userArray.get( 2 ).getAsString();
-
-                if( !ID.isValid(id) || (username == null) )
-                    throw new JsonParseException( "Invalid values in id or username" );
-
-                // update the indexes...
-                Bytes idKey       = new Bytes( toUTF8( id )       );
-                Bytes usernameKey = new Bytes( toUTF8( username ) );
-                Bytes cookieKey   = new Bytes( toUTF8( cookie )   );
-                Keys keys = new Keys( usernameKey, cookieKey );
-                result.reverse.put( idKey, keys );
-                result.byUsername.put( usernameKey, idKey );
-                result.byCookie.put( cookieKey, idKey );
+        public void write( final JsonWriter _out, final Users _users ) throws IOException {
+
+            _out.beginObject();
+            _out.name( "users" );
+            _out.beginArray();
+
+            // iterate over all the entries in the snapshot, as they have all the data we need...
+            Snapshot snapshot = _users.snapshot;
+            for( int entry = 0; entry < snapshot.count; entry++ ) {
+                _out.beginArray();
+                _out.value( ID.encode( snapshot.ids[entry] )              );
+                _out.value( snapshot.string( snapshot.usernames[entry] )  );
+                _out.value( snapshot.string( snapshot.cookies[entry] )    );
+                _out.endArray();
             }
 
-            return result;
+            _out.endArray();
+            _out.endObject();
         }
-    }
-
-
-    public static class Serializer implements JsonSerializer<Users> {
 
 
         @Override
-        public JsonElement serialize( final Users _users, final Type _type,
-                                      final JsonSerializationContext _context ) {
-
-            JsonObject object = new JsonObject();
-
-            JsonArray users = new JsonArray();
+        public Users read( final JsonReader _in ) throws IOException {
 
-            // iterate over all the entries in the reverse index, as they have all the data we need...
-            for( Map.Entry<Bytes,Keys> entry : _users.reverse.entrySet() ) {
-
-                JsonArray item = new JsonArray();
-                item.add( fromUTF8( entry.getKey().bytes               ) );
-                item.add( fromUTF8( entry.getValue().username.bytes    ) );
-                item.add( fromUTF8( entry.getValue().cookieValue.bytes ) );
-                users.add( item );
+            Users result = new Users();
+            Snapshot.Builder builder = new Snapshot.Builder( 64 );
+            boolean sawUsers = false;
+
+            _in.beginObject();
+            while( _in.hasNext() ) {
+
+                // we only care about the users array; anything else (like the old type and ID fields) we skip...
+                if( !"users".equals( _in.nextName() ) ) {
+                    _in.skipValue();
+                    continue;
+                }
+
+                sawUsers = true;
+                _in.beginArray();
+                while( _in.hasNext() ) {
+
+                    // extract the index elements for one user...
+                    _in.beginArray();
+                    String id = _in.nextString();
+                    String username = _in.nextString();
+                    String cookie = null;
+                    if( _in.peek() == JsonToken.NULL )
+                        _in.nextNull();
+                    else
+                        cookie = _in.nextString();
+                    if( _in.hasNext() )
+                        throw new JsonParseException( "Expected 3 elements in array for user entry" );
+                    _in.endArray();
+
+                    if( !ID.isValid(id) || (username == null) )
+                        throw new JsonParseException( "Invalid values in id or username" );
+
+                    // add the entry to our index...
+                    builder.add( ID.decode( id ), toUTF8( username ), toUTF8( cookie ) );
+                }
+                _in.endArray();
             }
+            _in.endObject();
 
-            object.add( "users", users );
+            if( !sawUsers )
+                throw new JsonParseException( "Expected users array" );
 
-            return object;
+            result.snapshot = builder.build();
+            return result;
         }
     }
 }
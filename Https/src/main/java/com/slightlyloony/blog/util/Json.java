@@ -0,0 +1,22 @@
+package com.slightlyloony.blog.util;
+
+import com.google.gson.Gson;
+
+/**
+ * Static container for the shared, pre-built {@link Gson} instance used wherever plain (adapter-free) JSON conversion is needed.  Building a Gson
+ * instance is expensive (it reflects over its built-in type adapters and caches per-type adapters as it goes), while a built instance is immutable
+ * and threadsafe - so there's no reason for any code to build one per call.  Classes that need custom type adapters hold their own pre-built
+ * instances, and apply any per-object context (such as the blog ID and type taken from a file name) after deserialization rather than capturing it
+ * in an adapter.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class Json {
+
+    public static final Gson GSON = new Gson();
+
+
+    private Json() {
+        // prevent instantiation...
+    }
+}
@@ -0,0 +1,296 @@
+package com.slightlyloony.blog.util;
+
+import com.slightlyloony.blog.objects.BlogObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.Buffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.slightlyloony.common.logging.LU.msg;
+
+/**
+ * Static container class for measuring the heap memory actually retained by objects, for budgeting caches.  The size of an object graph is found by
+ * walking it (by reflection) from its root, adding up the size of each distinct object reached, as laid out by a 64-bit HotSpot JVM: an object
+ * header (mark word plus class pointer, compressed or not), the instance fields of each class in its hierarchy, and padding to the object alignment.
+ * The JVM's actual settings for compressed pointers and object alignment are read once, at class initialization.
+ * <p>
+ * The walk doesn't follow references to things that are shared rather than owned by the object being measured: classes, enum constants, class
+ * loaders, threads, the referents of weak or soft references, the contents of NIO buffers (whose memory is usually off-heap, or part of something
+ * else), and any blog object other than the root (as those are cached, and measured, in their own right).  Static fields are never followed.
+ * Some JDK classes can't be read reflectively on newer JVMs.  The fields that can be read are always followed, even in an object that inherits from
+ * such a class; for the part that can't, strings are sized from their length, collections and maps by following their elements (with an allowance
+ * for a hash node or array slot per element), and anything else at its shallow size only.
+ * <p>
+ * This class is threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class MemorySizer {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    private static final int OBJECT_HEADER;
+    private static final int ARRAY_HEADER;
+    private static final int REFERENCE;
+    private static final int ALIGNMENT;
+    private static final int STRING_CHAR;    // bytes per character in a string's backing array...
+    private static final long NODE;          // bytes per element in a collection we can't see inside...
+
+    private static final Map<Class<?>,Layout> LAYOUTS = new ConcurrentHashMap<>();
+
+
+    static {
+        boolean compressedOops = "true".equals( getVMOption( "UseCompressedOops", "true" ) );
+        boolean compressedClassPointers = "true".equals( getVMOption( "UseCompressedClassPointers", Boolean.toString( compressedOops ) ) );
+        ALIGNMENT = Integer.parseInt( getVMOption( "ObjectAlignmentInBytes", "8" ) );
+        REFERENCE = compressedOops ? 4 : 8;
+        OBJECT_HEADER = compressedClassPointers ? 12 : 16;
+        ARRAY_HEADER = align( OBJECT_HEADER + 4, 8 );
+        STRING_CHAR = stringValueType() == byte[].class ? 1 : 2;
+        NODE = align( (long) OBJECT_HEADER + 4 + 3 * REFERENCE ) + REFERENCE;
+        LOG.info( msg( "Memory sizer using {0} byte references, {1} byte headers, {2} byte alignment", REFERENCE, OBJECT_HEADER, ALIGNMENT ) );
+    }
+
+
+    /**
+     * Returns the number of bytes of heap retained by the given object: its own size plus that of every object reachable from it, excluding shared
+     * objects as described in the class comment.
+     *
+     * @param _root the object to measure
+     * @return the number of bytes retained by the object
+     */
+    public static long sizeOf( final Object _root ) {
+
+        if( _root == null )
+            return 0;
+
+        Map<Object,Boolean> visited = new IdentityHashMap<>();
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        visited.put( _root, Boolean.TRUE );
+        pending.push( _root );
+
+        long total = 0;
+        while( !pending.isEmpty() ) {
+
+            Object object = pending.pop();
+            Class<?> clazz = object.getClass();
+
+            // arrays are sized by their element type and length, and arrays of references have their elements followed...
+            if( clazz.isArray() ) {
+                int length = Array.getLength( object );
+                Class<?> component = clazz.getComponentType();
+                total += align( ARRAY_HEADER + (long) length * fieldSize( component ) );
+                if( !component.isPrimitive() )
+                    for( Object element : (Object[]) object )
+                        follow( element, visited, pending );
+                continue;
+            }
+
+            Layout layout = layout( clazz );
+            total += layout.size;
+            if( layout.leaf )
+                continue;
+            for( Field field : layout.references ) {
+                try {
+                    follow( field.get( object ), visited, pending );
+                }
+                catch( IllegalAccessException e ) {
+                    // can't happen, as the layout only includes fields made accessible...
+                }
+            }
+
+            // whatever's behind the fields we couldn't read (usually a JDK superclass's) we size through the object's public interface...
+            if( layout.opaque )
+                total += opaque( object, visited, pending );
+        }
+        return total;
+    }
+
+
+    /**
+     * Returns the number of bytes of heap occupied by instances of the given class, not counting anything they refer to.
+     *
+     * @param _class the class to measure
+     * @return the shallow size of instances of the class
+     */
+    public static long shallowSizeOf( final Class<?> _class ) {
+        return layout( _class ).size;
+    }
+
+
+    /*
+     * Returns the bytes retained by the given object (beyond its shallow size) through the fields we can't read, following whatever we can reach
+     * through its public interface.
+     */
+    private static long opaque( final Object _object, final Map<Object,Boolean> _visited, final ArrayDeque<Object> _pending ) {
+
+        if( _object instanceof String )
+            return align( ARRAY_HEADER + (long) ((String) _object).length() * STRING_CHAR );
+
+        long count = 0;
+        try {
+            if( _object instanceof Map ) {
+                for( Map.Entry<?,?> entry : ((Map<?,?>) _object).entrySet() ) {
+                    follow( entry.getKey(), _visited, _pending );
+                    follow( entry.getValue(), _visited, _pending );
+                    count++;
+                }
+            }
+            else if( _object instanceof Collection ) {
+                for( Object element : (Collection<?>) _object ) {
+                    follow( element, _visited, _pending );
+                    count++;
+                }
+            }
+        }
+        catch( RuntimeException e ) {
+            // it changed while we were looking; what we've counted will have to do...
+        }
+        return count * NODE;
+    }
+
+
+    private static void follow( final Object _object, final Map<Object,Boolean> _visited, final ArrayDeque<Object> _pending ) {
+
+        if( (_object == null) || isShared( _object ) || (_visited.put( _object, Boolean.TRUE ) != null) )
+            return;
+        _pending.push( _object );
+    }
+
+
+    private static boolean isShared( final Object _object ) {
+        return (_object instanceof Class) || (_object instanceof Enum) || (_object instanceof ClassLoader) || (_object instanceof Thread)
+                || (_object instanceof BlogObject);
+    }
+
+
+    /*
+     * Returns the (cached) layout of the given class, computing it if necessary.
+     */
+    private static Layout layout( final Class<?> _class ) {
+
+        Layout layout = LAYOUTS.get( _class );
+        if( layout != null )
+            return layout;
+
+        long size = OBJECT_HEADER;
+        List<Field> references = new ArrayList<>();
+        boolean leaf = Buffer.class.isAssignableFrom( _class ) || java.lang.ref.Reference.class.isAssignableFrom( _class );
+        boolean opaque = false;
+
+        // HotSpot lays out each class's fields after its superclass's, with each class's fields starting on a reference boundary...
+        for( Class<?> c = _class; c != null; c = c.getSuperclass() ) {
+            long fields = 0;
+            for( Field field : c.getDeclaredFields() ) {
+                if( Modifier.isStatic( field.getModifiers() ) )
+                    continue;
+                fields += fieldSize( field.getType() );
+                if( leaf || field.getType().isPrimitive() )
+                    continue;
+                try {
+                    field.setAccessible( true );
+                    references.add( field );
+                }
+                catch( RuntimeException e ) {
+                    opaque = true;
+                }
+            }
+            size += align( fields, REFERENCE );
+        }
+
+        if( opaque )
+            LOG.debug( msg( "Can''t read some fields of {0}; sizing what they hold through its public interface", _class.getName() ) );
+
+        layout = new Layout( align( size ), leaf, opaque, Collections.unmodifiableList( references ) );
+        LAYOUTS.put( _class, layout );
+        return layout;
+    }
+
+
+    private static int fieldSize( final Class<?> _type ) {
+
+        if( !_type.isPrimitive() )   return REFERENCE;
+        if( _type == long.class )    return 8;
+        if( _type == double.class )  return 8;
+        if( _type == int.class )     return 4;
+        if( _type == float.class )   return 4;
+        if( _type == short.class )   return 2;
+        if( _type == char.class )    return 2;
+        return 1;  // byte and boolean...
+    }
+
+
+    private static long align( final long _size ) {
+        return align( _size, ALIGNMENT );
+    }
+
+
+    private static long align( final long _size, final int _alignment ) {
+        return (_size + _alignment - 1) / _alignment * _alignment;
+    }
+
+
+    private static int align( final int _size, final int _alignment ) {
+        return (_size + _alignment - 1) / _alignment * _alignment;
+    }
+
+
+    private static Class<?> stringValueType() {
+
+        try {
+            return String.class.getDeclaredField( "value" ).getType();
+        }
+        catch( NoSuchFieldException e ) {
+            return char[].class;
+        }
+    }
+
+
+    /*
+     * Returns the value of the given HotSpot VM option, or the given default if it can't be read (for instance, on a JVM that isn't HotSpot).
+     */
+    private static String getVMOption( final String _name, final String _default ) {
+
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean( com.sun.management.HotSpotDiagnosticMXBean.class );
+            return (bean == null) ? _default : bean.getVMOption( _name ).getValue();
+        }
+        catch( RuntimeException | LinkageError e ) {
+            return _default;
+        }
+    }
+
+
+    private static class Layout {
+
+        private final long size;
+        private final boolean leaf;            // true if references from instances aren't followed...
+        private final boolean opaque;          // true if some reference fields can't be read (the rest are still followed)...
+        private final List<Field> references;  // the reference fields we can follow...
+
+
+        private Layout( final long _size, final boolean _leaf, final boolean _opaque, final List<Field> _references ) {
+            size = _size;
+            leaf = _leaf;
+            opaque = _opaque;
+            references = _references;
+        }
+    }
+
+
+    private MemorySizer() {
+        // prevent instantiation...
+    }
+}
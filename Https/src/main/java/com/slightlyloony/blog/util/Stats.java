@@ -1,13 +1,20 @@
 package com.slightlyloony.blog.util;
 
 import com.google.common.collect.Maps;
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.slightlyloony.blog.Blog;
+import com.slightlyloony.blog.BlogServer;
 import com.slightlyloony.blog.events.Event;
 import com.slightlyloony.blog.events.EventListener;
 import com.slightlyloony.blog.events.Events;
+import com.slightlyloony.blog.responders.ImageCostModel;
+import com.slightlyloony.blog.responders.ImageMetadataProjection;
+import com.slightlyloony.blog.responders.ImageScaler;
 import com.slightlyloony.blog.security.BlogSession;
+import com.slightlyloony.blog.security.BlogSessionManager;
+import com.slightlyloony.blog.users.PasswordVerifier;
+import com.slightlyloony.blog.users.UserWriteBehind;
 import com.slightlyloony.common.logging.LU;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -108,7 +115,6 @@ public class Stats implements EventListener {
      * @return the JSON-formatted statistical report.
      */
     private synchronized String reportImpl() {
-        Gson gson = new Gson();
         JsonObject object = new JsonObject();
 
         JsonArray userArray = new JsonArray();
@@ -133,8 +139,22 @@ public class Stats implements EventListener {
         object.addProperty( "diskBytesRead",     diskBytesRead     );
         object.addProperty( "loggedInUsers",     users.size()      );
         object.addProperty( "infoRequests",      infoRequests      );
-
-        return gson.toJson( object );
+        object.add(         "userWrites",        UserWriteBehind.INSTANCE.getStats() );
+        object.add(         "logins",            PasswordVerifier.INSTANCE.getStats() );
+        object.add(         "sessions",          BlogSessionManager.INSTANCE.getStats() );
+        object.add(         "caches",            BlogServer.STORAGE.getCacheStats()   );
+        object.add(         "offHeap",           BlogServer.STORAGE.getOffHeapStats() );
+        object.add(         "imageScaling",      ImageScaler.INSTANCE.getStats()      );
+        object.add(         "imageCosts",        ImageCostModel.INSTANCE.getStats()   );
+        object.add(         "imageMetadata",     ImageMetadataProjection.INSTANCE.getStats() );
+
+        JsonObject usersIndexes = new JsonObject();
+        for( Blog blog : BlogServer.getBlogs() )
+            if( blog.getUsers() != null )
+                usersIndexes.add( blog.getName(), blog.getUsers().getStats() );
+        object.add( "usersIndexes", usersIndexes );
+
+        return Json.GSON.toJson( object );
     }
 
 
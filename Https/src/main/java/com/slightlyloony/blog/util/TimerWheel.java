@@ -0,0 +1,149 @@
+package com.slightlyloony.blog.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timer wheel: a collection of items, each due at some tick, from which the items that have come due are collected as time advances.
+ * There are four wheels of 64 slots each.  A slot on the first wheel covers a single tick, a slot on the second wheel covers 64 ticks, and so on,
+ * so items may be due as much as 64^4 ticks ahead (anything further out is held on the last wheel until it comes within reach).  An item goes into
+ * the slot covering its tick on the finest wheel that reaches that far; as time advances, each slot of a coarser wheel is emptied into the finer
+ * wheels just as the ticks it covers begin.  Scheduling an item and collecting it when it's due therefore take constant time, plus at most one move
+ * per wheel in between, no matter how many items there are - and advancing never looks at an item that isn't due.
+ * <p>
+ * Items can't be cancelled.  Instead, whoever collects an item that has come due decides whether it's really done, and if it isn't, schedules it
+ * again.  That suits timeouts that are pushed back often (like idle timeouts), as pushing one back costs nothing at all until it comes due.
+ * <p>
+ * Instances of this class are not threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class TimerWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int WHEELS = 4;
+    private static final long REACH = 1L << (SLOT_BITS * WHEELS);  // the most ticks ahead an item can be placed...
+
+    private final List<List<Timeout<T>>> slots;  // WHEELS * SLOTS slots, wheel by wheel; each is null until it's used...
+    private long now;
+    private int size;
+
+
+    /**
+     * Creates a new instance of this class, starting at the given tick.
+     *
+     * @param _now the current tick
+     */
+    public TimerWheel( final long _now ) {
+
+        slots = new ArrayList<>( WHEELS * SLOTS );
+        for( int i = 0; i < WHEELS * SLOTS; i++ )
+            slots.add( null );
+        now = _now;
+    }
+
+
+    /**
+     * Schedules the given item to come due at the given tick (or at the next tick, if the given tick isn't in the future).
+     *
+     * @param _item the item to schedule
+     * @param _tick the tick the item is due at
+     */
+    public void schedule( final T _item, final long _tick ) {
+
+        place( new Timeout<>( _item, Math.max( _tick, now + 1 ) ) );
+        size++;
+    }
+
+
+    /**
+     * Advances this wheel to the given tick, passing each item that comes due on the way to the given consumer, in the order they come due.  The
+     * consumer may schedule items (including the item it was given).
+     *
+     * @param _tick the tick to advance to
+     * @param _due the consumer for the items that come due
+     */
+    public void advance( final long _tick, final Consumer<T> _due ) {
+
+        while( now < _tick ) {
+
+            // if nothing is scheduled, there's nothing to step through...
+            if( size == 0 ) {
+                now = _tick;
+                return;
+            }
+
+            now++;
+
+            // empty any coarser slots whose ticks begin now into the finer wheels, coarsest first...
+            for( int wheel = WHEELS - 1; wheel > 0; wheel-- ) {
+                if( (now & ((1L << (SLOT_BITS * wheel)) - 1)) != 0 )
+                    continue;
+                List<Timeout<T>> slot = take( wheel, (int) ((now >>> (SLOT_BITS * wheel)) & SLOT_MASK) );
+                if( slot != null )
+                    slot.forEach( this::place );
+            }
+
+            // then everything in the first wheel's slot for this tick is due...
+            List<Timeout<T>> due = take( 0, (int) (now & SLOT_MASK) );
+            if( due != null ) {
+                size -= due.size();
+                for( Timeout<T> timeout : due )
+                    _due.accept( timeout.item );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of items scheduled.
+     *
+     * @return the number of items scheduled
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /*
+     * Puts the given timeout in the slot covering its tick on the finest wheel that reaches it.  A timeout that is already due (which happens only
+     * while cascading) goes into the first wheel's slot for the current tick, which is collected right after cascading.
+     */
+    private void place( final Timeout<T> _timeout ) {
+
+        long delta = _timeout.tick - now;
+        long tick = (delta >= REACH) ? now + REACH - 1 : _timeout.tick;  // too far out, so park it as far out as we can...
+        int wheel = 0;
+        while( (wheel < WHEELS - 1) && (tick - now >= (1L << (SLOT_BITS * (wheel + 1)))) )
+            wheel++;
+
+        int index = wheel * SLOTS + (int) ((Math.max( tick, now ) >>> (SLOT_BITS * wheel)) & SLOT_MASK);
+        List<Timeout<T>> slot = slots.get( index );
+        if( slot == null ) {
+            slot = new ArrayList<>();
+            slots.set( index, slot );
+        }
+        slot.add( _timeout );
+    }
+
+
+    private List<Timeout<T>> take( final int _wheel, final int _slot ) {
+        return slots.set( _wheel * SLOTS + _slot, null );
+    }
+
+
+    private static class Timeout<T> {
+
+        private final T item;
+        private final long tick;
+
+
+        private Timeout( final T _item, final long _tick ) {
+            item = _item;
+            tick = _tick;
+        }
+    }
+}